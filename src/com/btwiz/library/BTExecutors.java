@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Library owned executor used for all background connect and accept work.
+ *
+ * Work runs on a bounded pool of named threads ("BTWiz-worker-N") with a bounded
+ * queue; an app may supply its own Executor instead. Connects are additionally
+ * capped: at most maxConcurrentConnects are in flight, the rest wait in a
+ * (bounded) FIFO connect queue and are dispatched as running connects complete.
+ * A single "BTWiz-timer" thread runs delayed library tasks, and single "BTWiz-read" 
+ * and "BTWiz-write" threads run BTSocket async IO. An optional "BTWiz-broadcasts" 
+ * HandlerThread receives discovery broadcasts off the main thread.
+ *
+ * Note that each active listen session holds one worker thread for its accept loop
+ */
+public class BTExecutors {
+
+	public static final int DEFAULT_MAX_THREADS = 4;
+	public static final int DEFAULT_MAX_QUEUED_TASKS = 32;
+	public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 2;
+	public static final int DEFAULT_MAX_QUEUED_CONNECTS = 64;
+
+	private static final long KEEP_ALIVE_SECS = 30;
+
+
+	private final Object lock = new Object();
+
+	private int maxThreads = DEFAULT_MAX_THREADS;
+	private int maxQueuedTasks = DEFAULT_MAX_QUEUED_TASKS;
+	private int maxConcurrentConnects = DEFAULT_MAX_CONCURRENT_CONNECTS;
+	private int maxQueuedConnects = DEFAULT_MAX_QUEUED_CONNECTS;
+
+	private ThreadPoolExecutor ownPool;     // lazily created
+	private Executor userExecutor;          // caller supplied, never shut down by the library
+	private ScheduledThreadPoolExecutor timer; // lazily created
+	private ExecutorService readThread;        // lazily created
+	private ExecutorService writeThread;       // lazily created
+	private HandlerThread broadcastThread;     // lazily created
+	private Handler broadcastHandler;
+
+	private final LinkedList<ConnectTask> connectQueue = new LinkedList<ConnectTask>();
+	private int inFlightConnects = 0;
+
+
+	/**
+	 * Sets the worker pool limits. Takes effect the next time the pool is created
+	 * (i.e. at start or after shutdown())
+	 */
+	public void setPoolLimits(int maxThreads, int maxQueuedTasks) {
+		if (maxThreads < 1 || maxQueuedTasks < 1) {
+			throw new RuntimeException("Bad pool limits!");
+		}
+		synchronized (lock) {
+			this.maxThreads = maxThreads;
+			this.maxQueuedTasks = maxQueuedTasks;
+		}
+	}
+
+	/**
+	 * Caps the number of connect() operations running at the same time.
+	 * Further connects are queued, up to maxQueuedConnects
+	 */
+	public void setConnectLimits(int maxConcurrentConnects, int maxQueuedConnects) {
+		if (maxConcurrentConnects < 1 || maxQueuedConnects < 0) {
+			throw new RuntimeException("Bad connect limits!");
+		}
+		synchronized (lock) {
+			this.maxConcurrentConnects = maxConcurrentConnects;
+			this.maxQueuedConnects = maxQueuedConnects;
+		}
+	}
+
+	/**
+	 * Use a caller supplied executor instead of the library's own pool.
+	 * Set to null to revert to the library's pool
+	 */
+	public void setExecutor(Executor executor) {
+		synchronized (lock) {
+			userExecutor = executor;
+		}
+	}
+
+
+	/**
+	 * Executes a background task.
+	 * Throws RejectedExecutionException if the pool and its queue are full
+	 */
+	public void execute(Runnable task) {
+		getExecutor().execute(task);
+	}
+
+	/**
+	 * Executes a connect task, subject to the concurrent connects cap.
+	 * Throws RejectedExecutionException if the connect queue is full. A connect rejected 
+	 * once queued (pool full, or shutdown()) is reported to ConnectTask.onRejected()
+	 */
+	public void executeConnect(Runnable connectTask) {
+		executeConnect(connectTask instanceof ConnectTask ? (ConnectTask)connectTask : new LoggedConnectTask(connectTask));
+	}
+
+	private void executeConnect(ConnectTask connectTask) {
+		synchronized (lock) {
+			if (inFlightConnects >= maxConcurrentConnects) {
+				if (connectQueue.size() >= maxQueuedConnects) {
+					throw new RejectedExecutionException("Connect queue is full");
+				}
+				connectQueue.addLast(connectTask);
+				return;
+			}
+			inFlightConnects++;
+		}
+		dispatchConnect(connectTask);
+	}
+
+	/**
+	 * Runs a short task on the library's timer thread after delayMs
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+		ScheduledThreadPoolExecutor t;
+		synchronized (lock) {
+			if (timer == null) {
+				timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BTWiz-timer"));
+			}
+			t = timer;
+		}
+		return t.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the single thread executor running BTSocket.readAsync() calls 
+	 */
+	ExecutorService getReadExecutor() {
+		synchronized (lock) {
+			if (readThread == null) {
+				readThread = Executors.newSingleThreadExecutor(new NamedThreadFactory("BTWiz-read"));
+			}
+			return readThread;
+		}
+	}
+
+	/**
+	 * Returns the Handler of the background thread receiving broadcasts
+	 */
+	Handler getBroadcastHandler() {
+		synchronized (lock) {
+			if (broadcastHandler == null) {
+				broadcastThread = new HandlerThread("BTWiz-broadcasts", Process.THREAD_PRIORITY_BACKGROUND);
+				broadcastThread.start();
+				broadcastHandler = new Handler(broadcastThread.getLooper());
+			}
+			return broadcastHandler;
+		}
+	}
+
+	/**
+	 * Returns the single thread executor running BTSocket.writeAsync() calls 
+	 */
+	ExecutorService getWriteExecutor() {
+		synchronized (lock) {
+			if (writeThread == null) {
+				writeThread = Executors.newSingleThreadExecutor(new NamedThreadFactory("BTWiz-write"));
+			}
+			return writeThread;
+		}
+	}
+
+	/**
+	 * Returns the number of connects currently running
+	 */
+	public int getInFlightConnects() {
+		synchronized (lock) {
+			return inFlightConnects;
+		}
+	}
+
+	/**
+	 * Returns the number of connects waiting for a free connect slot
+	 */
+	public int getQueuedConnects() {
+		synchronized (lock) {
+			return connectQueue.size();
+		}
+	}
+
+
+	/**
+	 * Shuts down the library's own pool, IO threads and timer (if created) and drops queued connects.
+	 * A new pool is created upon next use
+	 */
+	public void shutdown() {
+		ExecutorService[] all;
+		ScheduledThreadPoolExecutor t;
+		HandlerThread b;
+		ArrayList<ConnectTask> dropped;
+		synchronized (lock) {
+			all = new ExecutorService[] { ownPool, readThread, writeThread };
+			b = broadcastThread;
+			broadcastThread = null;
+			broadcastHandler = null;
+			ownPool = null;
+			readThread = null;
+			writeThread = null;
+			t = timer;
+			timer = null;
+			dropped = new ArrayList<ConnectTask>(connectQueue);
+			connectQueue.clear();
+		}
+		for (ConnectTask task: dropped) {
+			task.onRejected(new RejectedExecutionException("Executors shut down"));
+		}
+		for (ExecutorService executor: all) {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		if (t != null) {
+			t.shutdownNow();
+		}
+		if (b != null) {
+			b.quit(); // receivers are unregistered by now
+		}
+	}
+
+
+	private void dispatchConnect(final ConnectTask connectTask) {
+		Runnable wrapper = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connectTask.run();
+				}
+				finally {
+					onConnectDone();
+				}
+			}
+		};
+		try {
+			getExecutor().execute(wrapper);
+		}
+		catch (RejectedExecutionException e) {
+			BTLog.e("BTExecutors", "Connect task rejected: " + e);
+			onConnectDone();
+			throw e;
+		}
+	}
+
+	private void onConnectDone() {
+		ConnectTask next;
+		synchronized (lock) {
+			next = connectQueue.poll();
+			if (next == null) {
+				inFlightConnects--;
+				return;
+			}
+			// else: the freed slot passes on to the next queued connect
+		}
+		try {
+			dispatchConnect(next);
+		}
+		catch (RejectedExecutionException e) {
+			next.onRejected(e); // already logged
+		}
+	}
+
+
+	/**
+	 * A connect task notified if rejected after being queued, so its caller can 
+	 * report the failure (e.g. to an IDeviceConnectionListener)
+	 */
+	public static abstract class ConnectTask implements Runnable {
+		public abstract void onRejected(RejectedExecutionException e);
+	}
+
+	/**
+	 * A plain connect task, whose queued rejection can only be logged
+	 */
+	private static class LoggedConnectTask extends ConnectTask {
+		private final Runnable task;
+
+		LoggedConnectTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public void onRejected(RejectedExecutionException e) {
+			BTLog.e("BTExecutors", "Queued connect dropped: " + e);
+		}
+	}
+
+	private Executor getExecutor() {
+		synchronized (lock) {
+			if (userExecutor != null) {
+				return userExecutor;
+			}
+			if (ownPool == null) {
+				ownPool = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(maxQueuedTasks), new NamedThreadFactory("BTWiz-worker"));
+				ownPool.allowCoreThreadTimeOut(true);
+			}
+			return ownPool;
+		}
+	}
+
+
+	/**
+	 * A thread factory naming its threads prefix-N
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
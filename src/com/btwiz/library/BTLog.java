@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import android.util.Log;
+
+/**
+ * Library logging. Goes to android.util.Log on Android and to System.err elsewhere, 
+ * e.g. simulated runs on a plain JVM where no android.* class can be loaded
+ */
+final class BTLog {
+
+	private BTLog() {
+	} // non instantiable
+
+	static void d(String tag, String msg) {
+		if (Utils.isAndroid()) {
+			Log.d(tag, msg);
+		}
+		// debug output is dropped off Android
+	}
+
+	static void i(String tag, String msg) {
+		if (Utils.isAndroid()) {
+			Log.i(tag, msg);
+		}
+		else {
+			System.err.println("I/" + tag + ": " + msg);
+		}
+	}
+
+	static void e(String tag, String msg) {
+		if (Utils.isAndroid()) {
+			Log.e(tag, msg);
+		}
+		else {
+			System.err.println("E/" + tag + ": " + msg);
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Library wide metrics of an engine: counters and histograms, updated with single 
+ * atomic operations (no locks), and exportable as a snapshot in Prometheus text or 
+ * JSON format, see snapshot().
+ *
+ * Built-in metrics cover connects (per failover stage: latency, attempts, successes), 
+ * the SPP and reflection fallbacks, discovery durations, devices per scan and accepts. 
+ * Apps may register their own metrics via counter() and histogram().
+ *
+ * Accessible via BTWizEngine.getMetrics()
+ */
+public class BTMetrics {
+
+	// connect failover stages, see BTWizEngine.connectAsClientAsync()
+	public static final String STAGE_SERVICE = "service";       // the app's or SDP selected UUID
+	public static final String STAGE_SPP = "spp";               // failover 1
+	public static final String STAGE_REFLECTION = "reflection"; // failover 2
+
+	public static final long[] LATENCY_BUCKETS_MS = { 50, 100, 250, 500, 1000, 2500, 5000, 10000, 20000, 30000, 60000 };
+	public static final long[] COUNT_BUCKETS = { 0, 1, 2, 5, 10, 20, 50, 100, 200 };
+
+
+	private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+	// built-in metrics
+	final Counter connects = counter("btwiz_connects_total", "connectAsClientAsync calls");
+	final Counter connectSuccesses = counter("btwiz_connect_successes_total", "connectAsClientAsync calls which connected");
+	final Counter connectFailures = counter("btwiz_connect_failures_total", "connectAsClientAsync calls which failed, timeouts included");
+	final Counter connectTimeouts = counter("btwiz_connect_timeouts_total", "connectAsClientAsync calls which hit the overall timeout");
+	final Histogram connectLatency = histogram("btwiz_connect_latency_ms", "connectAsClientAsync duration, queueing included", LATENCY_BUCKETS_MS);
+	final Counter sppFallbacks = counter("btwiz_connect_spp_fallbacks_total", "Connects falling over to the SPP UUID");
+	final Counter reflectionFallbacks = counter("btwiz_connect_reflection_fallbacks_total", "Connects falling over to createRfcommSocket via reflection");
+	final Counter discoveries = counter("btwiz_discoveries_total", "Discovery sessions");
+	final Histogram discoveryDuration = histogram("btwiz_discovery_duration_ms", "Discovery session duration", LATENCY_BUCKETS_MS);
+	final Histogram devicesPerScan = histogram("btwiz_discovery_devices", "Devices found per discovery session", COUNT_BUCKETS);
+	final Counter accepts = counter("btwiz_accepts_total", "Accepted incoming connections");
+	final Counter acceptRejects = counter("btwiz_accept_rejects_total", "Accepted connections rejected by BTServer admission control");
+	private final StageMetrics serviceStage = new StageMetrics(STAGE_SERVICE, null);
+	private final StageMetrics sppStage = new StageMetrics(STAGE_SPP, sppFallbacks);
+	private final StageMetrics reflectionStage = new StageMetrics(STAGE_REFLECTION, reflectionFallbacks);
+
+
+	/**
+	 * Returns the counter of the given name, creating it if needed
+	 */
+	public Counter counter(String name, String help) {
+		return counter(name, help, null, null);
+	}
+
+	/**
+	 * Returns the counter of the given name and label (e.g. "stage", "spp"), creating it if needed
+	 */
+	public Counter counter(String name, String help, String labelName, String labelValue) {
+		Metric metric = getOrAdd(new Counter(name, help, labelName, labelValue));
+		if (!(metric instanceof Counter)) {
+			throw new RuntimeException("Metric " + name + " is not a counter!");
+		}
+		return (Counter)metric;
+	}
+
+	/**
+	 * Returns the histogram of the given name, creating it if needed. 
+	 * bucketBounds are the bucket upper bounds, ascending
+	 */
+	public Histogram histogram(String name, String help, long[] bucketBounds) {
+		return histogram(name, help, bucketBounds, null, null);
+	}
+
+	/**
+	 * Returns the histogram of the given name and label, creating it if needed
+	 */
+	public Histogram histogram(String name, String help, long[] bucketBounds, String labelName, String labelValue) {
+		Metric metric = getOrAdd(new Histogram(name, help, bucketBounds, labelName, labelValue));
+		if (!(metric instanceof Histogram)) {
+			throw new RuntimeException("Metric " + name + " is not a histogram!");
+		}
+		return (Histogram)metric;
+	}
+
+	private Metric getOrAdd(Metric metric) {
+		Metric prior = metrics.putIfAbsent(metric.key(), metric);
+		return prior != null ? prior : metric;
+	}
+
+
+	/**
+	 * Records a connect attempt at a failover stage. Attempts at the SPP and reflection 
+	 * stages also count as fallbacks
+	 */
+	void recordConnectAttempt(String stage, long latencyMs, boolean connected) {
+		StageMetrics metrics;
+		if (STAGE_SERVICE.equals(stage)) {
+			metrics = serviceStage;
+		}
+		else if (STAGE_SPP.equals(stage)) {
+			metrics = sppStage;
+		}
+		else if (STAGE_REFLECTION.equals(stage)) {
+			metrics = reflectionStage;
+		}
+		else {
+			throw new RuntimeException("Bad connect stage!");
+		}
+		metrics.attempts.increment();
+		if (metrics.fallbacks != null) {
+			metrics.fallbacks.increment();
+		}
+		if (connected) {
+			metrics.successes.increment();
+		}
+		metrics.latency.record(latencyMs);
+	}
+
+
+	/**
+	 * Records a completed discovery session
+	 */
+	void recordDiscovery(long durationMs, int numDevices) {
+		discoveries.increment();
+		discoveryDuration.record(durationMs);
+		devicesPerScan.record(numDevices);
+	}
+
+
+	/**
+	 * Returns an immutable snapshot of all metrics
+	 */
+	public MetricsSnapshot snapshot() {
+		List<MetricsSnapshot.Sample> samples = new ArrayList<MetricsSnapshot.Sample>(metrics.size());
+		for (Metric metric: metrics.values()) {
+			samples.add(metric.sample());
+		}
+		return new MetricsSnapshot(System.currentTimeMillis(), samples);
+	}
+
+	/**
+	 * Resets all metrics to zero
+	 */
+	public void reset() {
+		for (Metric metric: metrics.values()) {
+			metric.reset();
+		}
+	}
+
+
+	/**
+	 * The metrics of a connect failover stage, created once
+	 */
+	private class StageMetrics {
+		final Counter attempts;
+		final Counter successes;
+		final Histogram latency;
+		final Counter fallbacks; // null for the first stage
+
+		StageMetrics(String stage, Counter fallbacks) {
+			this.fallbacks = fallbacks;
+			attempts = counter("btwiz_connect_stage_attempts_total", "Connect attempts per failover stage", "stage", stage);
+			successes = counter("btwiz_connect_stage_successes_total", "Successful connect attempts per failover stage", "stage", stage);
+			latency = histogram("btwiz_connect_stage_latency_ms", "Connect attempt duration per failover stage", 
+					LATENCY_BUCKETS_MS, "stage", stage);
+		}
+	}
+
+
+	/**
+	 * A named, optionally labeled metric
+	 */
+	abstract static class Metric {
+		final String name;
+		final String help;
+		final String labelName;  // null if unlabeled
+		final String labelValue;
+
+		Metric(String name, String help, String labelName, String labelValue) {
+			if (name==null || (labelName==null) != (labelValue==null)) {
+				throw new RuntimeException("Bad metric params!");
+			}
+			this.name = name;
+			this.help = help;
+			this.labelName = labelName;
+			this.labelValue = labelValue;
+		}
+
+		String key() {
+			return labelName == null ? name : name + "{" + labelName + "=" + labelValue + "}";
+		}
+
+		abstract MetricsSnapshot.Sample sample();
+		abstract void reset();
+	}
+
+
+	/**
+	 * A monotonically increasing count
+	 */
+	public static class Counter extends Metric {
+		private final AtomicLong value = new AtomicLong();
+
+		Counter(String name, String help, String labelName, String labelValue) {
+			super(name, help, labelName, labelValue);
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		@Override
+		MetricsSnapshot.Sample sample() {
+			return new MetricsSnapshot.Sample(name, help, labelName, labelValue, value.get());
+		}
+
+		@Override
+		void reset() {
+			value.set(0);
+		}
+	}
+
+
+	/**
+	 * A distribution of values over fixed buckets, plus their count, sum and max
+	 */
+	public static class Histogram extends Metric {
+		private final long[] bounds;
+		private final AtomicLongArray buckets; // last bucket: above all bounds
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name, String help, long[] bounds, String labelName, String labelValue) {
+			super(name, help, labelName, labelValue);
+			if (bounds==null || bounds.length == 0) {
+				throw new RuntimeException("Bad histogram bounds!");
+			}
+			for (int i = 1; i < bounds.length; i++) {
+				if (bounds[i] <= bounds[i - 1]) {
+					throw new RuntimeException("Histogram bounds must ascend!");
+				}
+			}
+			this.bounds = bounds.clone();
+			this.buckets = new AtomicLongArray(bounds.length + 1);
+		}
+
+		public void record(long value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) {
+				i++;
+			}
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long prior;
+			while (value > (prior = max.get())) {
+				if (max.compareAndSet(prior, value)) {
+					break;
+				}
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		@Override
+		MetricsSnapshot.Sample sample() {
+			long[] counts = new long[buckets.length()];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+			}
+			return new MetricsSnapshot.Sample(name, help, labelName, labelValue, 
+					bounds, counts, count.get(), sum.get(), max.get());
+		}
+
+		@Override
+		void reset() {
+			for (int i = 0; i < buckets.length(); i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+}
@@ -0,0 +1,435 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import static com.btwiz.library.SecureMode.SECURE;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * A BT server listening on several service UUIDs at once.
+ *
+ * Each service has its own accept thread which only accepts; accepted connections
+ * are handed to IAcceptListener.onNewConnectionAccepted() on a worker pool, so a slow
+ * handler does not delay further accepts.
+ *
+ * Admission control: at most maxConnections accepted sockets may be open at once
+ * (a connection counts until its BTSocket is closed). Beyond that, new connections
+ * are either queued (up to maxQueued) until a slot frees up, or rejected (closed).
+ *
+ * Typical usage:
+ *
+ * 			BTServer server = new BTServer("MyServerName", acceptListener);
+ * 			server.addService(uuid1, SECURE);
+ * 			server.addService(uuid2, INSECURE);
+ * 			server.addService(simulatedEnvironment.listen()); // non-BT transports, e.g. for load tests
+ * 			server.setMaxConnections(7, AdmissionPolicy.QUEUE, 3);
+ * 			server.start();
+ * 			....
+ * 			server.stop();
+ */
+public class BTServer {
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 7; // max active slaves in a piconet
+	public static final int DEFAULT_MAX_QUEUED = 4;
+	public static final int DEFAULT_WORKER_THREADS = 2;
+
+	/**
+	 * What to do with a connection accepted while maxConnections connections are open
+	 */
+	public enum AdmissionPolicy {
+		QUEUE, REJECT;
+	}
+
+
+	private final BTWizEngine engine;
+	private final String name;
+	private final IAcceptListener acceptListener;
+
+	private final Object lock = new Object();
+	private final ArrayList<Service> services = new ArrayList<Service>();
+	private final LinkedList<Accepted> admissionQueue = new LinkedList<Accepted>();
+
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private AdmissionPolicy admissionPolicy = AdmissionPolicy.QUEUE;
+	private int maxQueued = DEFAULT_MAX_QUEUED;
+	private int numWorkerThreads = DEFAULT_WORKER_THREADS;
+
+	private ExecutorService acceptThreads;
+	private ExecutorService workers;
+	private boolean running = false;
+	private int activeConnections = 0;
+
+	// stats
+	private long numAccepted = 0;
+	private long numRejected = 0;
+	private long totalAcceptLatencyMs = 0;
+	private long maxAcceptLatencyMs = 0;
+
+
+	public BTServer(String name, IAcceptListener acceptListener) {
+		this(BTWiz.getDefaultEngine(), name, acceptListener);
+	}
+
+	public BTServer(BTWizEngine engine, String name, IAcceptListener acceptListener) {
+		if (engine==null || name==null || acceptListener==null) {
+			throw new RuntimeException("Bad BTServer params!");
+		}
+		this.engine = engine;
+		this.name = name;
+		this.acceptListener = acceptListener;
+	}
+
+
+	/**
+	 * Adds a service to listen on. If the server is running, listening starts immediately
+	 */
+	public void addService(UUID serviceUuid, SecureMode secureMode) {
+		if (serviceUuid==null || secureMode==null) {
+			throw new RuntimeException("Bad service params!");
+		}
+		Service service = new Service(serviceUuid, secureMode);
+		synchronized (lock) {
+			services.add(service);
+			if (running) {
+				startService(service);
+			}
+		}
+	}
+
+	/**
+	 * Adds a service listening on a non-BT transport, e.g. a simulated one (see 
+	 * com.btwiz.library.sim). If the server is running, listening starts immediately
+	 */
+	public void addService(IBTServerTransport serverTransport) {
+		if (serverTransport==null) {
+			throw new RuntimeException("Bad service params!");
+		}
+		Service service = new Service(serverTransport);
+		synchronized (lock) {
+			services.add(service);
+			if (running) {
+				startService(service);
+			}
+		}
+	}
+
+	/**
+	 * Sets the admission control limits
+	 */
+	public void setMaxConnections(int maxConnections, AdmissionPolicy admissionPolicy, int maxQueued) {
+		if (maxConnections < 1 || admissionPolicy==null || maxQueued < 0) {
+			throw new RuntimeException("Bad admission params!");
+		}
+		synchronized (lock) {
+			this.maxConnections = maxConnections;
+			this.admissionPolicy = admissionPolicy;
+			this.maxQueued = maxQueued;
+		}
+	}
+
+	/**
+	 * Sets the number of threads running onNewConnectionAccepted(). Must be called before start()
+	 */
+	public void setWorkerThreads(int numWorkerThreads) {
+		if (numWorkerThreads < 1) {
+			throw new RuntimeException("Bad number of worker threads!");
+		}
+		synchronized (lock) {
+			this.numWorkerThreads = numWorkerThreads;
+		}
+	}
+
+
+	/**
+	 * Starts listening on all services added so far
+	 */
+	public void start() {
+		synchronized (lock) {
+			for (Service service: services) {
+				if (service.uuid != null) {
+					engine.getBluetoothAdapter(); // asserts initialized
+					break;
+				}
+			}
+			if (running) {
+				return;
+			}
+			running = true;
+			acceptThreads = Executors.newCachedThreadPool(new BTExecutors.NamedThreadFactory("BTWiz-accept"));
+			workers = Executors.newFixedThreadPool(numWorkerThreads, new BTExecutors.NamedThreadFactory("BTWiz-server-worker"));
+			for (Service service: services) {
+				startService(service);
+			}
+		}
+		engine.registerServer(this);
+	}
+
+	/**
+	 * Stops listening on all services and closes queued (not yet handled) connections.
+	 * Connections already handed to the accept listener are left open
+	 */
+	public void stop() {
+		ArrayList<Accepted> dropped;
+		synchronized (lock) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			for (Service service: services) {
+				service.close();
+			}
+			dropped = new ArrayList<Accepted>(admissionQueue);
+			admissionQueue.clear();
+			acceptThreads.shutdown();
+			workers.shutdown();
+			acceptThreads = null;
+			workers = null;
+		}
+		for (Accepted accepted: dropped) {
+			accepted.socket.close();
+		}
+		engine.unregisterServer(this);
+	}
+
+	public boolean isRunning() {
+		synchronized (lock) {
+			return running;
+		}
+	}
+
+
+	/**
+	 * Returns a snapshot of the server statistics
+	 */
+	public ServerStats getStats() {
+		synchronized (lock) {
+			long avgLatency = numAccepted == 0 ? 0 : totalAcceptLatencyMs / numAccepted;
+			return new ServerStats(numAccepted, numRejected, activeConnections, admissionQueue.size(),
+					avgLatency, maxAcceptLatencyMs);
+		}
+	}
+
+
+	/**
+	 * Caller must hold lock
+	 */
+	private void startService(final Service service) {
+		acceptThreads.execute(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop(service);
+			}
+		});
+	}
+
+	private void acceptLoop(Service service) {
+		try {
+			service.open(engine, name);
+		}
+		catch (IOException e) {
+			BTLog.e("BTServer", "listenUsingRfcomm error for " + service + ": " + e);
+			engine.getTrace().record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, e);
+			acceptListener.onError(e, "createBTServerSocket");
+			return;
+		}
+
+		while (isRunning()) {
+			BTSocket sock;
+			try {
+				sock = service.accept(engine, engine.getAutoOpenSocketStreams()); // returns a connected socket
+			}
+			catch (IOException e) {
+				if (isRunning()) {
+					BTLog.e("BTServer", "Socket accept error for " + service + ": " + e);
+					engine.getTrace().record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, e);
+					acceptListener.onError(e, "accept");
+				}
+				break; // exit accept loop
+			}
+			if (sock == null) {
+				continue; // accept() failed; retry
+			}
+			onAccepted(new Accepted(sock));
+		}
+		service.close();
+	}
+
+	private void onAccepted(Accepted accepted) {
+		engine.getMetrics().accepts.increment();
+		engine.getTrace().record(BTTrace.Event.ACCEPTED, BTTrace.NO_SPAN, accepted.socket.getConnectionId(), null);
+		engine.getEventBus().publish(ConnectionEvent.Type.CONNECTED, accepted.socket, null, "accept");
+		String rejectReason = null;
+		synchronized (lock) {
+			if (!running) {
+				rejectReason = "server stopped";
+			}
+			else if (activeConnections < maxConnections) {
+				activeConnections++;
+				dispatchLocked(accepted);
+			}
+			else if (admissionPolicy == AdmissionPolicy.QUEUE && admissionQueue.size() < maxQueued) {
+				admissionQueue.addLast(accepted);
+			}
+			else {
+				rejectReason = "max connections reached";
+			}
+			if (rejectReason != null) {
+				numRejected++; // same count as the acceptRejects metric
+			}
+		}
+		if (rejectReason != null) {
+			engine.getMetrics().acceptRejects.increment();
+			BTLog.i("BTServer", "Connection rejected: " + rejectReason);
+			accepted.socket.close();
+		}
+	}
+
+	/**
+	 * Hands a connection to the worker pool. Caller must hold lock and have reserved a connection slot
+	 */
+	private void dispatchLocked(final Accepted accepted) {
+		accepted.socket.addCloseHook(new Runnable() {
+			@Override
+			public void run() {
+				onConnectionClosed();
+			}
+		});
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				long latency = System.currentTimeMillis() - accepted.acceptedAt;
+				synchronized (lock) {
+					numAccepted++;
+					totalAcceptLatencyMs += latency;
+					maxAcceptLatencyMs = Math.max(maxAcceptLatencyMs, latency);
+				}
+				try {
+					acceptListener.onNewConnectionAccepted(accepted.socket);
+				}
+				catch (RuntimeException e) {
+					BTLog.e("BTServer", "Accept handler error: " + e);
+					accepted.socket.close();
+				}
+			}
+		});
+	}
+
+	private void onConnectionClosed() {
+		synchronized (lock) {
+			activeConnections--;
+			if (running && !admissionQueue.isEmpty()) {
+				activeConnections++;
+				dispatchLocked(admissionQueue.removeFirst());
+			}
+		}
+	}
+
+
+	/**
+	 * A single listened-on service: an RFCOMM service UUID, or a non-BT server transport
+	 */
+	private static class Service {
+		final UUID uuid;                        // null for a non-BT service
+		final SecureMode secureMode;
+		final IBTServerTransport serverTransport; // null for an RFCOMM service
+		private volatile BluetoothServerSocket serverSocket;
+
+		Service(UUID uuid, SecureMode secureMode) {
+			this.uuid = uuid;
+			this.secureMode = secureMode;
+			this.serverTransport = null;
+		}
+
+		Service(IBTServerTransport serverTransport) {
+			this.uuid = null;
+			this.secureMode = null;
+			this.serverTransport = serverTransport;
+		}
+
+		void open(BTWizEngine engine, String name) throws IOException {
+			if (serverTransport != null) {
+				return; // already listening
+			}
+			BluetoothAdapter adapter = engine.getBluetoothAdapter();
+			if (secureMode == SECURE) {
+				serverSocket = adapter.listenUsingRfcommWithServiceRecord(name, uuid);
+			}
+			else { // INSECURE
+				serverSocket = adapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid);
+			}
+		}
+
+		/**
+		 * Returns a connected socket, or null if accept failed
+		 */
+		BTSocket accept(BTWizEngine engine, boolean autoOpenStreams) throws IOException {
+			if (serverTransport != null) {
+				IBTTransport transport = serverTransport.accept();
+				return transport == null ? null : new BTSocket(engine, transport, autoOpenStreams);
+			}
+			BluetoothServerSocket s = serverSocket;
+			if (s == null) {
+				throw new IOException("Server socket closed");
+			}
+			BluetoothSocket sock = s.accept();
+			return sock == null ? null : new BTSocket(engine, sock, autoOpenStreams);
+		}
+
+		void close() {
+			if (serverTransport != null) {
+				serverTransport.close();
+				return;
+			}
+			BluetoothServerSocket s = serverSocket;
+			serverSocket = null;
+			if (s != null) {
+				try {
+					s.close(); // thread safe; unblocks accept()
+				}
+				catch (Exception e) {
+					// no op
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return uuid != null ? uuid.toString() : serverTransport.toString();
+		}
+	}
+
+	/**
+	 * An accepted connection and its accept time
+	 */
+	private static class Accepted {
+		final BTSocket socket;
+		final long acceptedAt = System.currentTimeMillis();
+
+		Accepted(BTSocket socket) {
+			this.socket = socket;
+		}
+	}
+}
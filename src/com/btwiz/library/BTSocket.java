@@ -18,47 +18,82 @@ package com.btwiz.library;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.util.Log;
 
 
 /**
  * Encapsulates BluetoothSocket, taking care of stream opening,   
- * registering for cleanup and closing upon error 
+ * registering for cleanup and closing upon error.
+ * May also run over any other IBTTransport, e.g. a simulated link 
  */
 public class BTSocket {
 
+	public static final long NO_TIMEOUT = 0;
+
 	private static final boolean READ_ONCE = true; 
 
+	// connect outcomes 
+	private static final int CONNECT_PENDING = 0;
+	private static final int CONNECT_DONE = 1;
+	private static final int CONNECT_TIMED_OUT = 2;
+
+	private static final AtomicLong connectionIdCounter = new AtomicLong();
+
 	
-	private BluetoothSocket socket;
+	private BluetoothSocket socket;     // null over a non-BT transport
+	private IBTTransport transport;
 	private InputStream inStream;
 	private OutputStream outStream;	
 	private final boolean autoOpenStreams;
 
-	private static ExecutorService readThread;  
-	private static ExecutorService writeThread;
+	private final BTWizEngine engine;
+	private final long connectionId = connectionIdCounter.incrementAndGet();
+	private final String remoteAddress;
 
-	private static final Object readThreadLock = new Object();
-	private static final Object writeThreadLock = new Object();
+	private final ArrayList<Runnable> closeHooks = new ArrayList<Runnable>();
+	private boolean closed = false;
 
 
 	public BTSocket(BluetoothSocket socket, boolean autoOpenStreams) {
-		if (socket==null) {
-			throw new RuntimeException("BluetoothSocket param cannot be null!");
+		this(BTWiz.getDefaultEngine(), socket, autoOpenStreams);
+	}
+
+	/**
+	 * Creates a socket owned by (and registered for cleanup with) the given engine
+	 */
+	public BTSocket(BTWizEngine engine, BluetoothSocket socket, boolean autoOpenStreams) {
+		this(engine, socket, socket == null ? null : new BluetoothSocketTransport(socket), autoOpenStreams);
+	}
+
+	/**
+	 * Creates a socket over a non-BT transport (e.g. a simulated link), owned by the given engine
+	 */
+	public BTSocket(BTWizEngine engine, IBTTransport transport, boolean autoOpenStreams) {
+		this(engine, null, transport, autoOpenStreams);
+	}
+
+	private BTSocket(BTWizEngine engine, BluetoothSocket socket, IBTTransport transport, boolean autoOpenStreams) {
+		if (transport==null || engine==null) {
+			throw new RuntimeException("BluetoothSocket and engine params cannot be null!");
 		}
+		this.engine = engine;
 		this.autoOpenStreams = autoOpenStreams;
 		this.socket = socket;
-		BTWiz.registerForCleanup(this);
+		this.transport = transport;
+		this.remoteAddress = transport.getRemoteAddress();
+		engine.registerForCleanup(this);
 	}
 
 	/**
-	 * Getter for the raw BluetoothSocket inner obj   
+	 * Getter for the raw BluetoothSocket inner obj (null over a non-BT transport)  
 	 */
 	public BluetoothSocket getBluetoothSocket() {
 		return socket;
@@ -92,19 +127,21 @@ public class BTSocket {
 			return;
 		}
 		try {
-			inStream = socket.getInputStream();
+			inStream = transport.getInputStream();
 		} 
 		catch (IOException e) {
-			Log.e("BTSocket", "Error at getInputStream: " + e); 
+			BTLog.e("BTSocket", "Error at getInputStream: " + e); 
+			engine.getTrace().record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, connectionId, e);
 			close();
 			throw new IOException("getInputStream");
 		}			
 
 		try {
-			outStream = socket.getOutputStream();
+			outStream = transport.getOutputStream();
 		} 
 		catch (IOException e) { 				
-			Log.e("BTSocket", "Error at getOutputStream: " + e);
+			BTLog.e("BTSocket", "Error at getOutputStream: " + e);
+			engine.getTrace().record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, connectionId, e);
 			close();
 			throw new IOException("getOutputStream");
 		}			            
@@ -144,13 +181,7 @@ public class BTSocket {
 	 */
 	public void readAsync(final byte[] buffer, final int offset, final int length, 
 			final boolean readOnce, final IReadListener readListener) { 
-		synchronized (readThreadLock) {
-			if (readThread==null) {
-				readThread = Executors.newSingleThreadExecutor();
-				Log.e("BTSocket", "readThread created");
-			}
-		}		
-		readThread.execute(new Runnable() {				
+		engine.getExecutors().getReadExecutor().execute(new Runnable() {				
 			@Override
 			public void run() {
 				int totalNumBytes = 0;
@@ -170,8 +201,9 @@ public class BTSocket {
 						// else -- go on
 					} 
 					catch (IOException e) {
-						e.printStackTrace();
-						Log.e("BTSocket", "read error: " + e);
+						BTLog.e("BTSocket", "read error: " + e);
+						engine.getTrace().record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, connectionId, e);
+						engine.getEventBus().publish(ConnectionEvent.Type.ERROR, BTSocket.this, e, "read");
 						if (readListener != null) {
 							readListener.onError(totalNumBytes, e);
 						}
@@ -280,13 +312,7 @@ public class BTSocket {
 	 */
 	public void writeAsync(final byte[] buffer, final int offset, 
 			final int count, final IWriteListener writeListener) { 
-		synchronized (writeThreadLock) {
-			if (writeThread==null) {
-				writeThread = Executors.newSingleThreadExecutor();
-				Log.e("BTSocket", "writeThread created");
-			}
-		}		
-		writeThread.execute(new Runnable() {				
+		engine.getExecutors().getWriteExecutor().execute(new Runnable() {				
 			@Override
 			public void run() {
 				try {
@@ -294,8 +320,9 @@ public class BTSocket {
 					writeListener.onSuccess();
 				} 
 				catch (IOException e) {
-					e.printStackTrace();
-					Log.e("BTSocket", "write error: " + e);
+					BTLog.e("BTSocket", "write error: " + e);
+					engine.getTrace().record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, connectionId, e);
+					engine.getEventBus().publish(ConnectionEvent.Type.ERROR, BTSocket.this, e, "write");
 					if (writeListener != null) {
 						writeListener.onError(e);
 					}
@@ -306,88 +333,219 @@ public class BTSocket {
 
 		 
 	/**
-	 * Attempt to connect to a remote BT device (blocking).
-	 * Note that this method will cancel a running discovery session, if any. 
+	 * Attempt to connect to a remote BT device (blocking), within the engine's 
+	 * connect attempt timeout (see BTWizEngine.setConnectTimeouts())
 	 */
 	public void connect(Context context) throws IOException {
-		BTWiz.cancelDiscovery(context); //!
-		Log.i("BTSocket", "connecting.."); 		 		
+		connect(context, engine.getConnectAttemptTimeout());
+	}
+
+	/**
+	 * Attempt to connect to a remote BT device (blocking).
+	 * If not connected within timeoutMs (NO_TIMEOUT: wait indefinitely) the socket 
+	 * is force-closed and a ConnectTimeoutException is thrown.
+	 * Publishes CONNECTING and then CONNECTED or ERROR events.
+	 * Note that a running discovery session, if any, is paused for the duration of 
+	 * the connect and resumed afterwards (see RadioScheduler) 
+	 */
+	public void connect(Context context, long timeoutMs) throws IOException {
+		BTTrace trace = engine.getTrace();
+		trace.record(BTTrace.Event.SOCKET_CONNECTING, BTTrace.NO_SPAN, connectionId, null);
 		boolean success = false;
+		final IBTTransport rawSocket = transport;
+		final AtomicInteger outcome = new AtomicInteger(CONNECT_PENDING);
+		ScheduledFuture<?> deadline = null;
+		ConnectionEventBus eventBus = engine.getEventBus();
+		eventBus.publish(ConnectionEvent.Type.CONNECTING, this, null, "connect");
+		if (timeoutMs > 0) {
+			// tracked by the shared timer; closing the raw socket aborts a blocked connect()
+			deadline = engine.getExecutors().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (outcome.compareAndSet(CONNECT_PENDING, CONNECT_TIMED_OUT)) {
+						BTLog.e("BTSocket", "connect deadline expired; force closing");
+						try {
+							rawSocket.close();
+						} catch (Exception e) {
+							// no op
+						}
+					}
+				}
+			}, timeoutMs);
+		}
+		engine.beginConnect(); // You should always ensure that the device is not performing device discovery when you call connect()
 		try { 
-			BTWiz.markConnecting(true);
-			socket.connect();
+			try {
+				rawSocket.connect();
+			}
+			catch (IOException e) {
+				if (outcome.get() != CONNECT_TIMED_OUT) {
+					throw e;
+				}
+			}
+			if (!outcome.compareAndSet(CONNECT_PENDING, CONNECT_DONE)) { // timed out
+				close();
+				throw new ConnectTimeoutException("Connect timed out after " + timeoutMs + "ms");
+			}
 			success = true;
+			eventBus.publish(ConnectionEvent.Type.CONNECTED, this, null, "connect");
+		}
+		catch (IOException e) {
+			trace.record(BTTrace.Event.SOCKET_CONNECT_ERROR, BTTrace.NO_SPAN, connectionId, e);
+			eventBus.publish(ConnectionEvent.Type.ERROR, this, e, "connect");
+			throw e;
 		}
 		finally {
-			BTWiz.markConnecting(false); 
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+			engine.endConnect(); 
 			if (success) {
-				Log.i("BTSocket", "connect success");				
+				trace.record(BTTrace.Event.SOCKET_CONNECTED, BTTrace.NO_SPAN, connectionId, null);
 			}
 			else {
-				Log.e("BTSocket", "connect failure");				
+				BTLog.e("BTSocket", "connect failure");				
 			}
 		}
 	}
 
 
 	/**
-	 * Asynchronously attempt to connect to a remote BT device (blocking).
-	 * Note that this method will cancel a running discovery session, if any. 
+	 * Asynchronously attempt to connect to a remote BT device, within the engine's 
+	 * connect attempt timeout (see BTWizEngine.setConnectTimeouts()).
+	 * Runs on the library's executor, subject to the concurrent connects cap.
+	 * Note that a running discovery session, if any, is paused for the duration of the connect 
 	 */
 	public void connectAsync(final Context context, final IConnectListener connectListener) {
-		Log.i("BTSocket", "connectAsync");
-		new Thread() {
+		connectAsync(context, connectListener, engine.getConnectAttemptTimeout());
+	}
+
+	/**
+	 * Asynchronously attempt to connect to a remote BT device. 
+	 * timeoutMs is counted from this call, i.e. includes time queued for the connects cap; 
+	 * on expiry the socket is force-closed and onError() gets a ConnectTimeoutException  
+	 */
+	public void connectAsync(final Context context, final IConnectListener connectListener, long timeoutMs) {
+		final long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : NO_TIMEOUT;
+		BTExecutors.ConnectTask connectTask = new BTExecutors.ConnectTask() {
+			@Override
 			public void run() {
 				try {
-					connect(context);
+					long remaining = NO_TIMEOUT;
+					if (deadline != NO_TIMEOUT) {
+						remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							close();
+							ConnectTimeoutException e = new ConnectTimeoutException("Connect timed out while queued");
+							engine.getTrace().record(BTTrace.Event.SOCKET_CONNECT_ERROR, BTTrace.NO_SPAN, connectionId, e);
+							throw e;
+						}
+					}
+					connect(context, remaining);
 					connectListener.onSuccess();
 				} catch (IOException e) {
-					e.printStackTrace();
 					connectListener.onError(e);
 				}
 			}
-		}.start();		
+			@Override
+			public void onRejected(RejectedExecutionException e) {
+				BTLog.e("BTSocket", "Queued connect rejected: " + e);
+				connectListener.onError(new IOException("Connect rejected: " + e.getMessage()));
+			}
+		};
+		try {
+			engine.getExecutors().executeConnect(connectTask);
+		}
+		catch (RejectedExecutionException e) {
+			BTLog.e("BTSocket", "Connect rejected: " + e);
+			connectListener.onError(new IOException("Connect rejected: " + e.getMessage()));
+		}
 	}
 
 
 	/**
-	 * Closes socket releasing all attached system resources
+	 * Closes socket releasing all attached system resources.
+	 * Publishes a DISCONNECTED event on the first call
 	 */
 	public void close() {
-		if (socket != null) {
+		if (transport != null) {
 			try {
-				socket.close();
+				transport.close();
 			} catch (Exception e) { 
 				// no op
 			}
+			transport = null;
 			socket = null;
 		}
 		inStream = null;
 		outStream = null;
+		if (runCloseHooks()) {
+			engine.getTrace().record(BTTrace.Event.SOCKET_CLOSED, BTTrace.NO_SPAN, connectionId, null);
+			engine.getEventBus().publish(ConnectionEvent.Type.DISCONNECTED, this, null, "close");
+		}
 	}
 
-	
-	static void closeIOThreads() {
-		synchronized (writeThreadLock) {
-			if (writeThread != null) {
-				try { writeThread.shutdown(); } catch(Exception e) {}
-				writeThread = null;
+	/**
+	 * Registers a library internal hook activated (once) when this socket is closed.
+	 * Activated immediately if the socket is already closed
+	 */
+	void addCloseHook(Runnable hook) {
+		synchronized (closeHooks) {
+			if (!closed) {
+				closeHooks.add(hook);
+				return;
 			}
 		}
-		synchronized (readThreadLock) {
-			if (readThread != null) {
-				try { readThread.shutdown(); } catch(Exception e) {}
-				readThread = null;
+		hook.run();
+	}
+
+	/**
+	 * Returns false if already activated
+	 */
+	private boolean runCloseHooks() {
+		ArrayList<Runnable> hooks;
+		synchronized (closeHooks) {
+			if (closed) {
+				return false;
 			}
-		}		
-		
+			closed = true;
+			hooks = new ArrayList<Runnable>(closeHooks);
+			closeHooks.clear();
+		}
+		for (Runnable hook: hooks) {
+			hook.run();
+		}
+		return true;
+	}
+
+	
+	/**
+	 * Getter for the engine owning this socket
+	 */
+	public BTWizEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Getter for the process wide unique id of this connection
+	 */
+	public long getConnectionId() {
+		return connectionId;
 	}
 
 	/**
-	 * Get remote device object
+	 * Getter for the remote device address. Unlike getRemoteDevice() valid after close() 
+	 */
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Get remote device object (null over a non-BT transport)
 	 */
 	public BluetoothDevice getRemoteDevice() {
-		return socket.getRemoteDevice(); 
+		BluetoothSocket s = socket;
+		return s == null ? null : s.getRemoteDevice(); 
 	}
 
 	
@@ -395,14 +553,14 @@ public class BTSocket {
 	 * Get remote device name
 	 */
 	public String getName() {
-		return socket.getRemoteDevice().getName();
+		return getRemoteSnapshot().getName();
 	}
 
 	/**
 	 * Get remote device major number
 	 */
 	public int getDeviceMajor() {
-		int major = socket.getRemoteDevice().getBluetoothClass().getMajorDeviceClass();
+		int major = getRemoteSnapshot().getMajorDeviceClass();
 		return major;
 	}
 
@@ -411,9 +569,26 @@ public class BTSocket {
 	 * Get remote device major string (e.g. PHONE)
 	 */
 	public String getDeviceMajorAsString() {
-		int major = socket.getRemoteDevice().getBluetoothClass().getMajorDeviceClass();
+		int major = getRemoteSnapshot().getMajorDeviceClass();
 		String majorStr = Utils.majorToString(major);
 		return majorStr;
 	}
+
+	
+	/**
+	 * Get the cached snapshot of the remote device (no IPC once known), see BTWizEngine.getDeviceSnapshot()
+	 */
+	public DeviceSnapshot getRemoteSnapshot() {
+		BluetoothDevice device = getRemoteDevice();
+		if (device != null) {
+			return engine.getDeviceSnapshot(device);
+		}
+		DeviceSnapshot cached = remoteAddress == null ? null : engine.getDeviceCache().get(remoteAddress);
+		if (cached != null) {
+			return cached;
+		}
+		return new DeviceSnapshot(remoteAddress, null, DeviceSnapshot.NO_DEVICE_CLASS, 
+				DeviceSnapshot.NO_RSSI, DeviceSnapshot.NEVER_SEEN);
+	}
 	
 }
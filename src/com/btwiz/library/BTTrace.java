@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Structured tracing of connect, discovery and I/O flows into a preallocated in-memory 
+ * ring buffer, to be dumped when something goes wrong (see dump(), logDump()).
+ *
+ * Recording builds no strings: a record holds its event, span, connection id and a 
+ * reference to an existing object (an address, an exception...), formatted only when 
+ * dumped. Events above the current level are dropped after a single field read, so 
+ * setLevel(OFF) turns tracing off at no cost.
+ *
+ * A span groups the records of one flow (e.g. a connectAsClientAsync() call and its 
+ * failover stages) across threads; connection ids link a span to its sockets' records.
+ * When the buffer is full the oldest records are overwritten.
+ *
+ * Accessible via BTWizEngine.getTrace()
+ */
+public class BTTrace {
+
+	// levels
+	public static final int OFF = 0;
+	public static final int ERROR = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+
+	public static final int DEFAULT_LEVEL = INFO;
+	public static final int DEFAULT_CAPACITY = 512; // records
+	public static final long NO_SPAN = 0;
+
+	/**
+	 * Traced events and their levels
+	 */
+	public enum Event {
+		CONNECT_BEGIN(INFO),         // arg: remote address 
+		CONNECT_STAGE(INFO),         // arg: failover stage, see BTMetrics.STAGE_*
+		CONNECT_SUCCEEDED(INFO),  
+		CONNECT_FAILED(ERROR),       // arg: exception or where
+		SOCKET_CONNECTING(DEBUG),
+		SOCKET_CONNECTED(DEBUG),
+		SOCKET_CONNECT_ERROR(ERROR), // arg: exception
+		SOCKET_CLOSED(DEBUG),
+		IO_ERROR(ERROR),             // arg: exception
+		ACCEPTED(INFO),
+		DISCOVERY_STARTED(INFO),
+		DEVICE_FOUND(DEBUG),         // arg: remote address
+		DISCOVERY_FINISHED(INFO);    // arg: number of devices found
+
+		final int level;
+
+		Event(int level) {
+			this.level = level;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+	}
+
+
+	private static final AtomicLong spanCounter = new AtomicLong();
+
+	private volatile int level = DEFAULT_LEVEL;
+	private volatile Ring ring = new Ring(DEFAULT_CAPACITY);
+
+
+	/**
+	 * Sets the max level recorded (OFF, ERROR, INFO or DEBUG)
+	 */
+	public void setLevel(int level) {
+		if (level < OFF || level > DEBUG) {
+			throw new RuntimeException("Bad trace level!");
+		}
+		this.level = level;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns true if events of the given level are recorded. Callers computing 
+	 * a record's arg should check this first
+	 */
+	public boolean isOn(int level) {
+		return level <= this.level;
+	}
+
+	/**
+	 * Sets the buffer capacity, rounded up to a power of 2. Clears the buffer
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 1 || capacity > (1 << 20)) {
+			throw new RuntimeException("Bad trace capacity!");
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		ring = new Ring(size);
+	}
+
+	public int getCapacity() {
+		return ring.capacity;
+	}
+
+	/**
+	 * Drops all records
+	 */
+	public void clear() {
+		ring = new Ring(ring.capacity);
+	}
+
+
+	/**
+	 * Returns a new span id, unique library wide
+	 */
+	public long newSpan() {
+		return spanCounter.incrementAndGet();
+	}
+
+	/**
+	 * Records an event not tied to a connection
+	 */
+	public void record(Event event, long span, Object arg) {
+		record(event, span, ConnectionEvent.NO_CONNECTION_ID, arg);
+	}
+
+	/**
+	 * Records an event. span is NO_SPAN and connectionId NO_CONNECTION_ID if irrelevant
+	 */
+	public void record(Event event, long span, long connectionId, Object arg) {
+		if (event.level > level) {
+			return;
+		}
+		ring.add(event, span, connectionId, arg);
+	}
+
+
+	/**
+	 * Returns the buffered records, oldest first
+	 */
+	public List<TraceRecord> getRecords() {
+		return ring.snapshot();
+	}
+
+	/**
+	 * Returns the buffered records, one per line, oldest first
+	 */
+	public String dump() {
+		StringBuilder sb = new StringBuilder();
+		for (TraceRecord record: getRecords()) {
+			sb.append(record).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the buffered records to the log, oldest first
+	 */
+	public void logDump() {
+		List<TraceRecord> records = getRecords();
+		BTLog.i("BTTrace", "Trace dump: " + records.size() + " records");
+		for (TraceRecord record: records) {
+			BTLog.i("BTTrace", record.toString());
+		}
+	}
+
+
+	/**
+	 * Preallocated record slots. Writers claim a slot by sequence number and 
+	 * stamp it when written; readers skip slots being (re)written meanwhile
+	 */
+	private static class Ring {
+		final int capacity;
+		final int mask;
+		final AtomicLong nextSeq = new AtomicLong();
+		final AtomicLongArray stamps; // seq + 1 of the record in the slot; 0 while written
+		final long[] times;
+		final long[] spans;
+		final long[] connectionIds;
+		final Event[] events;
+		final Object[] args;
+		final String[] threads;
+
+		Ring(int capacity) {
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			stamps = new AtomicLongArray(capacity);
+			times = new long[capacity];
+			spans = new long[capacity];
+			connectionIds = new long[capacity];
+			events = new Event[capacity];
+			args = new Object[capacity];
+			threads = new String[capacity];
+		}
+
+		void add(Event event, long span, long connectionId, Object arg) {
+			long seq = nextSeq.getAndIncrement();
+			int i = (int)(seq & mask);
+			stamps.set(i, 0);
+			times[i] = System.currentTimeMillis();
+			spans[i] = span;
+			connectionIds[i] = connectionId;
+			events[i] = event;
+			args[i] = arg;
+			threads[i] = Thread.currentThread().getName();
+			stamps.set(i, seq + 1); // publishes the fields
+		}
+
+		List<TraceRecord> snapshot() {
+			long end = nextSeq.get();
+			long start = Math.max(0, end - capacity);
+			List<TraceRecord> records = new ArrayList<TraceRecord>((int)(end - start));
+			for (long seq = start; seq < end; seq++) {
+				int i = (int)(seq & mask);
+				if (stamps.get(i) != seq + 1) {
+					continue; // not yet written, or overwritten
+				}
+				TraceRecord record = new TraceRecord(seq, times[i], threads[i], events[i], spans[i], 
+						connectionIds[i], args[i]);
+				if (stamps.get(i) == seq + 1) { // not overwritten while read
+					records.add(record);
+				}
+			}
+			return records;
+		}
+	}
+}
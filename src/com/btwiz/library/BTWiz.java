@@ -15,16 +15,12 @@
  *******************************************************************************/
 package com.btwiz.library;
 
-import static com.btwiz.library.DiscoveryStatus.FINISHED;
-import static com.btwiz.library.DiscoveryStatus.NOT_STARTED;
-import static com.btwiz.library.DiscoveryStatus.STARTED;
-import static com.btwiz.library.SecureMode.SECURE;
-
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
@@ -32,13 +28,10 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Build.VERSION_CODES;
 import android.os.ParcelUuid;
-import android.util.Log;
 
 /**
  * The main execution class of library.
@@ -71,38 +64,30 @@ import android.util.Log;
  * 
  * Note the Async notationL: methods which perform background operation are postfix-ed Async
  * 
+ * All static methods delegate to a default BTWizEngine. Components needing isolated 
+ * state (discovery, server sockets, executors, configuration) may create their own engine
+ * 
  * 
  */
 
  
 public class BTWiz {
 		 
-	private static volatile UUID appUuid = UUID.randomUUID();
-	 
-	private static BluetoothAdapter bluetoothAdapter;
-
-	private static volatile DiscoveryStatus discoveryStatus = NOT_STARTED;
-
-	private static BroadcastReceiver discoveryReceiver;
-	
-	private static ArrayList<BluetoothDevice> allDiscoveredDevices;
-	
-	private static final ArrayList<BTSocket> allSockets = new ArrayList<BTSocket>();  
-	
-	private static BluetoothServerSocket btServerSocket;
+	static final UUID DEFAULT_SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 	
-	private static boolean autoOpenSocketStreams = true;
+	private static final BTWizEngine defaultEngine = new BTWizEngine();
 	
-	private static volatile boolean listeningIsOn;
 	
-	private static volatile boolean connectingNow;
-
-	private static volatile boolean protectAgainstDuplicates = false;  
+	private BTWiz() {} // non instantiable
 
-	private static final UUID DEFAULT_SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-	
 	
-	private BTWiz() {} // non instantiable
+	/**
+	 * Getter for the engine all static BTWiz methods delegate to. 
+	 * Components needing isolated state should create their own BTWizEngine 
+	 */
+	public static BTWizEngine getDefaultEngine() {
+		return defaultEngine;
+	}
 
 	
 	/**
@@ -111,7 +96,7 @@ public class BTWiz {
 	 * Not to be used when connecting to an Android peer
 	 */
 	public static void setUuidToSPP() { 
-		setUuid(DEFAULT_SPP_UUID);
+		defaultEngine.setUuidToSPP();
 	}
 
 	
@@ -119,7 +104,7 @@ public class BTWiz {
 	 * If set to true: protect against scan operation returning duplicate device reads
 	 */
 	public static void setProtectAgainstDuplicates(boolean protect) { 
-		protectAgainstDuplicates = protect;
+		defaultEngine.setProtectAgainstDuplicates(protect);
 	}
 
 	
@@ -127,26 +112,74 @@ public class BTWiz {
 	 * Set app UUID to a user defined value 
 	 */
 	public static void setUuid(UUID newVal) {
-		if (newVal==null) {
-			throw new RuntimeException("Cannot use null UUID!");
-		}
-		appUuid = newVal;
+		defaultEngine.setUuid(newVal);
 	}
 
 	/**
 	 * Getter for the UUID used for app BT related actions 
 	 */
 	public static UUID getAppUUID() {
-		return appUuid;
+		return defaultEngine.getAppUUID();
 	}
 	
 	
 	
+	/**
+	 * Use a caller supplied executor for connect and accept work instead of 
+	 * the library's bounded worker pool. Set to null to revert to the library's pool 
+	 */
+	public static void setExecutor(Executor executor) {
+		defaultEngine.setExecutor(executor);
+	}
+
+	
+	/**
+	 * Set the library's worker pool limits: max threads and max queued tasks
+	 */
+	public static void setPoolLimits(int maxThreads, int maxQueuedTasks) {
+		defaultEngine.setPoolLimits(maxThreads, maxQueuedTasks);
+	}
+
+	
+	/**
+	 * Cap the number of concurrently running connects. Further connects are queued (up to maxQueuedConnects)
+	 */
+	public static void setConnectLimits(int maxConcurrentConnects, int maxQueuedConnects) {
+		defaultEngine.setConnectLimits(maxConcurrentConnects, maxQueuedConnects);
+	}
+
+	
+	/**
+	 * Getter for the scheduler arbitrating the radio between discovery and connects
+	 */
+	public static RadioScheduler getRadioScheduler() {
+		return defaultEngine.getRadioScheduler();
+	}
+
+	
+	/**
+	 * Getter for the library's executors
+	 */
+	static BTExecutors getExecutors() {
+		return defaultEngine.getExecutors();
+	}
+	
+	
+	/**
+	 * Set connect deadlines (BTSocket.NO_TIMEOUT for none, the default).
+	 * attemptTimeoutMs bounds a single socket connect, overallTimeoutMs bounds a whole 
+	 * connectAsClientAsync() call including all its failover stages
+	 */
+	public static void setConnectTimeouts(long attemptTimeoutMs, long overallTimeoutMs) {
+		defaultEngine.setConnectTimeouts(attemptTimeoutMs, overallTimeoutMs);
+	}
+
+
 	/**
 	 * Toggle auto opening of inputStream and outputStream for newly acquired BT sockets 
 	 */
 	public static void setAutoOpenSocketStreams(boolean autoOpen) {
-		autoOpenSocketStreams = autoOpen;
+		defaultEngine.setAutoOpenSocketStreams(autoOpen);
 	}
 
 //	/**
@@ -164,39 +197,29 @@ public class BTWiz {
 	 * with BTWiz.enableBTIntent() to allow enabling by the user
 	 */
 	public static boolean isEnabled(Context context) throws DeviceNotSupportBluetooth {
-		init(context);		
-		boolean isEnabled = bluetoothAdapter.isEnabled(); // Equivalent to: getBluetoothState() == STATE_ON 
-		if (!isEnabled) { 
-			Log.e("BTWiz", "BT is not enabled on this device");
-		}
-		return isEnabled;
+		return defaultEngine.isEnabled(context);
 	}
 
 	
 	/**
 	 * Looks for a BT device passing IDeviceComparator.match()
 	 * If a BondedDevice is found it is used.
+	 * Else, a device recently seen by discovery (see getDeviceCache()) is used.
 	 * If no, and discoverIfNeeded==true, a discovery procedure is initiated
 	 */
 	public static void lookupDeviceAsync(Context context, IDeviceComparator comparator,  
 			IDeviceLookupListener lookupListener, boolean discoverIfNeeded) {
-		assertInitialized();
-		
-		// Before performing device discovery, its worth querying the set of 
-		// paired devices to see if the desired device is already known
-		
-		BluetoothDevice device = findBondedDevice(context, comparator);  
-		if (device != null) {
-			lookupListener.onDeviceFound(device, false);
-			return;
-		}		
-		
-		if (discoverIfNeeded) {
-			discoverBTDeviceAsync(context, comparator, lookupListener);
-		}
-		else {
-			lookupListener.onDeviceNotFound(false); 			
-		}
+		defaultEngine.lookupDeviceAsync(context, comparator, lookupListener, discoverIfNeeded);
+	}
+
+
+	/**
+	 * Looks up a device passing comparator and connects to it. A bonded or recently seen 
+	 * device is connected directly; discovery runs only if there is none or the connect fails 
+	 */
+	public static void lookupAndConnectAsync(Context context, IDeviceComparator comparator, 
+			IDeviceConnectionListener connectionListener) {
+		defaultEngine.lookupAndConnectAsync(context, comparator, connectionListener);
 	}
 
 	
@@ -205,24 +228,45 @@ public class BTWiz {
 	 */
 	public static boolean discoverBTDeviceAsync(Context context, 
 			IDeviceComparator comparator, IDeviceLookupListener lookupListener) {
-		assertInitialized();
-		FindAndCompareListener fcListener = new FindAndCompareListener(lookupListener, comparator);    
+		return defaultEngine.discoverBTDeviceAsync(context, comparator, lookupListener);
+	}
 
-		boolean started = startDiscoveryAsync(context, null, fcListener);
-		if (!started) {
-			lookupListener.onDeviceNotFound(false); 
-		}
-		return started;
+
+	/**
+	 * As lookupDeviceAsync(), returning a handle completed with the device found, 
+	 * or with null if none was found
+	 */
+	public static CompletionHandle<BluetoothDevice> lookupDeviceAsync(Context context, IDeviceComparator comparator, 
+			boolean discoverIfNeeded) {
+		return defaultEngine.lookupDeviceAsync(context, comparator, discoverIfNeeded);
+	}
+
+
+	/**
+	 * Runs (or joins) a discovery procedure, returning a handle completed with all devices 
+	 * discovered once it finishes. Fails if discovery could not be started
+	 */
+	public static CompletionHandle<ArrayList<BluetoothDevice>> discoverDevicesAsync(Context context) {
+		return defaultEngine.discoverDevicesAsync(context);
+	}
+
+
+	/**
+	 * As connectAsClientAsync(), returning a handle completed with the connected socket, 
+	 * or failed with the connect error
+	 */
+	public static CompletionHandle<BTSocket> connectAsClientAsync(Context context, BluetoothDevice device) {
+		return defaultEngine.connectAsClientAsync(context, device);
 	}
 
 
 	/**
 	 * Create a secure BT socket and connect to a remote BT device (server). 
-	 * Spawns a dedicated connect thread 
+	 * Runs on the library's executor, subject to the concurrent connects cap 
 	 */
 	public static void connectAsClientAsync(final Context context, final BluetoothDevice device, 
 			final IDeviceConnectionListener connectionListener) {
-		connectAsClientAsync(context, device, connectionListener, SECURE, null);
+		defaultEngine.connectAsClientAsync(context, device, connectionListener);
 	}
 	
 	
@@ -232,66 +276,25 @@ public class BTWiz {
 	 * The secureMode param controls the type of RFC socket created i.e. weather 
 	 * createRfcommSocketToServiceRecord or createInsecureRfcommSocketToServiceRecord services will be called.
 	 *   
-	 * Spawns a dedicated connect thread 
+	 * Runs on the library's executor, subject to the concurrent connects cap.
+	 * Subject to the connect timeouts, see setConnectTimeouts() 
 	 */
 	public static void connectAsClientAsync(final Context context, final BluetoothDevice device, 
 			final IDeviceConnectionListener connectionListener, final SecureMode secureMode, final UUID user_serviceUuid) {
-		new Thread() {
-			public void run() {
-				boolean connected;
-				BluetoothSocket sock;
-				UUID serviceUuid = user_serviceUuid;
-				if (serviceUuid != null) {
-					sock = createClientSocket(device, connectionListener, secureMode, serviceUuid);
-					if (sock == null) {
-						connectionListener.onConnectionError(null, "createClientSocket");
-						return; // operation failed
-					} 
-					connected = innerConnectAsClient(context, connectionListener, sock);
-					if (!connected) {
-						connectionListener.onConnectionError(null, "ConnectAsClient");
-						return; // operation failed
-					}
-					// else: success
-				}
-				else {
-					UUID[] uuids = getSupportedUuids(context, device);
-					if (uuids != null && uuids.length > 0) {
-						serviceUuid = uuids[0]; 
-						sock = createClientSocket(device, connectionListener, secureMode, serviceUuid);
-						if (sock != null) {
-							connected = innerConnectAsClient(context, connectionListener, sock);
-							if (connected) {
-								return; // success
-							}
-						}
-					}
-					
-					// failover 1: use DEFAULT_SPP_UUID 
-					sock = createClientSocket(device, connectionListener, secureMode, DEFAULT_SPP_UUID);
-					if (sock != null) {
-						connected = innerConnectAsClient(context, connectionListener, sock);
-						if (connected) {
-							return; // success
-						}
-					}
-					
-					// failover 2: use createRfcommSocket via reflection 
-					sock = createRfcommSocketViaReflection(device, secureMode);
-					if (sock == null) {
-						connectionListener.onConnectionError(null, "createRfcommSocket");
-						return; // failed
-					}
-					connected = innerConnectAsClient(context, connectionListener, sock);
-					if (!connected) {
-						connectionListener.onConnectionError(null, "ConnectAsClient");
-						return; // failed
-					}
-					// else: success
-				}				
-			}				
-
-		}.start();
+		defaultEngine.connectAsClientAsync(context, device, connectionListener, secureMode, user_serviceUuid);
+	}
+
+
+	/**
+	 * As above, with explicit deadlines (BTSocket.NO_TIMEOUT for none): attemptTimeoutMs bounds each 
+	 * socket connect, overallTimeoutMs the whole call. On overall expiry onConnectionError() 
+	 * gets a ConnectTimeoutException 
+	 */
+	public static void connectAsClientAsync(final Context context, final BluetoothDevice device, 
+			final IDeviceConnectionListener connectionListener, final SecureMode secureMode, final UUID user_serviceUuid,
+			final long attemptTimeoutMs, long overallTimeoutMs) {
+		defaultEngine.connectAsClientAsync(context, device, connectionListener, secureMode, user_serviceUuid, 
+				attemptTimeoutMs, overallTimeoutMs);
 	}
 	
 	
@@ -317,59 +320,12 @@ public class BTWiz {
 			}
 			return sock;
 		} catch (Exception e) {
-			e.printStackTrace();
-			Log.e("BTWiz", "Activation of createRfcommSocket via reflection failed: " + e);
+			BTLog.e("BTWiz", "Activation of createRfcommSocket via reflection failed: " + e);
 			return null; 
 		}		         
 	}
 
 
-	private static boolean innerConnectAsClient(Context context, IDeviceConnectionListener connectionListener, BluetoothSocket sock) {		
-		BTSocket clientSocket = new BTSocket(sock, autoOpenSocketStreams); 
-		// You should always ensure that the device is not performing device discovery when you call connect().
-		cancelDiscovery(context);								
-		try {
-			// block until success
-			BTWiz.markConnecting(true);
-			clientSocket.connect(context);
-			BTWiz.markConnecting(false);
-			connectionListener.onConnectSuccess(clientSocket);
-			return true; // success
-		} catch (Exception e) {
-			Log.e("BTWiz", "Connect error: " + e);
-			clientSocket.close();
-			//connectionListener.onConnectionError(e, "connect");
-		}		 
-		finally {
-			BTWiz.markConnecting(false);
-		}
-		return false; // failure
-	}
-	
-	private static BluetoothSocket createClientSocket(BluetoothDevice device, IDeviceConnectionListener connectionListener, 
-			SecureMode secureMode, UUID serviceUuid) {
-		BluetoothSocket sock;
-		try {
-			if (secureMode == SECURE) {				
-				sock = device.createRfcommSocketToServiceRecord(serviceUuid);
-			}
-			else { // INSECURE					
-				sock = device.createInsecureRfcommSocketToServiceRecord(serviceUuid);
-			}
-			if (sock == null) {
-				Log.e("BTWiz", "Null socket error after createRfcommSocket" );
-				//connectionListener.onConnectionError(null, "Null socket");
-			}
-			return sock;
-
-		} catch (IOException e) { 
-			Log.e("BTWiz", "Error in createRfcommSocket: " + e);
-			//connectionListener.onConnectionError(e, "createRfcomm");
-			return null;
-		}
-	}
-
-
    	/**
    	 * Returns the supported features (UUIDs) of the remote device (no discovery!)
    	 */
@@ -391,7 +347,7 @@ public class BTWiz {
 			}
 			catch (Exception e) { 
 				// no op
-				Log.e("BTWiz", "Activation of getUuids() via reflection failed: " + e);
+				BTLog.e("BTWiz", "Activation of getUuids() via reflection failed: " + e);
 			}
 		}
 		
@@ -410,10 +366,10 @@ public class BTWiz {
 	/**
 	 * Create a secure-mode BT server, enter an accept loop and listen for BT connections 
 	 * If AcceptMode==MANY: will stay in loop indefinitely  
-	 * Spawns a dedicated connect thread 
+	 * The accept loop occupies one of the library's worker threads 
 	 */
 	public static void listenForConnectionsAsync(final String name, final IAcceptListener acceptListener) {
-		listenForConnectionsAsync(name, acceptListener, SECURE); 
+		defaultEngine.listenForConnectionsAsync(name, acceptListener); 
 	}
 	
 	/**
@@ -423,59 +379,17 @@ public class BTWiz {
 	 * The secureMode param controls the secure mode of the server, i.e. weather listenUsingRfcommWithServiceRecord
 	 * or listenUsingInsecureRfcommWithServiceRecord services will be called.
 	 *    
-	 * Spawns a dedicated connect thread 
+	 * The accept loop occupies one of the library's worker threads 
 	 */
 	public static void listenForConnectionsAsync(final String name, final IAcceptListener acceptListener, final SecureMode secureMode) {
-		listeningIsOn = true;
-		new Thread() {
-			public void run() {
-				try { 
-					createBTServerSocket(name, secureMode);
-				}
-				catch (Exception e) {
-					Log.e("BTWiz", "Socket creation error: " + e);
-					acceptListener.onError(e, "createBTServerSocket");
-					return;
-				}
-				
-				try { 
-					boolean goOn = true;
-					while (listeningIsOn && goOn) {
-						goOn = acceptConnection(acceptListener); 
-					}
-				}
-				finally {
-					closeBTServerSocket();
-				}
-			}
-		}.start();
+		defaultEngine.listenForConnectionsAsync(name, acceptListener, secureMode);
 	}
 
 	/**
 	 * Accepts an incoming BT connection
 	 */ 
 	public static boolean acceptConnection(IAcceptListener acceptListener) {
-		Utils.assertNotUIThread();
-		assertInitialized();
-		BluetoothSocket sock;
-		
-		try {
-			sock = btServerSocket.accept(); // returns a connected socket
-		} catch (IOException e) {
-			Log.e("BTWiz", "Socket accept error: " + e);
-			acceptListener.onError(e, "accept");
-			e.printStackTrace();
-			return false; // exit accept loop
-		}
-
-		if (sock == null) {
-			return true; // accept() failed; re-enter function
-		}
-		
-		BTSocket newConnection = new BTSocket(sock, autoOpenSocketStreams); 
-
-		acceptListener.onNewConnectionAccepted(newConnection);
-		return true; // go on
+		return defaultEngine.acceptConnection(acceptListener);
 	}
 	
 
@@ -483,24 +397,7 @@ public class BTWiz {
 	 * Creates a server socket to be used by the accept thread
 	 */
 	public static void createBTServerSocket(String name, SecureMode secureMode) throws IOException {
-		Utils.assertNotUIThread();
-		assertInitialized();
-		
-		BluetoothServerSocket tmp;
-		btServerSocket = null;
-		try {
-			if (secureMode == SECURE) {
-				tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(name, appUuid);
-			}
-			else { // INSECURE
-				tmp = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(name, appUuid);
-			}
-			btServerSocket = tmp;
-		} catch (IOException e) {
-			Log.e("BTWiz", "listenUsingRfcomm error: " + e);
-			e.printStackTrace();
-			throw e;
-		}		
+		defaultEngine.createBTServerSocket(name, secureMode);
 	}
 
 	/**
@@ -508,12 +405,7 @@ public class BTWiz {
 	 * Should be called once BT usage by the app is completed
 	 */
 	public static void cleanup(Context context) {
-		stopDiscovery(context); //  an application should always call cancelDiscovery() even if it did not directly request a discovery, just to be sure
-		closeBTServerSocket();
-		closeAllOpenSockets();
-		BTSocket.closeIOThreads();
-		bluetoothAdapter = null;
-		allDiscoveredDevices = null;
+		defaultEngine.cleanup(context);
 	}
 
 	
@@ -521,21 +413,7 @@ public class BTWiz {
 	 * Terminate BT listening server session  
 	 */
 	public static void stopListening() {
-		closeBTServerSocket();
-	}
-	
-
-	private static void closeBTServerSocket() {
-		listeningIsOn = false;
-		if (btServerSocket != null) {
-			try { 
-				btServerSocket.close(); // thread safe
-			}
-			catch (Exception e) {
-				// no op
-			}
-			btServerSocket = null;
-		}
+		defaultEngine.stopListening();
 	}
 	
 	
@@ -543,42 +421,57 @@ public class BTWiz {
 	 * Getter for the BluetoothServerSocket (possibly null)
 	 */
 	public static BluetoothServerSocket getBTServerSocket() {
-		return btServerSocket;
+		return defaultEngine.getBTServerSocket();
 	}
 
 	public static boolean startDiscoveryAsync(Context context) {
-		return startDiscoveryAsync(context, null);
+		return defaultEngine.startDiscoveryAsync(context);
 	}
 
 
 	public static boolean startDiscoveryAsync(Context context, Runnable onFinished) {
-		return startDiscoveryAsync(context, onFinished, null);
+		return defaultEngine.startDiscoveryAsync(context, onFinished);
 	}
 
 
 	/**
-	 * Starts a BT discovery procedure  
+	 * Starts a BT discovery procedure, or joins the running one (see DiscoveryCoordinator)  
 	 */
 	public static boolean startDiscoveryAsync(Context context, Runnable onFinished, IDeviceLookupListener foundHandler) {
-		assertInitialized();
-//		if (!PermissionValidator.adminPermissionIsSet(context)) {
-//			Log.e("BTWiz", "App must be granted an android.permission.BLUETOOTH_ADMIN permission!");
-//		}
-		allDiscoveredDevices = new ArrayList<BluetoothDevice>(); 
-		registerDiscoveryReceiver(context, onFinished, foundHandler);
-		
-		// cancel a prior scan, if any
-		cancelDiscovery(context);
-		
-		if (connectingNow) {
-			Log.i("BTWiz", "\n\n\n Performing discovery while connection is in process. This may lead to bad performance.\n\n\n");
-		}
-		boolean started = bluetoothAdapter.startDiscovery(); //async call!
-		if (!started) {
-			unregisterDiscoveryReceiver(context);
-			discoveryStatus = NOT_STARTED;
-		}
-		return started;
+		return defaultEngine.startDiscoveryAsync(context, onFinished, foundHandler);
+	}
+
+
+	/**
+	 * Returns a live view of the devices discovered by the last (possibly still active)  
+	 * discovery procedure, strongest signal first, with their RSSI, class and sighting time  
+	 */
+	public static RankedDeviceView getRankedDiscoveredDevices() {
+		return defaultEngine.getRankedDiscoveredDevices();
+	}
+
+
+	/**
+	 * Returns the bounded store of devices seen by recent discovery procedures (across sessions), 
+	 * e.g. for continuous scanning, see ScanScheduler  
+	 */
+	public static DiscoveredDeviceStore getDiscoveredDeviceStore() {
+		return defaultEngine.getDiscoveredDeviceStore();
+	}
+
+	/**
+	 * Returns the library's metrics: connect, discovery and accept counters and histograms, 
+	 * exportable via getMetrics().snapshot().toPrometheusText() or toJson()   
+	 */
+	public static BTMetrics getMetrics() {
+		return defaultEngine.getMetrics();
+	}
+
+	/**
+	 * Returns the library's trace buffer, e.g. BTWiz.getTrace().logDump() after a failure    
+	 */
+	public static BTTrace getTrace() {
+		return defaultEngine.getTrace();
 	}
 
 
@@ -586,104 +479,28 @@ public class BTWiz {
 	 * Returns all devices discovered by a (possibly still active) discovery procedure  
 	 */
 	public static ArrayList<BluetoothDevice> getAllDiscoveredDevices() {
-		return allDiscoveredDevices;
+		return defaultEngine.getAllDiscoveredDevices();
 	}
 
 
-	private static void unregisterDiscoveryReceiver(Context context) {
-		if (discoveryReceiver != null) {
-			try { 
-				context.unregisterReceiver(discoveryReceiver);
-			}
-			catch (Exception e) {
-				// no op
-			}
-			discoveryReceiver = null;
-		}
+	public static DiscoveryStatus getDiscoveryStatus() {
+		return defaultEngine.getDiscoveryStatus();
 	}
 
-	public static DiscoveryStatus getDiscoveryStatus() {
-		return discoveryStatus;
-	}
-
-	private static Intent registerDiscoveryReceiver(final Context context, final Runnable onFinished, final IDeviceLookupListener foundListener) {
-		discoveryReceiver = new BroadcastReceiver() {
-			private boolean wasFound = false;
-			@Override
-			public void onReceive(Context context, Intent intent) {
-				String action = intent.getAction();
-				System.out.println(action);
-				if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
-					discoveryStatus = STARTED;
-				}
-				else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-					discoveryStatus = FINISHED;
-					// activate onFinished callback
-					if (onFinished != null) {
-						onFinished.run();
-					}
-					if (!wasFound && foundListener != null) {
-						foundListener.onDeviceNotFound(true);
-					}
-				}
-				else if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-					BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-					if (protectAgainstDuplicates) {
-						if (deviceAlreadyInList(device)) {
-							return;
-						}
-					}
-					allDiscoveredDevices.add(device);
-					IDeviceLookupListener cur_foundListener = foundListener;
-					if (cur_foundListener == null) {
-						return;
-					}
-					if (cur_foundListener instanceof IFindAndCompareListener) {
-						// force onDeviceFound() called only for a single device
-						IFindAndCompareListener fcListener = (IFindAndCompareListener)cur_foundListener;
-						if (!fcListener.match(device)) { 
-							// go on with discovery
-							return;
-						}
-						wasFound = true;
-						cur_foundListener = fcListener.getLookupListener(); 
-					}
-					boolean goOn = cur_foundListener.onDeviceFound(device, true);
-					if (!goOn) {
-						stopDiscovery(context);
-					}
-				}
-			}	
-		};
-		IntentFilter filter = new IntentFilter();
-		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-		filter.addAction(BluetoothDevice.ACTION_FOUND);
-		return context.registerReceiver(discoveryReceiver, filter);  
-	}
-
-
-	/**
-	 * Test for existence of a newly discovered device in the 'discovered' list 
-	 * Matched by name & major fields
-	 */
-	protected static boolean deviceAlreadyInList(BluetoothDevice device) {
-		int deviceMajor = device.getBluetoothClass().getMajorDeviceClass();
-		String deviceName = device.getName();
-		deviceName = deviceName==null ? "" : deviceName;		
-		for (BluetoothDevice prior: allDiscoveredDevices) {
-			int priorMajor = prior.getBluetoothClass().getMajorDeviceClass();
-			String priorName = prior.getName();
-			if (deviceMajor != priorMajor) {
-				continue;
-			}
-			if (!deviceName.equals(priorName)) {
-				continue;
-			}
-			// match
-			return true;
-		}
-		return false;
+
+	/**
+	 * Getter for the coordinator sharing a single discovery session among concurrent lookups  
+	 */
+	public static DiscoveryCoordinator getDiscoveryCoordinator() {
+		return defaultEngine.getDiscoveryCoordinator();
+	}
+
+
+	/**
+	 * Getter for the periodic, adaptive discovery scheduler  
+	 */
+	public static ScanScheduler getScanScheduler() {
+		return defaultEngine.getScanScheduler();
 	}
 
 
@@ -691,22 +508,15 @@ public class BTWiz {
 	 * Terminates a running discovery procedure  
 	 */
 	public static void stopDiscovery(Context context) {
-		cancelDiscovery(context);
-		unregisterDiscoveryReceiver(context); //!
+		defaultEngine.stopDiscovery(context);
 	}
 
 
+	/**
+	 * Cancels a running (or paused) discovery procedure, leaving the receiver registered  
+	 */
 	public static void cancelDiscovery(Context context) {
-		if (bluetoothAdapter != null) {
-			try { 
-				if (bluetoothAdapter.isDiscovering()) { 
-					bluetoothAdapter.cancelDiscovery();
-				}
-			}
-			catch (Exception e) {
-				// no op
-			}			
-		}
+		defaultEngine.cancelDiscovery(context);
 	}
 
 
@@ -714,16 +524,7 @@ public class BTWiz {
 	 * Gets a bonded BT device according to the IDeviceComparator criteria   
 	 */
 	public static BluetoothDevice findBondedDevice(Context context, IDeviceComparator comparator) {
-		Set<BluetoothDevice> pairedDevices = getAllBondedDevices(context);
-		if (pairedDevices==null) {
-			return null;
-		}
-		for (BluetoothDevice device: pairedDevices) {
-			if (comparator.match(device)) {
-				return device;
-			}
-		}
-		return null;
+		return defaultEngine.findBondedDevice(context, comparator);
 	}
 
 
@@ -731,13 +532,15 @@ public class BTWiz {
 	 * Return the set of BluetoothDevice objects that are bonded (paired) to the local adapter   
 	 */
 	public static Set<BluetoothDevice> getAllBondedDevices(Context context) {
-		assertInitialized();
-		Set<BluetoothDevice> bondedDevices = bluetoothAdapter.getBondedDevices();
-		if (bondedDevices == null) {
-			// null is returned only upon error
-			Log.e("BTWiz", "Error while calling bluetoothAdapter.getBondedDevices!");
-		}
-		return bondedDevices;
+		return defaultEngine.getAllBondedDevices(context);
+	}
+
+
+	/**
+	 * Getter for the index of bonded devices, kept current by bond state broadcasts   
+	 */
+	public static BondedDeviceIndex getBondedDeviceIndex() {
+		return defaultEngine.getBondedDeviceIndex();
 	}
 
 	
@@ -745,20 +548,12 @@ public class BTWiz {
 	 * getter for a raw bluetoothAdapter   
 	 */
 	public static BluetoothAdapter getBluetoothAdapter() {
-		assertInitialized();
-		return bluetoothAdapter;
+		return defaultEngine.getBluetoothAdapter();
 	}
 	
 	
 	public static void closeProfileProxy(int profile, BluetoothProfile profileProxy) {
-		if (bluetoothAdapter != null) {
-			try { 
-				bluetoothAdapter.closeProfileProxy(profile, profileProxy);
-			}
-			catch (Exception e) {
-				// no op
-			}
-		}
+		defaultEngine.closeProfileProxy(profile, profileProxy);
 	}
 
 
@@ -767,40 +562,43 @@ public class BTWiz {
 	 * Should not, typically, be called directly by the using app    
 	 */
 	public static void init(Context context) throws DeviceNotSupportBluetooth {
-		if (bluetoothAdapter != null) {
-			return; // already initialized
-		}
-		
-//		if (!PermissionValidator.basicPermissionIsSet(context)) {
-//			Log.e("BTWiz", "App must be granted an android.permission.BLUETOOTH permission!");
-//		}
-		bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-		if (bluetoothAdapter == null) {
-			Log.e("BTWiz", "Device does not support BT");
-			throw new DeviceNotSupportBluetooth(); 
-		}
+		defaultEngine.init(context);
 	}
 
+	
 	/**
-	 * Validates that init() was called prior to the current operation
+	 * Registered a BluetoothSocket for future cleanup 
 	 */
-	private static void assertInitialized() {
-		if (bluetoothAdapter == null) {
-			throw new RuntimeException("Init() must be called prior to this operation!"); 
-		}		
+	public static void registerForCleanup(BTSocket socket) {
+		defaultEngine.registerForCleanup(socket);
 	}
 
-	
 	/**
-	 * Registered a BluetoothSocket for future cleanup 
+	 * Getter for the bus publishing socket and discovery lifecycle events 
 	 */
-	public static void registerForCleanup(BTSocket socket) {
-		if (socket==null) {
-			throw new RuntimeException("Registered socket cannot be null!"); 
-		}
-		synchronized (allSockets) {
-			allSockets.add(socket);
-		}
+	public static ConnectionEventBus getEventBus() {
+		return defaultEngine.getEventBus();
+	}
+
+	/**
+	 * Getter for the cache of devices seen by discovery 
+	 */
+	public static DeviceCache getDeviceCache() {
+		return defaultEngine.getDeviceCache();
+	}
+
+	/**
+	 * Getter for the cache of remote devices' SDP service UUIDs 
+	 */
+	public static SdpCache getSdpCache() {
+		return defaultEngine.getSdpCache();
+	}
+
+	/**
+	 * Getter for the registry of open sockets 
+	 */
+	public static SocketRegistry getSocketRegistry() {
+		return defaultEngine.getSocketRegistry();
 	}
 	
 	
@@ -809,12 +607,7 @@ public class BTWiz {
 	 * Cleans up all opened BluetoothSocket 
 	 */
 	public static void closeAllOpenSockets() {
-		synchronized (allSockets) {
-			for (BTSocket sock: allSockets) {
-				sock.close();
-			}
-			allSockets.clear();
-		}
+		defaultEngine.closeAllOpenSockets();
 	}
 
 	
@@ -856,8 +649,12 @@ public class BTWiz {
 	}
 
 
+	/**
+	 * Marks the app as connecting (or not) by its own means, letting the radio scheduler 
+	 * pause discovery meanwhile. Idempotent, see BTWizEngine.markConnecting()
+	 */
 	public static void markConnecting(boolean connecting) {
-		connectingNow = connecting; 		
+		defaultEngine.markConnecting(connecting);
 	}
 	
 }
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+
+/**
+ * The default IDeviceConnector: connects via BTWizEngine.connectAsClientAsync()
+ */
+public class BTWizConnector implements IDeviceConnector {
+
+	private final BTWizEngine engine;
+	private final Context context;
+	private final SecureMode secureMode;
+	private final UUID serviceUuid;
+
+	public BTWizConnector(Context context) {
+		this(context, SecureMode.SECURE, null);
+	}
+
+	/**
+	 * serviceUuid may be null, see BTWiz.connectAsClientAsync()
+	 */
+	public BTWizConnector(Context context, SecureMode secureMode, UUID serviceUuid) {
+		this(BTWiz.getDefaultEngine(), context, secureMode, serviceUuid);
+	}
+
+	public BTWizConnector(BTWizEngine engine, Context context, SecureMode secureMode, UUID serviceUuid) {
+		if (engine==null || context==null || secureMode==null) {
+			throw new RuntimeException("Bad BTWizConnector params!");
+		}
+		this.engine = engine;
+		this.context = context;
+		this.secureMode = secureMode;
+		this.serviceUuid = serviceUuid;
+	}
+
+	@Override
+	public void connectAsync(String address, IDeviceConnectionListener connectionListener) {
+		BluetoothDevice device;
+		try {
+			device = engine.getBluetoothAdapter().getRemoteDevice(address);
+		}
+		catch (Exception e) {
+			BTLog.e("BTWizConnector", "Bad device address " + address + ": " + e);
+			connectionListener.onConnectionError(e, "getRemoteDevice");
+			return;
+		}
+		engine.connectAsClientAsync(context, device, connectionListener, secureMode, serviceUuid);
+	}
+}
@@ -0,0 +1,1219 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import static com.btwiz.library.SecureMode.SECURE;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+
+/**
+ * An instantiable BTWiz engine. Holds all the state formerly kept in BTWiz statics:
+ * adapter, discovery receiver and results, sockets, servers, executors and
+ * configuration.
+ *
+ * The static BTWiz facade delegates to a default engine (BTWiz.getDefaultEngine()).
+ * Independent components may create their own engine so that their discovery
+ * sessions, server sockets, executors and configuration do not interfere:
+ *
+ * 			BTWizEngine engine = new BTWizEngine();
+ * 			if (!engine.isEnabled(context)) { ... }
+ * 			engine.lookupDeviceAsync(context, comparator, lookupListener, DISCOVER_IF_NEEDED);
+ * 			....
+ * 			engine.cleanup(context);
+ *
+ * Note that all engines share the single BT radio, arbitrated by a process wide
+ * scheduler (RadioScheduler.getShared()): a connect on any engine pauses discovery.
+ * Discovery runs are shared as well: an engine starting discovery while another's run
+ * is going on joins that run rather than restarting the inquiry, and both get its
+ * results. Stopping or cancelling discovery on an engine withdraws only that engine,
+ * the inquiry being cancelled once no engine has lookups waiting on it
+ */
+public class BTWizEngine {
+
+	public static final String DEVICE_CACHE_FILE_NAME = "btwiz_devices.bin";
+		 
+	private volatile UUID appUuid = UUID.randomUUID();
+	 
+	private BluetoothAdapter bluetoothAdapter;
+
+	private final SocketRegistry allSockets = new SocketRegistry();  
+	
+	private final ArrayList<BTServer> allServers = new ArrayList<BTServer>();  
+	
+	private BluetoothServerSocket btServerSocket;
+	
+	private boolean autoOpenSocketStreams = true;
+	
+	private volatile boolean listeningIsOn;
+
+	private volatile boolean protectAgainstDuplicates = false;  
+
+	private volatile long connectAttemptTimeoutMs = BTSocket.NO_TIMEOUT;
+
+	private volatile long connectOverallTimeoutMs = BTSocket.NO_TIMEOUT;
+
+	private final BTExecutors executors = new BTExecutors();
+
+	private final RadioScheduler radioScheduler = RadioScheduler.getShared(); // one adapter, one scheduler
+
+	private final ConnectionEventBus eventBus = new ConnectionEventBus();
+
+	private final SdpCache sdpCache = new SdpCache(this);
+
+	private final DeviceCache deviceCache = new DeviceCache();
+
+	private final BondedDeviceIndex bondedDevices = new BondedDeviceIndex(deviceCache);
+
+	private final DeviceUpdateReceiver deviceUpdateReceiver = new DeviceUpdateReceiver(deviceCache, bondedDevices);
+
+	private final RankedDeviceView rankedDevices = new RankedDeviceView();
+
+	private final DiscoveredDeviceStore discoveredDevices = new DiscoveredDeviceStore();
+
+	private final DiscoveryCoordinator discoveryCoordinator = new DiscoveryCoordinator(this);
+
+	private final ScanScheduler scanScheduler = new ScanScheduler(this);
+	
+	private final BTMetrics metrics = new BTMetrics();
+	
+	private final BTTrace trace = new BTTrace();
+
+	private volatile File deviceCacheFile; // null: not persisted
+
+	private final AtomicBoolean externalConnecting = new AtomicBoolean(false); // see markConnecting()
+
+	
+	private final Runnable onDiscoveryAborted = new Runnable() {
+		@Override
+		public void run() {
+			discoveryCoordinator.onDiscoveryAborted();
+		}
+	};
+
+	
+	public BTWizEngine() {
+	}
+
+	
+	/**
+	 * Set app UUID to the well-known SPP (serial port profile) UUID. 
+	 * To be used when connecting to a BT serial board.
+	 * Not to be used when connecting to an Android peer
+	 */
+	public void setUuidToSPP() { 
+		setUuid(BTWiz.DEFAULT_SPP_UUID);
+	}
+
+	
+	/**
+	 * If set to true: protect against scan operation returning duplicate device reads
+	 */
+	public void setProtectAgainstDuplicates(boolean protect) { 
+		protectAgainstDuplicates = protect;
+	}
+
+	boolean getProtectAgainstDuplicates() { 
+		return protectAgainstDuplicates;
+	}
+
+	
+	/**
+	 * Set app UUID to a user defined value 
+	 */
+	public void setUuid(UUID newVal) {
+		if (newVal==null) {
+			throw new RuntimeException("Cannot use null UUID!");
+		}
+		appUuid = newVal;
+	}
+
+	/**
+	 * Getter for the UUID used for app BT related actions 
+	 */
+	public UUID getAppUUID() {
+		return appUuid;
+	}
+	
+	
+	
+	/**
+	 * Use a caller supplied executor for connect and accept work instead of 
+	 * the library's bounded worker pool. Set to null to revert to the library's pool 
+	 */
+	public void setExecutor(Executor executor) {
+		executors.setExecutor(executor);
+	}
+
+	
+	/**
+	 * Set the library's worker pool limits: max threads and max queued tasks
+	 */
+	public void setPoolLimits(int maxThreads, int maxQueuedTasks) {
+		executors.setPoolLimits(maxThreads, maxQueuedTasks);
+	}
+
+	
+	/**
+	 * Cap the number of concurrently running connects. Further connects are queued (up to maxQueuedConnects)
+	 */
+	public void setConnectLimits(int maxConcurrentConnects, int maxQueuedConnects) {
+		executors.setConnectLimits(maxConcurrentConnects, maxQueuedConnects);
+	}
+
+	
+	/**
+	 * Set connect deadlines (BTSocket.NO_TIMEOUT for none, the default).
+	 * attemptTimeoutMs bounds a single socket connect, overallTimeoutMs bounds a whole 
+	 * connectAsClientAsync() call including all its failover stages. An expired socket 
+	 * is force-closed and the next failover stage runs at once
+	 */
+	public void setConnectTimeouts(long attemptTimeoutMs, long overallTimeoutMs) {
+		if (attemptTimeoutMs < 0 || overallTimeoutMs < 0) {
+			throw new RuntimeException("Bad connect timeout params!");
+		}
+		connectAttemptTimeoutMs = attemptTimeoutMs;
+		connectOverallTimeoutMs = overallTimeoutMs;
+	}
+
+	public long getConnectAttemptTimeout() {
+		return connectAttemptTimeoutMs;
+	}
+
+	public long getConnectOverallTimeout() {
+		return connectOverallTimeoutMs;
+	}
+
+	
+	/**
+	 * Getter for the scheduler arbitrating the radio between discovery and connects
+	 */
+	public RadioScheduler getRadioScheduler() {
+		return radioScheduler;
+	}
+
+	
+	/**
+	 * Getter for the library's executors
+	 */
+	BTExecutors getExecutors() {
+		return executors;
+	}
+	
+	
+	/**
+	 * Toggle auto opening of inputStream and outputStream for newly acquired BT sockets 
+	 */
+	public void setAutoOpenSocketStreams(boolean autoOpen) {
+		autoOpenSocketStreams = autoOpen;
+	}
+
+	public boolean getAutoOpenSocketStreams() {
+		return autoOpenSocketStreams;
+	}
+
+//	/**
+//	 * Disable checking for BT permissions (and throwing an exception if missing)
+//	 */
+//	public static void disablePermissionsCheck() {
+//		PermissionValidator.checkBTPermissions = false;
+//	}
+
+	
+	/**
+	 * Returns true if BT is enabled on device.
+	 * 
+	 * Recommended handling for not-enabled device: startActivity 
+	 * with BTWiz.enableBTIntent() to allow enabling by the user
+	 */
+	public boolean isEnabled(Context context) throws DeviceNotSupportBluetooth {
+		init(context);		
+		boolean isEnabled = bluetoothAdapter.isEnabled(); // Equivalent to: getBluetoothState() == STATE_ON 
+		if (!isEnabled) { 
+			BTLog.e("BTWiz", "BT is not enabled on this device");
+		}
+		return isEnabled;
+	}
+
+	
+	/**
+	 * Looks for a BT device passing IDeviceComparator.match()
+	 * If a BondedDevice is found it is used.
+	 * Else, a device recently seen by discovery (see getDeviceCache()) is used.
+	 * If no, and discoverIfNeeded==true, a discovery procedure is initiated
+	 */
+	public void lookupDeviceAsync(Context context, IDeviceComparator comparator,  
+			IDeviceLookupListener lookupListener, boolean discoverIfNeeded) {
+		assertInitialized();
+		
+		// Before performing device discovery, its worth querying the set of 
+		// paired devices to see if the desired device is already known
+		
+		BluetoothDevice device = findBondedDevice(context, comparator);  
+		if (device != null) {
+			lookupListener.onDeviceFound(device, false);
+			return;
+		}		
+		
+		device = findCachedDevice(comparator);
+		if (device != null) {
+			lookupListener.onDeviceFound(device, false);
+			return;
+		}
+		
+		if (discoverIfNeeded) {
+			discoverBTDeviceAsync(context, comparator, lookupListener);
+		}
+		else {
+			lookupListener.onDeviceNotFound(false); 			
+		}
+	}
+
+	
+	/**
+	 * Returns the most recently seen (within the device cache TTL) device passing comparator, or null
+	 */
+	private BluetoothDevice findCachedDevice(IDeviceComparator comparator) {
+		if (deviceCache.getTtl() == 0) {
+			return null;
+		}
+		DeviceSnapshot snapshot = deviceCache.findMostRecent(comparator, bluetoothAdapter);
+		return snapshot == null ? null : bluetoothAdapter.getRemoteDevice(snapshot.getAddress());
+	}
+
+
+	/**
+	 * Looks up a device passing comparator and connects to it, avoiding discovery when possible:
+	 * a bonded device, or else a device recently seen (see getDeviceCache()), is connected 
+	 * directly. Only if there is none, or the direct connect fails, discovery is run and the 
+	 * first matching device found is connected.
+	 * Subject to the connect timeouts, see setConnectTimeouts() 
+	 */
+	public void lookupAndConnectAsync(final Context context, final IDeviceComparator comparator, 
+			final IDeviceConnectionListener connectionListener) {
+		assertInitialized();
+		BluetoothDevice device = findBondedDevice(context, comparator);
+		if (device == null) {
+			device = findCachedDevice(comparator);
+		}
+		if (device == null) {
+			discoverAndConnect(context, comparator, connectionListener);
+			return;
+		}
+		final String directAddress = device.getAddress();
+		connectAsClientAsync(context, device, new IDeviceConnectionListener() {
+			@Override
+			public void onConnectSuccess(BTSocket clientSocket) {
+				connectionListener.onConnectSuccess(clientSocket);
+			}
+			@Override
+			public void onConnectionError(Exception exception, String where) {
+				BTLog.i("BTWiz", "Direct connect to " + directAddress + " failed; discovering");
+				discoverAndConnect(context, comparator, connectionListener);
+			}
+		});
+	}
+
+	private void discoverAndConnect(final Context context, IDeviceComparator comparator, 
+			final IDeviceConnectionListener connectionListener) {
+		discoverBTDeviceAsync(context, comparator, new IDeviceLookupListener() {
+			@Override
+			public boolean onDeviceFound(BluetoothDevice device, boolean byDiscovery) {
+				connectAsClientAsync(context, device, connectionListener); // pauses discovery meanwhile
+				return false; // stop discovery
+			}
+			@Override
+			public void onDeviceNotFound(boolean byDiscovery) {
+				connectionListener.onConnectionError(null, "lookup");
+			}
+		});
+	}
+
+
+	/**
+	 * Perform discovery looking for a specific device to be identified via comparator 
+	 */
+	public boolean discoverBTDeviceAsync(Context context, 
+			IDeviceComparator comparator, IDeviceLookupListener lookupListener) {
+		assertInitialized();
+		FindAndCompareListener fcListener = new FindAndCompareListener(lookupListener, comparator);    
+
+		boolean started = startDiscoveryAsync(context, null, fcListener);
+		if (!started) {
+			lookupListener.onDeviceNotFound(false); 
+		}
+		return started;
+	}
+
+
+	/**
+	 * As lookupDeviceAsync(), returning a handle completed with the device found, 
+	 * or with null if none was found
+	 */
+	public CompletionHandle<BluetoothDevice> lookupDeviceAsync(Context context, IDeviceComparator comparator, 
+			boolean discoverIfNeeded) {
+		final CompletionHandle<BluetoothDevice> handle = new CompletionHandle<BluetoothDevice>();
+		lookupDeviceAsync(context, comparator, new IDeviceLookupListener() {
+			@Override
+			public boolean onDeviceFound(BluetoothDevice device, boolean byDiscovery) {
+				handle.complete(device);
+				return false; // stop discovery
+			}
+			@Override
+			public void onDeviceNotFound(boolean byDiscovery) {
+				handle.complete(null);
+			}
+		}, discoverIfNeeded);
+		return handle;
+	}
+
+
+	/**
+	 * Runs (or joins) a discovery procedure, returning a handle completed with all devices 
+	 * discovered once it finishes. Fails if discovery could not be started
+	 */
+	public CompletionHandle<ArrayList<BluetoothDevice>> discoverDevicesAsync(Context context) {
+		final CompletionHandle<ArrayList<BluetoothDevice>> handle = new CompletionHandle<ArrayList<BluetoothDevice>>();
+		final ArrayList<BluetoothDevice> found = new ArrayList<BluetoothDevice>();
+		IDeviceLookupListener collector = new IDeviceLookupListener() {
+			@Override
+			public boolean onDeviceFound(BluetoothDevice device, boolean byDiscovery) {
+				synchronized (found) {
+					found.add(device);
+				}
+				return true; // go on with discovery
+			}
+			@Override
+			public void onDeviceNotFound(boolean byDiscovery) {
+				// no op
+			}
+		};
+		Runnable onFinished = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (found) {
+					handle.complete(new ArrayList<BluetoothDevice>(found));
+				}
+			}
+		};
+		if (!startDiscoveryAsync(context, onFinished, collector)) {
+			handle.fail(new IOException("Discovery could not be started"));
+		}
+		return handle;
+	}
+
+
+	/**
+	 * As connectAsClientAsync(), returning a handle completed with the connected socket, 
+	 * or failed with the connect error
+	 */
+	public CompletionHandle<BTSocket> connectAsClientAsync(Context context, BluetoothDevice device) {
+		final CompletionHandle<BTSocket> handle = new CompletionHandle<BTSocket>();
+		connectAsClientAsync(context, device, new IDeviceConnectionListener() {
+			@Override
+			public void onConnectSuccess(BTSocket clientSocket) {
+				handle.complete(clientSocket);
+			}
+			@Override
+			public void onConnectionError(Exception exception, String where) {
+				handle.fail(exception != null ? exception : new IOException("Connect failed at " + where));
+			}
+		});
+		return handle;
+	}
+
+
+	/**
+	 * Create a secure BT socket and connect to a remote BT device (server). 
+	 * Runs on the library's executor, subject to the concurrent connects cap 
+	 */
+	public void connectAsClientAsync(final Context context, final BluetoothDevice device, 
+			final IDeviceConnectionListener connectionListener) {
+		connectAsClientAsync(context, device, connectionListener, SECURE, null);
+	}
+	
+	
+	/**
+	 * Create a BT socket and connect to a remote BT device (server).
+	 * 
+	 * The secureMode param controls the type of RFC socket created i.e. weather 
+	 * createRfcommSocketToServiceRecord or createInsecureRfcommSocketToServiceRecord services will be called.
+	 *   
+	 * Runs on the library's executor, subject to the concurrent connects cap.
+	 * Subject to the connect timeouts, see setConnectTimeouts() 
+	 */
+	public void connectAsClientAsync(final Context context, final BluetoothDevice device, 
+			final IDeviceConnectionListener connectionListener, final SecureMode secureMode, final UUID user_serviceUuid) {
+		connectAsClientAsync(context, device, connectionListener, secureMode, user_serviceUuid, 
+				connectAttemptTimeoutMs, connectOverallTimeoutMs);
+	}
+
+
+	/**
+	 * As above, with explicit deadlines (BTSocket.NO_TIMEOUT for none): attemptTimeoutMs bounds each 
+	 * socket connect, overallTimeoutMs the whole call, counted from now (i.e. including time queued 
+	 * for the connects cap). On overall expiry onConnectionError() gets a ConnectTimeoutException 
+	 */
+	public void connectAsClientAsync(final Context context, final BluetoothDevice device, 
+			IDeviceConnectionListener user_connectionListener, final SecureMode secureMode, final UUID user_serviceUuid,
+			final long attemptTimeoutMs, long overallTimeoutMs) {
+		final long deadline = overallTimeoutMs > 0 ? System.currentTimeMillis() + overallTimeoutMs : BTSocket.NO_TIMEOUT;
+		final long span = trace.newSpan();
+		trace.record(BTTrace.Event.CONNECT_BEGIN, span, device.getAddress());
+		final IDeviceConnectionListener connectionListener = meteredListener(user_connectionListener, span);
+		BTExecutors.ConnectTask connectTask = new BTExecutors.ConnectTask() {
+			@Override
+			public void run() {
+				boolean connected;
+				BluetoothSocket sock;
+				UUID serviceUuid = user_serviceUuid;
+				if (isExpired(deadline)) { // expired while queued
+					reportConnectFailure(connectionListener, deadline);
+					return;
+				}
+				if (serviceUuid != null) {
+					sock = createClientSocket(device, connectionListener, secureMode, serviceUuid);
+					if (sock == null) {
+						connectionListener.onConnectionError(null, "createClientSocket");
+						return; // operation failed
+					} 
+					connected = innerConnectAsClient(context, connectionListener, sock, span, BTMetrics.STAGE_SERVICE, 
+							attemptTimeoutMs, deadline);
+					if (!connected) {
+						reportConnectFailure(connectionListener, deadline);
+						return; // operation failed
+					}
+					// else: success
+				}
+				else {
+					serviceUuid = sdpCache.selectServiceUuid(context, device); // non blocking
+					if (serviceUuid != null) {
+						sock = createClientSocket(device, connectionListener, secureMode, serviceUuid);
+						if (sock != null) {
+							connected = innerConnectAsClient(context, connectionListener, sock, span, BTMetrics.STAGE_SERVICE, 
+									attemptTimeoutMs, deadline);
+							if (connected) {
+								return; // success
+							}
+						}
+					}
+					
+					if (isExpired(deadline)) {
+						reportConnectFailure(connectionListener, deadline);
+						return; // no time left for the failover stages
+					}
+					
+					// failover 1: use DEFAULT_SPP_UUID (unless just tried)
+					sock = BTWiz.DEFAULT_SPP_UUID.equals(serviceUuid) ? null : 
+						createClientSocket(device, connectionListener, secureMode, BTWiz.DEFAULT_SPP_UUID);
+					if (sock != null) {
+						connected = innerConnectAsClient(context, connectionListener, sock, span, BTMetrics.STAGE_SPP, 
+								attemptTimeoutMs, deadline);
+						if (connected) {
+							return; // success
+						}
+					}
+					
+					if (isExpired(deadline)) {
+						reportConnectFailure(connectionListener, deadline);
+						return; // no time left for the last failover stage
+					}
+					
+					// failover 2: use createRfcommSocket via reflection 
+					sock = BTWiz.createRfcommSocketViaReflection(device, secureMode);
+					if (sock == null) {
+						connectionListener.onConnectionError(null, "createRfcommSocket");
+						return; // failed
+					}
+					connected = innerConnectAsClient(context, connectionListener, sock, span, BTMetrics.STAGE_REFLECTION, 
+							attemptTimeoutMs, deadline);
+					if (!connected) {
+						reportConnectFailure(connectionListener, deadline);
+						return; // failed
+					}
+					// else: success
+				}				
+			}
+			@Override
+			public void onRejected(RejectedExecutionException e) {
+				BTLog.e("BTWiz", "Queued connect rejected: " + e);
+				connectionListener.onConnectionError(e, "execute");
+			}
+		};
+		try {
+			executors.executeConnect(connectTask);
+		}
+		catch (RejectedExecutionException e) {
+			BTLog.e("BTWiz", "Connect rejected: " + e);
+			connectionListener.onConnectionError(e, "execute");
+		}
+	}
+	
+	
+	/**
+	 * Returns a listener recording the connect outcome in the metrics and trace before 
+	 * passing it on to connectionListener
+	 */
+	private IDeviceConnectionListener meteredListener(final IDeviceConnectionListener connectionListener, final long span) {
+		final long startTime = System.currentTimeMillis();
+		metrics.connects.increment();
+		return new IDeviceConnectionListener() {
+			@Override
+			public void onConnectSuccess(BTSocket clientSocket) {
+				metrics.connectSuccesses.increment();
+				metrics.connectLatency.record(System.currentTimeMillis() - startTime);
+				trace.record(BTTrace.Event.CONNECT_SUCCEEDED, span, clientSocket.getConnectionId(), null);
+				connectionListener.onConnectSuccess(clientSocket);
+			}
+			@Override
+			public void onConnectionError(Exception exception, String where) {
+				metrics.connectFailures.increment();
+				if (exception instanceof ConnectTimeoutException) {
+					metrics.connectTimeouts.increment();
+				}
+				metrics.connectLatency.record(System.currentTimeMillis() - startTime);
+				trace.record(BTTrace.Event.CONNECT_FAILED, span, exception != null ? exception : where);
+				connectionListener.onConnectionError(exception, where);
+			}
+		};
+	}
+	
+	/**
+	 * Connects within min(attemptTimeoutMs, time left to deadline). Returns false on failure, 
+	 * including an already expired deadline. span and stage are the trace span and failover stage   
+	 */
+	private boolean innerConnectAsClient(Context context, IDeviceConnectionListener connectionListener, BluetoothSocket sock,
+			long span, String stage, long attemptTimeoutMs, long deadline) {		
+		BTSocket clientSocket = new BTSocket(this, sock, autoOpenSocketStreams); 
+		long timeoutMs = attemptTimeoutMs;
+		if (deadline != BTSocket.NO_TIMEOUT) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				clientSocket.close();
+				return false; // overall deadline expired
+			}
+			timeoutMs = timeoutMs > 0 ? Math.min(timeoutMs, remaining) : remaining;
+		}
+		trace.record(BTTrace.Event.CONNECT_STAGE, span, clientSocket.getConnectionId(), stage);
+		long attemptStart = System.currentTimeMillis();
+		try {
+			// block until success or deadline. discovery is paused by the radio scheduler meanwhile
+			clientSocket.connect(context, timeoutMs);
+		} catch (Exception e) {
+			BTLog.e("BTWiz", "Connect error: " + e);
+			clientSocket.close();
+			metrics.recordConnectAttempt(stage, System.currentTimeMillis() - attemptStart, false);
+			//connectionListener.onConnectionError(e, "connect");
+			return false; // failure
+		}		 
+		metrics.recordConnectAttempt(stage, System.currentTimeMillis() - attemptStart, true);
+		connectionListener.onConnectSuccess(clientSocket);
+		return true; // success
+	}
+
+	private static boolean isExpired(long deadline) {
+		return deadline != BTSocket.NO_TIMEOUT && System.currentTimeMillis() >= deadline;
+	}
+
+	private static void reportConnectFailure(IDeviceConnectionListener connectionListener, long deadline) {
+		if (isExpired(deadline)) {
+			connectionListener.onConnectionError(new ConnectTimeoutException("Connect timed out"), "timeout");
+		}
+		else {
+			connectionListener.onConnectionError(null, "ConnectAsClient");
+		}
+	}
+	
+	private BluetoothSocket createClientSocket(BluetoothDevice device, IDeviceConnectionListener connectionListener, 
+			SecureMode secureMode, UUID serviceUuid) {
+		BluetoothSocket sock;
+		try {
+			if (secureMode == SECURE) {				
+				sock = device.createRfcommSocketToServiceRecord(serviceUuid);
+			}
+			else { // INSECURE					
+				sock = device.createInsecureRfcommSocketToServiceRecord(serviceUuid);
+			}
+			if (sock == null) {
+				BTLog.e("BTWiz", "Null socket error after createRfcommSocket" );
+				//connectionListener.onConnectionError(null, "Null socket");
+			}
+			return sock;
+
+		} catch (IOException e) { 
+			BTLog.e("BTWiz", "Error in createRfcommSocket: " + e);
+			//connectionListener.onConnectionError(e, "createRfcomm");
+			return null;
+		}
+	}
+
+
+	/**
+	 * Create a secure-mode BT server, enter an accept loop and listen for BT connections 
+	 * If AcceptMode==MANY: will stay in loop indefinitely  
+	 * The accept loop occupies one of the library's worker threads 
+	 */
+	public void listenForConnectionsAsync(final String name, final IAcceptListener acceptListener) {
+		listenForConnectionsAsync(name, acceptListener, SECURE); 
+	}
+	
+	/**
+	 * Create a BT server, enter an accept loop and listen for BT connections 
+	 * If AcceptMode==MANY: will stay in loop indefinitely
+	 * 
+	 * The secureMode param controls the secure mode of the server, i.e. weather listenUsingRfcommWithServiceRecord
+	 * or listenUsingInsecureRfcommWithServiceRecord services will be called.
+	 *    
+	 * The accept loop occupies one of the library's worker threads 
+	 */
+	public void listenForConnectionsAsync(final String name, final IAcceptListener acceptListener, final SecureMode secureMode) {
+		listeningIsOn = true;
+		Runnable acceptTask = new Runnable() {
+			@Override
+			public void run() {
+				try { 
+					createBTServerSocket(name, secureMode);
+				}
+				catch (Exception e) {
+					BTLog.e("BTWiz", "Socket creation error: " + e);
+					acceptListener.onError(e, "createBTServerSocket");
+					return;
+				}
+				
+				try { 
+					boolean goOn = true;
+					while (listeningIsOn && goOn) {
+						goOn = acceptConnection(acceptListener); 
+					}
+				}
+				finally {
+					closeBTServerSocket();
+				}
+			}
+		};
+		try {
+			executors.execute(acceptTask);
+		}
+		catch (RejectedExecutionException e) {
+			BTLog.e("BTWiz", "Accept loop rejected: " + e);
+			listeningIsOn = false;
+			acceptListener.onError(e, "execute");
+		}
+	}
+
+	/**
+	 * Accepts an incoming BT connection
+	 */ 
+	public boolean acceptConnection(IAcceptListener acceptListener) {
+		Utils.assertNotUIThread();
+		assertInitialized();
+		BluetoothSocket sock;
+		
+		try {
+			sock = btServerSocket.accept(); // returns a connected socket
+		} catch (IOException e) {
+			BTLog.e("BTWiz", "Socket accept error: " + e);
+			trace.record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, e);
+			acceptListener.onError(e, "accept");
+			return false; // exit accept loop
+		}
+
+		if (sock == null) {
+			return true; // accept() failed; re-enter function
+		}
+		
+		BTSocket newConnection = new BTSocket(this, sock, autoOpenSocketStreams); 
+		metrics.accepts.increment();
+		trace.record(BTTrace.Event.ACCEPTED, BTTrace.NO_SPAN, newConnection.getConnectionId(), null);
+		eventBus.publish(ConnectionEvent.Type.CONNECTED, newConnection, null, "accept");
+
+		acceptListener.onNewConnectionAccepted(newConnection);
+		return true; // go on
+	}
+	
+
+	/**
+	 * Creates a server socket to be used by the accept thread
+	 */
+	public void createBTServerSocket(String name, SecureMode secureMode) throws IOException {
+		Utils.assertNotUIThread();
+		assertInitialized();
+		
+		BluetoothServerSocket tmp;
+		btServerSocket = null;
+		try {
+			if (secureMode == SECURE) {
+				tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(name, appUuid);
+			}
+			else { // INSECURE
+				tmp = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(name, appUuid);
+			}
+			btServerSocket = tmp;
+		} catch (IOException e) {
+			BTLog.e("BTWiz", "listenUsingRfcomm error: " + e);
+			trace.record(BTTrace.Event.IO_ERROR, BTTrace.NO_SPAN, e);
+			throw e;
+		}		
+	}
+
+	/**
+	 * Cleanup all BT resources. 
+	 * Should be called once BT usage by the app is completed
+	 */
+	public void cleanup(Context context) {
+		scanScheduler.stop();
+		stopDiscovery(context); //  an application should always call cancelDiscovery() even if it did not directly request a discovery, just to be sure
+		closeBTServerSocket();
+		stopAllServers();
+		closeAllOpenSockets();
+		sdpCache.close();
+		deviceUpdateReceiver.unregister();
+		bondedDevices.invalidate();
+		saveDeviceCache();
+		executors.shutdown(); // including socket IO threads
+		markConnecting(false); // the shared scheduler outlives this engine
+		if (bluetoothAdapter != null) {
+			radioScheduler.removeOnDiscoveryAborted(onDiscoveryAborted);
+			radioScheduler.detachAdapter();
+		}
+		bluetoothAdapter = null;
+		discoveryCoordinator.reset();
+	}
+
+	
+	/**
+	 * Terminate BT listening server session  
+	 */
+	public void stopListening() {
+		closeBTServerSocket();
+	}
+	
+
+	private void closeBTServerSocket() {
+		listeningIsOn = false;
+		if (btServerSocket != null) {
+			try { 
+				btServerSocket.close(); // thread safe
+			}
+			catch (Exception e) {
+				// no op
+			}
+			btServerSocket = null;
+		}
+	}
+	
+	
+	/**
+	 * Getter for the BluetoothServerSocket (possibly null)
+	 */
+	public BluetoothServerSocket getBTServerSocket() {
+		return btServerSocket;
+	}
+
+	public boolean startDiscoveryAsync(Context context) {
+		return startDiscoveryAsync(context, null);
+	}
+
+
+	public boolean startDiscoveryAsync(Context context, Runnable onFinished) {
+		return startDiscoveryAsync(context, onFinished, null);
+	}
+
+
+	/**
+	 * Starts a BT discovery procedure, or joins the running one (see DiscoveryCoordinator)  
+	 */
+	public boolean startDiscoveryAsync(Context context, Runnable onFinished, IDeviceLookupListener foundHandler) {
+		assertInitialized();
+//		if (!PermissionValidator.adminPermissionIsSet(context)) {
+//			BTLog.e("BTWiz", "App must be granted an android.permission.BLUETOOTH_ADMIN permission!");
+//		}
+		return discoveryCoordinator.startAsync(context, onFinished, foundHandler);
+	}
+
+
+	/**
+	 * Returns a live view of the devices discovered by the last (possibly still active)  
+	 * discovery procedure, strongest signal first, with their RSSI, class and sighting time  
+	 */
+	public RankedDeviceView getRankedDiscoveredDevices() {
+		return rankedDevices;
+	}
+
+
+	/**
+	 * Returns the bounded store of devices seen by recent discovery procedures (across sessions), 
+	 * e.g. for continuous scanning, see ScanScheduler  
+	 */
+	public DiscoveredDeviceStore getDiscoveredDeviceStore() {
+		return discoveredDevices;
+	}
+
+
+	/**
+	 * Getter for the connect, discovery and accept metrics  
+	 */
+	public BTMetrics getMetrics() {
+		return metrics;
+	}
+
+
+	/**
+	 * Getter for the event trace of connects, discovery and IO  
+	 */
+	public BTTrace getTrace() {
+		return trace;
+	}
+
+
+	/**
+	 * Returns all devices discovered by a (possibly still active) discovery procedure  
+	 */
+	public ArrayList<BluetoothDevice> getAllDiscoveredDevices() {
+		return discoveryCoordinator.getAllDiscoveredDevices();
+	}
+
+	public DiscoveryStatus getDiscoveryStatus() {
+		return discoveryCoordinator.getStatus();
+	}
+
+	/**
+	 * Getter for the coordinator sharing a single discovery session among concurrent lookups  
+	 */
+	public DiscoveryCoordinator getDiscoveryCoordinator() {
+		return discoveryCoordinator;
+	}
+
+
+	/**
+	 * Getter for the periodic, adaptive discovery scheduler  
+	 */
+	public ScanScheduler getScanScheduler() {
+		return scanScheduler;
+	}
+
+
+	/**
+	 * Activated when a discovery session has ended: the radio is now idle
+	 */
+	void onDiscoverySessionEnded(Context context, ArrayList<BluetoothDevice> discovered) {
+		saveDeviceCacheAsync();
+		// run SDP queries held off meanwhile
+		if (sdpCache.getPrefetchDiscovered()) {
+			for (BluetoothDevice device: new ArrayList<BluetoothDevice>(discovered)) {
+				sdpCache.prefetch(context, device);
+			}
+		}
+		sdpCache.runNext();
+	}
+
+
+	/**
+	 * Terminates a running discovery procedure, completing all lookups waiting on it  
+	 */
+	public void stopDiscovery(Context context) {
+		discoveryCoordinator.stop();
+	}
+
+
+	/**
+	 * Cancels this engine's running (or paused) discovery procedure. Lookups waiting on it 
+	 * complete once the discovery finished broadcast arrives. A discovery shared with other 
+	 * engines goes on for them
+	 */
+	public void cancelDiscovery(Context context) {
+		discoveryCoordinator.cancelInquiry();
+	}
+
+
+	/**
+	 * Gets a bonded BT device according to the IDeviceComparator criteria   
+	 */
+	public BluetoothDevice findBondedDevice(Context context, IDeviceComparator comparator) {
+		assertInitialized();
+		if (!bondedDevices.ensureBuilt(bluetoothAdapter)) {
+			return null;
+		}
+		return bondedDevices.find(comparator); // no IPC once built
+	}
+
+
+	/**
+	 * Returns the cached snapshot of a device: name, class, bond state and more, kept current 
+	 * by broadcasts. An unknown device is snapshot once (IPC calls) and remembered as known 
+	 * but not seen, see DeviceCache
+	 */
+	public DeviceSnapshot getDeviceSnapshot(BluetoothDevice device) {
+		DeviceSnapshot snapshot = deviceCache.peek(device.getAddress());
+		if (snapshot != null) {
+			return snapshot;
+		}
+		snapshot = DeviceSnapshot.fromDevice(device).withBondState(device.getBondState());
+		return deviceCache.record(snapshot);
+	}
+
+	/**
+	 * Matches a device, against its cached snapshot when the comparator supports snapshots
+	 */
+	boolean matches(IDeviceComparator comparator, BluetoothDevice device) {
+		if (comparator instanceof ISnapshotComparator) {
+			return ((ISnapshotComparator)comparator).match(getDeviceSnapshot(device));
+		}
+		return comparator.match(device);
+	}
+
+
+	/**
+	 * Return the set of BluetoothDevice objects that are bonded (paired) to the local adapter   
+	 */
+	public Set<BluetoothDevice> getAllBondedDevices(Context context) {
+		assertInitialized();
+		if (!bondedDevices.ensureBuilt(bluetoothAdapter)) {
+			return null; // error
+		}
+		return bondedDevices.getAll();
+	}
+
+
+	/**
+	 * Getter for the index of bonded devices, kept current by bond state broadcasts   
+	 */
+	public BondedDeviceIndex getBondedDeviceIndex() {
+		return bondedDevices;
+	}
+
+	
+	/**
+	 * getter for a raw bluetoothAdapter   
+	 */
+	public BluetoothAdapter getBluetoothAdapter() {
+		assertInitialized();
+		return bluetoothAdapter;
+	}
+
+	BluetoothAdapter getBluetoothAdapterOrNull() {
+		return bluetoothAdapter;
+	}
+	
+	
+	public void closeProfileProxy(int profile, BluetoothProfile profileProxy) {
+		if (bluetoothAdapter != null) {
+			try { 
+				bluetoothAdapter.closeProfileProxy(profile, profileProxy);
+			}
+			catch (Exception e) {
+				// no op
+			}
+		}
+	}
+
+
+	/**
+	 * Checks for device BT support and initializes the bluetoothAdapter
+	 * Should not, typically, be called directly by the using app    
+	 */
+	public void init(Context context) throws DeviceNotSupportBluetooth {
+		if (bluetoothAdapter != null) {
+			return; // already initialized
+		}
+		
+//		if (!PermissionValidator.basicPermissionIsSet(context)) {
+//			BTLog.e("BTWiz", "App must be granted an android.permission.BLUETOOTH permission!");
+//		}
+		bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		if (bluetoothAdapter == null) {
+			BTLog.e("BTWiz", "Device does not support BT");
+			throw new DeviceNotSupportBluetooth(); 
+		}
+		radioScheduler.attachAdapter(bluetoothAdapter);
+		radioScheduler.addOnDiscoveryAborted(onDiscoveryAborted);
+		loadDeviceCache(context);
+		if (context != null) {
+			deviceUpdateReceiver.register(context); // keeps cached snapshots current
+		}
+	}
+
+	/**
+	 * Loads the device cache persisted in the app's files dir (a small binary file)
+	 */
+	private void loadDeviceCache(Context context) {
+		File dir = context == null ? null : context.getFilesDir();
+		if (dir == null) {
+			return; // not persisted
+		}
+		File file = new File(dir, DEVICE_CACHE_FILE_NAME);
+		deviceCacheFile = file;
+		try {
+			deviceCache.load(file);
+		}
+		catch (Exception e) {
+			BTLog.e("BTWiz", "Device cache load error: " + e);
+		}
+	}
+
+	private void saveDeviceCache() {
+		File file = deviceCacheFile;
+		if (file == null) {
+			return;
+		}
+		try {
+			deviceCache.save(file); // no op if unchanged
+		}
+		catch (Exception e) {
+			BTLog.e("BTWiz", "Device cache save error: " + e);
+		}
+	}
+
+	private void saveDeviceCacheAsync() {
+		try {
+			executors.execute(new Runnable() {
+				@Override
+				public void run() {
+					saveDeviceCache();
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			BTLog.e("BTWiz", "Device cache save rejected: " + e);
+		}
+	}
+
+	/**
+	 * Validates that init() was called prior to the current operation
+	 */
+	private void assertInitialized() {
+		if (bluetoothAdapter == null) {
+			throw new RuntimeException("Init() must be called prior to this operation!"); 
+		}		
+	}
+
+	
+	/**
+	 * Registered a BluetoothSocket for future cleanup 
+	 */
+	public void registerForCleanup(BTSocket socket) {
+		allSockets.register(socket); // removed when closed
+	}
+
+	/**
+	 * Getter for the bus publishing lifecycle events of this engine's sockets and discovery 
+	 */
+	public ConnectionEventBus getEventBus() {
+		return eventBus;
+	}
+
+	/**
+	 * Getter for the cache of devices seen by discovery 
+	 */
+	public DeviceCache getDeviceCache() {
+		return deviceCache;
+	}
+
+	/**
+	 * Getter for the cache of remote devices' SDP service UUIDs 
+	 */
+	public SdpCache getSdpCache() {
+		return sdpCache;
+	}
+
+	/**
+	 * Getter for the registry of this engine's open sockets 
+	 */
+	public SocketRegistry getSocketRegistry() {
+		return allSockets;
+	}
+	
+	
+ 
+	/**
+	 * Registers a running BTServer for future cleanup 
+	 */
+	void registerServer(BTServer server) {
+		synchronized (allServers) {
+			allServers.add(server);
+		}
+	}
+
+	void unregisterServer(BTServer server) {
+		synchronized (allServers) {
+			allServers.remove(server);
+		}
+	}
+
+	private void stopAllServers() {
+		ArrayList<BTServer> servers;
+		synchronized (allServers) {
+			servers = new ArrayList<BTServer>(allServers);
+		}
+		for (BTServer server: servers) {
+			server.stop();
+		}
+	}
+
+
+	/**
+	 * Cleans up all opened BluetoothSocket 
+	 */
+	public void closeAllOpenSockets() {
+		allSockets.closeAll();
+	}
+
+	
+	/**
+	 * Marks the app as connecting (or not) by its own means, letting the radio scheduler 
+	 * pause discovery meanwhile. Idempotent: repeated calls with the same value have no effect
+	 */
+	public void markConnecting(boolean connecting) {
+		if (externalConnecting.compareAndSet(!connecting, connecting)) {
+			if (connecting) {
+				beginConnect();
+			}
+			else {
+				endConnect();
+			}
+		}
+	}
+
+	/**
+	 * Marks a connect as started. Must be followed by endConnect()
+	 */
+	void beginConnect() {
+		radioScheduler.beginConnect();
+	}
+
+	/**
+	 * Marks a connect started by beginConnect() as done
+	 */
+	void endConnect() {
+		radioScheduler.endConnect();
+		sdpCache.runNext(); // SDP queries held off while connecting
+	}
+	
+}
+
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * The bonded (paired) devices, indexed by address, name and major class.
+ *
+ * Built once from BluetoothAdapter.getBondedDevices() and then updated incrementally 
+ * from ACTION_BOND_STATE_CHANGED broadcasts (and name/class changed broadcasts, via the 
+ * device snapshots), so bonded lookups make no IPC calls in the common case.
+ * Rebuilt after the adapter is turned off and on.
+ * Thread safe
+ *
+ * Accessible via BTWizEngine.getBondedDeviceIndex()
+ */
+public class BondedDeviceIndex {
+
+	private final DeviceCache deviceCache;
+
+	private boolean built = false;
+	private final HashMap<String, BluetoothDevice> devices = new HashMap<String, BluetoothDevice>();
+	private final DeviceIndex index = new DeviceIndex();
+
+
+	BondedDeviceIndex(DeviceCache deviceCache) {
+		this.deviceCache = deviceCache;
+	}
+
+
+	/**
+	 * Builds the index unless already built. Returns false if the adapter failed to list bonded devices
+	 */
+	synchronized boolean ensureBuilt(BluetoothAdapter adapter) {
+		if (built) {
+			return true;
+		}
+		Set<BluetoothDevice> bonded = adapter.getBondedDevices(); // IPC
+		if (bonded == null) {
+			// null is returned only upon error
+			BTLog.e("BondedDeviceIndex", "Error while calling bluetoothAdapter.getBondedDevices!");
+			return false;
+		}
+		devices.clear();
+		index.clear();
+		for (BluetoothDevice device: bonded) {
+			addLocked(device);
+		}
+		built = true;
+		return true;
+	}
+
+	/**
+	 * Drops the index; rebuilt on next use
+	 */
+	public synchronized void invalidate() {
+		built = false;
+		devices.clear();
+		index.clear();
+	}
+
+
+	/**
+	 * Returns the bonded device with the given address, or null
+	 */
+	public synchronized BluetoothDevice get(String address) {
+		return devices.get(address);
+	}
+
+	/**
+	 * Returns all bonded devices
+	 */
+	public synchronized Set<BluetoothDevice> getAll() {
+		return new LinkedHashSet<BluetoothDevice>(devices.values());
+	}
+
+	public synchronized int size() {
+		return devices.size();
+	}
+
+	/**
+	 * Returns a bonded device matching comparator, or null. A DeviceQuery is evaluated via 
+	 * the index, other ISnapshotComparators against the cached snapshots, other comparators 
+	 * against each device (possibly IPC)
+	 */
+	public BluetoothDevice find(IDeviceComparator comparator) {
+		if (comparator instanceof DeviceQuery) {
+			synchronized (this) {
+				List<DeviceSnapshot> matches = index.query((DeviceQuery)comparator);
+				return matches.isEmpty() ? null : devices.get(matches.get(0).getAddress());
+			}
+		}
+		List<BluetoothDevice> all;
+		synchronized (this) {
+			if (comparator instanceof ISnapshotComparator) {
+				ISnapshotComparator snapshotComparator = (ISnapshotComparator)comparator;
+				for (BluetoothDevice device: devices.values()) {
+					if (snapshotComparator.match(index.get(device.getAddress()))) {
+						return device;
+					}
+				}
+				return null;
+			}
+			all = new ArrayList<BluetoothDevice>(devices.values());
+		}
+		for (BluetoothDevice device: all) { // outside the lock: may IPC
+			if (comparator.match(device)) {
+				return device;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * On ACTION_BOND_STATE_CHANGED
+	 */
+	synchronized void onBondStateChanged(BluetoothDevice device, int bondState) {
+		if (!built) {
+			return; // picked up when built
+		}
+		if (bondState == BluetoothDevice.BOND_BONDED) {
+			addLocked(device);
+		}
+		else if (devices.remove(device.getAddress()) != null) {
+			index.remove(device.getAddress());
+		}
+	}
+
+	/**
+	 * On a name/class change of a cached device
+	 */
+	synchronized void onSnapshotChanged(DeviceSnapshot snapshot) {
+		if (snapshot != null && devices.containsKey(snapshot.getAddress())) {
+			index.add(snapshot);
+		}
+	}
+
+	private void addLocked(BluetoothDevice device) {
+		String address = device.getAddress();
+		DeviceSnapshot snapshot = deviceCache.peek(address);
+		if (snapshot == null) {
+			snapshot = deviceCache.record(DeviceSnapshot.fromDevice(device)); // IPC, once per device
+		}
+		if (snapshot.getBondState() != BluetoothDevice.BOND_BONDED) {
+			deviceCache.updateBondState(address, BluetoothDevice.BOND_BONDED);
+			snapshot = snapshot.withBondState(BluetoothDevice.BOND_BONDED);
+		}
+		devices.put(address, device);
+		index.add(snapshot);
+	}
+}
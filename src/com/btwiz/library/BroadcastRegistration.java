@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+
+/**
+ * A registered broadcast receiver, forwarding to an IBroadcastListener. 
+ * Library classes hold registrations rather than extending BroadcastReceiver, so that 
+ * they load on a plain JVM too (e.g. simulated runs), where no broadcast is ever registered
+ */
+final class BroadcastRegistration {
+
+	private final Context context;
+	private final BroadcastReceiver receiver;
+
+
+	private BroadcastRegistration(Context context, BroadcastReceiver receiver) {
+		this.context = context;
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Registers a receiver for filter's broadcasts. They are received on handler's thread, 
+	 * or on the main thread if handler is null
+	 */
+	static BroadcastRegistration register(Context context, IntentFilter filter, Handler handler, 
+			final IBroadcastListener listener) {
+		BroadcastReceiver receiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				listener.onReceive(intent);
+			}
+		};
+		if (handler != null) {
+			context.registerReceiver(receiver, filter, null, handler);
+		}
+		else {
+			context.registerReceiver(receiver, filter);
+		}
+		return new BroadcastRegistration(context, receiver);
+	}
+
+	void unregister() {
+		try {
+			context.unregisterReceiver(receiver);
+		}
+		catch (Exception e) {
+			// no op
+		}
+	}
+}
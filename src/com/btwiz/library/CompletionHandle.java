@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The pending result of an asynchronous operation (discovery, lookup, connect). 
+ *
+ * Completes once, with a result or an error. Waiting threads wake at once on completion 
+ * (no polling), and work may be chained via whenComplete():
+ *
+ * 			CompletionHandle<BTSocket> handle = BTWiz.connectAsClientAsync(context, device);
+ * 			if (handle.await(10000) && handle.isSuccess()) {
+ * 				BTSocket socket = handle.getResult();
+ * 				....
+ * 			}
+ */
+public class CompletionHandle<T> {
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private final Object lock = new Object();
+
+	private ArrayList<ICompletionListener<T>> listeners = new ArrayList<ICompletionListener<T>>(); // null once completed
+	private volatile T result;
+	private volatile Exception error;
+
+
+	/**
+	 * Completes the handle successfully. Returns false if already completed
+	 */
+	public boolean complete(T result) {
+		return completeWith(result, null);
+	}
+
+	/**
+	 * Completes the handle with an error. Returns false if already completed
+	 */
+	public boolean fail(Exception error) {
+		if (error==null) {
+			throw new RuntimeException("Error cannot be null!");
+		}
+		return completeWith(null, error);
+	}
+
+	private boolean completeWith(T result, Exception error) {
+		ArrayList<ICompletionListener<T>> toNotify;
+		synchronized (lock) {
+			if (listeners == null) {
+				return false;
+			}
+			this.result = result;
+			this.error = error;
+			toNotify = listeners;
+			listeners = null;
+			latch.countDown(); // done before the lock is released, see whenComplete()
+		}
+		for (ICompletionListener<T> listener: toNotify) {
+			notify(listener);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Registers a listener called on completion, at once if already completed
+	 */
+	public void whenComplete(ICompletionListener<T> listener) {
+		if (listener==null) {
+			throw new RuntimeException("Listener cannot be null!");
+		}
+		synchronized (lock) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		notify(listener);
+	}
+
+	private void notify(ICompletionListener<T> listener) {
+		try {
+			listener.onComplete(this);
+		}
+		catch (RuntimeException e) {
+			BTLog.e("CompletionHandle", "Completion listener error: " + e);
+		}
+	}
+
+
+	/**
+	 * Blocks until completed, or until timeoutMs passed or the thread was interrupted 
+	 * (the interrupt flag is kept). Returns true if completed
+	 */
+	public boolean await(long timeoutMs) {
+		try {
+			return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return isDone();
+		}
+	}
+
+	/**
+	 * Blocks until completed, or until the thread was interrupted (the interrupt flag is kept).
+	 * Returns true if completed
+	 */
+	public boolean await() {
+		try {
+			latch.await();
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return isDone();
+		}
+	}
+
+
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+	/**
+	 * Returns true if completed without an error
+	 */
+	public boolean isSuccess() {
+		return isDone() && error == null;
+	}
+
+	/**
+	 * The result, null if not (successfully) completed. Null is also a valid result, 
+	 * e.g. of a lookup which found nothing
+	 */
+	public T getResult() {
+		return result;
+	}
+
+	/**
+	 * The error, null if not completed or completed successfully
+	 */
+	public Exception getError() {
+		return error;
+	}
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.io.IOException;
+
+/**
+ * Indicates a connect attempt (or a whole connect procedure) did not complete 
+ * before its deadline. The socket was force-closed.
+ */
+public class ConnectTimeoutException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ConnectTimeoutException(String message) {
+		super(message);
+	}
+}
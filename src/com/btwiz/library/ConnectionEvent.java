@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * An immutable connection lifecycle event, see ConnectionEventBus
+ */
+public final class ConnectionEvent {
+
+	public static final long NO_CONNECTION_ID = -1;
+
+	public enum Type {
+		CONNECTING, CONNECTED, DISCONNECTED, ERROR, 
+		DISCOVERY_STARTED, DEVICE_FOUND, DISCOVERY_FINISHED;
+	}
+
+
+	private final Type type;
+	private final long time;
+	private final long connectionId;
+	private final String address;
+	private final Exception error;
+	private final String where;
+
+
+	public ConnectionEvent(Type type, long connectionId, String address, Exception error, String where) {
+		if (type==null) {
+			throw new RuntimeException("Event type cannot be null!");
+		}
+		this.type = type;
+		this.time = System.currentTimeMillis();
+		this.connectionId = connectionId;
+		this.address = address;
+		this.error = error;
+		this.where = where;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Publishing time, in System.currentTimeMillis() units
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * The BTSocket connection id, or NO_CONNECTION_ID for discovery events
+	 */
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * The remote device address (possibly null)
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * The error of an ERROR event (possibly null for other types)
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	/**
+	 * Where the event occurred (e.g. "connect", "read", "accept"), possibly null
+	 */
+	public String getWhere() {
+		return where;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(type.toString());
+		if (address != null) {
+			sb.append(' ').append(address);
+		}
+		if (connectionId != NO_CONNECTION_ID) {
+			sb.append(" #").append(connectionId);
+		}
+		if (where != null) {
+			sb.append(" at ").append(where);
+		}
+		if (error != null) {
+			sb.append(": ").append(error);
+		}
+		return sb.toString();
+	}
+}
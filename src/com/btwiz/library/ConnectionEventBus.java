@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Publishes connection lifecycle events (connecting, connected, disconnected, 
+ * errors and discovery) of all an engine's sockets to any number of subscribers.
+ *
+ * Publishing never blocks: each subscriber has a bounded queue drained in order 
+ * on its own executor. When a slow subscriber's queue is full, new events for that 
+ * subscriber are dropped (and counted), so IO threads are never stalled.
+ *
+ * Typical usage:
+ *
+ * 			BTWiz.getEventBus().subscribe(new IConnectionEventListener() {
+ * 				public void onEvent(ConnectionEvent event) {
+ * 					BTLog.d("MyApp", "BT event: " + event);
+ * 				}
+ * 			});
+ */
+public class ConnectionEventBus {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+
+	/**
+	 * Subscribes a listener, activated on a dedicated thread  
+	 */
+	public void subscribe(IConnectionEventListener listener) {
+		ExecutorService thread = Executors.newSingleThreadExecutor(new BTExecutors.NamedThreadFactory("BTWiz-events"));
+		subscribers.add(new Subscriber(listener, thread, DEFAULT_QUEUE_CAPACITY, thread));
+	}
+
+	/**
+	 * Subscribes a listener, activated on the given executor (e.g. the UI thread's).
+	 * At most queueCapacity events are kept pending for it 
+	 */
+	public void subscribe(IConnectionEventListener listener, Executor executor, int queueCapacity) {
+		if (executor==null || queueCapacity < 1) {
+			throw new RuntimeException("Bad subscribe params!");
+		}
+		subscribers.add(new Subscriber(listener, executor, queueCapacity, null));
+	}
+
+	/**
+	 * Unsubscribes a listener. Pending events are not delivered
+	 */
+	public void unsubscribe(IConnectionEventListener listener) {
+		for (Subscriber subscriber: subscribers) {
+			if (subscriber.listener == listener) {
+				subscribers.remove(subscriber);
+				subscriber.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribes all listeners
+	 */
+	public void unsubscribeAll() {
+		for (Subscriber subscriber: subscribers) {
+			subscribers.remove(subscriber);
+			subscriber.shutdown();
+		}
+	}
+
+	/**
+	 * Returns true if anyone listens. Publishers may test it to avoid creating events
+	 */
+	public boolean hasSubscribers() {
+		return !subscribers.isEmpty();
+	}
+
+	/**
+	 * Returns the number of events dropped so far since a (current) subscriber's queue was full 
+	 */
+	public long getDroppedCount() {
+		long dropped = 0;
+		for (Subscriber subscriber: subscribers) {
+			dropped += subscriber.dropped.get();
+		}
+		return dropped;
+	}
+
+
+	/**
+	 * Publishes an event to all subscribers (non blocking)
+	 */
+	public void publish(ConnectionEvent event) {
+		for (Subscriber subscriber: subscribers) {
+			subscriber.offer(event);
+		}
+	}
+
+	void publish(ConnectionEvent.Type type, BTSocket socket, Exception error, String where) {
+		if (subscribers.isEmpty()) {
+			return;
+		}
+		publish(new ConnectionEvent(type, socket.getConnectionId(), socket.getRemoteAddress(), error, where));
+	}
+
+	void publish(ConnectionEvent.Type type, String address) {
+		if (subscribers.isEmpty()) {
+			return;
+		}
+		publish(new ConnectionEvent(type, ConnectionEvent.NO_CONNECTION_ID, address, null, null));
+	}
+
+
+	/**
+	 * A subscriber and its pending events. Events are drained by a single task at a 
+	 * time, so the listener sees them in order even on a multi threaded executor
+	 */
+	private static class Subscriber implements Runnable {
+		final IConnectionEventListener listener;
+		final Executor executor;
+		final int capacity;
+		final ExecutorService ownThread; // null if the executor is not ours
+
+		final ConcurrentLinkedQueue<ConnectionEvent> queue = new ConcurrentLinkedQueue<ConnectionEvent>();
+		final AtomicInteger size = new AtomicInteger();
+		final AtomicBoolean draining = new AtomicBoolean();
+		final AtomicLong dropped = new AtomicLong();
+		volatile boolean active = true;
+
+		Subscriber(IConnectionEventListener listener, Executor executor, int capacity, ExecutorService ownThread) {
+			if (listener==null) {
+				throw new RuntimeException("Listener cannot be null!");
+			}
+			this.listener = listener;
+			this.executor = executor;
+			this.capacity = capacity;
+			this.ownThread = ownThread;
+		}
+
+		void offer(ConnectionEvent event) {
+			if (size.incrementAndGet() > capacity) {
+				size.decrementAndGet();
+				dropped.incrementAndGet();
+				return;
+			}
+			queue.offer(event);
+			scheduleDrain();
+		}
+
+		private void scheduleDrain() {
+			if (active && draining.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				}
+				catch (RejectedExecutionException e) {
+					draining.set(false);
+					BTLog.e("ConnectionEventBus", "Subscriber executor rejected events: " + e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			ConnectionEvent event;
+			while (active && (event = queue.poll()) != null) {
+				size.decrementAndGet();
+				try {
+					listener.onEvent(event);
+				}
+				catch (RuntimeException e) {
+					BTLog.e("ConnectionEventBus", "Subscriber error: " + e);
+				}
+			}
+			draining.set(false);
+			if (!queue.isEmpty()) {
+				scheduleDrain(); // an event arrived after the last poll
+			}
+		}
+
+		void shutdown() {
+			active = false;
+			queue.clear();
+			if (ownThread != null) {
+				ownThread.shutdown();
+			}
+		}
+	}
+}
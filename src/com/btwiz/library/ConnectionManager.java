@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledFuture;
+
+
+/**
+ * Connects a set of target devices with a bounded number of concurrent connect
+ * attempts (BT controllers handle only a few concurrent pages), higher priority
+ * targets first. Failed attempts are retried with an exponential backoff.
+ *
+ * Note that BTWiz.setConnectLimits() caps connects library wide; when using the
+ * default BTWizConnector it should allow at least maxConcurrent connects.
+ *
+ * Typical usage:
+ *
+ * 			ConnectionManager manager = new ConnectionManager(new BTWizConnector(context), managerListener);
+ * 			manager.setMaxConcurrent(3);
+ * 			manager.addTarget("00:11:22:33:44:55", HIGH_PRIORITY);
+ * 			....
+ * 			manager.start();
+ */
+public class ConnectionManager {
+
+	public static final int DEFAULT_PRIORITY = 0;
+	public static final int DEFAULT_MAX_CONCURRENT = 2;
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_RETRY_DELAY_MS = 1000;
+
+	/**
+	 * State of a single target device
+	 */
+	public enum TargetState {
+		PENDING, CONNECTING, WAITING_RETRY, CONNECTED, FAILED;
+	}
+
+
+	private final IDeviceConnector connector;
+	private final IConnectionManagerListener listener;
+	private final BTExecutors executors;
+
+	private final Object lock = new Object();
+	private final LinkedHashMap<String, Target> targets = new LinkedHashMap<String, Target>();
+	private final PriorityQueue<Target> readyQueue = new PriorityQueue<Target>();
+
+	private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long retryDelayMs = DEFAULT_RETRY_DELAY_MS;
+
+	private int inFlight = 0;
+	private int numConnected = 0;
+	private int numFailed = 0;
+	private long insertionCounter = 0;
+	private boolean running = false;
+	private boolean completedReported = false;
+
+
+	public ConnectionManager(IDeviceConnector connector, IConnectionManagerListener listener) {
+		this(connector, listener, BTWiz.getExecutors());
+	}
+
+	/**
+	 * executors are used for retry timers
+	 */
+	public ConnectionManager(IDeviceConnector connector, IConnectionManagerListener listener, BTExecutors executors) {
+		if (connector==null || listener==null || executors==null) {
+			throw new RuntimeException("Bad ConnectionManager params!");
+		}
+		this.connector = connector;
+		this.listener = listener;
+		this.executors = executors;
+	}
+
+
+	/**
+	 * Sets the max number of concurrent connect attempts
+	 */
+	public void setMaxConcurrent(int maxConcurrent) {
+		if (maxConcurrent < 1) {
+			throw new RuntimeException("Bad max concurrent value!");
+		}
+		synchronized (lock) {
+			this.maxConcurrent = maxConcurrent;
+		}
+		pump();
+	}
+
+	/**
+	 * Sets the number of attempts per device and the base retry delay, doubled on each retry
+	 */
+	public void setRetryPolicy(int maxAttempts, long retryDelayMs) {
+		if (maxAttempts < 1 || retryDelayMs < 0) {
+			throw new RuntimeException("Bad retry policy!");
+		}
+		synchronized (lock) {
+			this.maxAttempts = maxAttempts;
+			this.retryDelayMs = retryDelayMs;
+		}
+	}
+
+
+	/**
+	 * Adds a target device with the default priority
+	 */
+	public void addTarget(String address) {
+		addTarget(address, DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Adds a target device. Targets with a higher priority value are connected first.
+	 * May be called after start(); re-adding a known address is ignored
+	 */
+	public void addTarget(String address, int priority) {
+		if (address==null) {
+			throw new RuntimeException("Target address cannot be null!");
+		}
+		synchronized (lock) {
+			if (targets.containsKey(address)) {
+				return;
+			}
+			Target target = new Target(address, priority, insertionCounter++);
+			targets.put(address, target);
+			readyQueue.add(target);
+			completedReported = false;
+		}
+		pump();
+	}
+
+
+	/**
+	 * Starts connecting targets
+	 */
+	public void start() {
+		synchronized (lock) {
+			running = true;
+		}
+		pump();
+	}
+
+	/**
+	 * Stops dispatching new connect attempts. Running attempts complete normally, pending retries are dropped
+	 */
+	public void stop() {
+		synchronized (lock) {
+			running = false;
+			for (Target target: targets.values()) {
+				if (target.retryFuture != null) {
+					target.retryFuture.cancel(false);
+					target.retryFuture = null;
+					target.state = TargetState.PENDING;
+					readyQueue.add(target);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the state of a target, or null if unknown
+	 */
+	public TargetState getState(String address) {
+		synchronized (lock) {
+			Target target = targets.get(address);
+			return target == null ? null : target.state;
+		}
+	}
+
+	/**
+	 * Returns the connected socket of a target, or null if not (yet) connected
+	 */
+	public BTSocket getSocket(String address) {
+		synchronized (lock) {
+			Target target = targets.get(address);
+			return target == null ? null : target.socket;
+		}
+	}
+
+	public int getConnectedCount() {
+		synchronized (lock) {
+			return numConnected;
+		}
+	}
+
+	public int getFailedCount() {
+		synchronized (lock) {
+			return numFailed;
+		}
+	}
+
+	public int getInFlightCount() {
+		synchronized (lock) {
+			return inFlight;
+		}
+	}
+
+
+	/**
+	 * Dispatches as many ready targets as the concurrency limit allows
+	 */
+	private void pump() {
+		List<Target> toConnect = new ArrayList<Target>();
+		synchronized (lock) {
+			while (running && inFlight < maxConcurrent && !readyQueue.isEmpty()) {
+				Target target = readyQueue.poll();
+				target.state = TargetState.CONNECTING;
+				target.attempts++;
+				inFlight++;
+				toConnect.add(target);
+			}
+		}
+		for (Target target: toConnect) {
+			connect(target, target.attempts);
+		}
+	}
+
+	private void connect(final Target target, final int attempt) {
+		IDeviceConnectionListener attemptListener = new IDeviceConnectionListener() {
+			@Override
+			public void onConnectSuccess(BTSocket clientSocket) {
+				onAttemptDone(target, attempt, clientSocket, null);
+			}
+			@Override
+			public void onConnectionError(Exception exception, String where) {
+				Exception e = exception != null ? exception : new Exception("Connect failed at " + where);
+				onAttemptDone(target, attempt, null, e);
+			}
+		};
+		try {
+			connector.connectAsync(target.address, attemptListener);
+		}
+		catch (RuntimeException e) {
+			BTLog.e("ConnectionManager", "Connector error: " + e);
+			onAttemptDone(target, attempt, null, e);
+		}
+	}
+
+	private void onAttemptDone(final Target target, int attempt, BTSocket socket, Exception error) {
+		boolean connected = false;
+		boolean failed = false;
+		boolean allCompleted = false;
+		int connectedNow, failedNow, total;
+		synchronized (lock) {
+			if (target.state != TargetState.CONNECTING || target.attempts != attempt) {
+				return; // duplicate callback
+			}
+			inFlight--;
+			if (error == null) {
+				target.state = TargetState.CONNECTED;
+				target.socket = socket;
+				numConnected++;
+				connected = true;
+			}
+			else if (target.attempts >= maxAttempts) {
+				target.state = TargetState.FAILED;
+				numFailed++;
+				failed = true;
+			}
+			else {
+				target.state = TargetState.WAITING_RETRY;
+				long delay = retryDelayMs << Math.min(target.attempts - 1, 16);
+				target.retryFuture = executors.schedule(new Runnable() {
+					@Override
+					public void run() {
+						onRetryDue(target);
+					}
+				}, delay);
+			}
+			connectedNow = numConnected;
+			failedNow = numFailed;
+			total = targets.size();
+			if (connectedNow + failedNow == total && !completedReported) {
+				completedReported = true;
+				allCompleted = true;
+			}
+		}
+
+		if (connected) {
+			listener.onDeviceConnected(target.address, socket);
+		}
+		else if (failed) {
+			BTLog.e("ConnectionManager", "Giving up on " + target.address + " after " + attempt + " attempts: " + error);
+			listener.onDeviceFailed(target.address, error, attempt);
+		}
+		listener.onProgress(connectedNow, failedNow, total);
+		if (allCompleted) {
+			listener.onAllCompleted(connectedNow, failedNow);
+		}
+		pump();
+	}
+
+	private void onRetryDue(Target target) {
+		synchronized (lock) {
+			if (target.state != TargetState.WAITING_RETRY) {
+				return;
+			}
+			target.retryFuture = null;
+			target.state = TargetState.PENDING;
+			readyQueue.add(target);
+		}
+		pump();
+	}
+
+
+	/**
+	 * A target device. Ordered by priority (descending) then insertion order
+	 */
+	private static class Target implements Comparable<Target> {
+		final String address;
+		final int priority;
+		final long insertionOrder;
+		TargetState state = TargetState.PENDING;
+		int attempts = 0;
+		BTSocket socket;
+		ScheduledFuture<?> retryFuture;
+
+		Target(String address, int priority, long insertionOrder) {
+			this.address = address;
+			this.priority = priority;
+			this.insertionOrder = insertionOrder;
+		}
+
+		@Override
+		public int compareTo(Target other) {
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return insertionOrder < other.insertionOrder ? -1 : (insertionOrder == other.insertionOrder ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,395 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.bluetooth.BluetoothAdapter;
+
+/**
+ * Remembers devices seen by discovery (address, name, class, RSSI, last seen time), 
+ * so lookups can be served without a new discovery while the entry is within TTL.
+ *
+ * Persisted in a compact binary file: a header followed by fixed layout records
+ * (6 address bytes, name, class, RSSI, last seen time, service UUIDs).
+ *
+ * Entries are also kept in a DeviceIndex, so DeviceQuery lookups do not scan the whole cache.
+ *
+ * Devices known but not seen by discovery (lastSeen NEVER_SEEN, e.g. bonded devices, see 
+ * BTWizEngine.getDeviceSnapshot()) are kept for their name and class, but never served by lookups.
+ */
+public class DeviceCache {
+
+	public static final long DEFAULT_TTL_MS = 30 * 60 * 1000;
+	public static final int DEFAULT_MAX_ENTRIES = 512;
+
+	private static final int FILE_MAGIC = 0x42545744; // "BTWD"
+	private static final int FILE_VERSION = 2; // 2: added UUIDs
+
+	/**
+	 * Most recently seen first
+	 */
+	private static final Comparator<DeviceSnapshot> RECENT_FIRST = new Comparator<DeviceSnapshot>() {
+		@Override
+		public int compare(DeviceSnapshot lhs, DeviceSnapshot rhs) {
+			long l = lhs.getLastSeen(), r = rhs.getLastSeen();
+			return l > r ? -1 : (l == r ? 0 : 1);
+		}
+	};
+
+
+	private final ConcurrentHashMap<String, DeviceSnapshot> entries = new ConcurrentHashMap<String, DeviceSnapshot>();
+	private final DeviceIndex index = new DeviceIndex(); // updated along with entries, under the cache lock
+	private volatile long ttlMs = DEFAULT_TTL_MS;
+	private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+	private volatile boolean dirty = false;
+
+
+	/**
+	 * Sets how long a seen device is served to lookups. 0 disables serving lookups from cache
+	 */
+	public void setTtl(long ttlMs) {
+		if (ttlMs < 0) {
+			throw new RuntimeException("Bad TTL!");
+		}
+		this.ttlMs = ttlMs;
+	}
+
+	public long getTtl() {
+		return ttlMs;
+	}
+
+	/**
+	 * Sets the max number of remembered devices; the least recently seen are evicted
+	 */
+	public void setMaxEntries(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new RuntimeException("Bad max entries!");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+
+	/**
+	 * Records a sighting, replacing an older snapshot of the same device.
+	 * Fields the sighting lacks (e.g. name, UUIDs, bond state) are kept from the older 
+	 * snapshot. Returns the recorded snapshot
+	 */
+	public synchronized DeviceSnapshot record(DeviceSnapshot snapshot) {
+		DeviceSnapshot prior = entries.get(snapshot.getAddress());
+		if (prior != null) {
+			if (prior.getLastSeen() > snapshot.getLastSeen()) {
+				return prior; // keep the newer one
+			}
+			snapshot = snapshot.mergeWith(prior);
+		}
+		putLocked(snapshot);
+		if (entries.size() > maxEntries) {
+			evictOldest();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Sets the service UUIDs of a cached device, see SdpCache
+	 */
+	public synchronized void updateUuids(String address, UUID[] uuids) {
+		DeviceSnapshot prior = entries.get(address);
+		if (prior != null) {
+			putLocked(prior.withUuids(uuids));
+		}
+	}
+
+	/**
+	 * Sets the name of a cached device, on ACTION_NAME_CHANGED
+	 */
+	public synchronized void updateName(String address, String name) {
+		DeviceSnapshot prior = entries.get(address);
+		if (prior != null && name != null && !name.equals(prior.getName())) {
+			putLocked(prior.withName(name));
+		}
+	}
+
+	/**
+	 * Sets the device class of a cached device, on ACTION_CLASS_CHANGED
+	 */
+	public synchronized void updateDeviceClass(String address, int deviceClass) {
+		DeviceSnapshot prior = entries.get(address);
+		if (prior != null && deviceClass != prior.getDeviceClass()) {
+			putLocked(prior.withDeviceClass(deviceClass));
+		}
+	}
+
+	/**
+	 * Sets the bond state of a cached device, on ACTION_BOND_STATE_CHANGED
+	 */
+	public synchronized void updateBondState(String address, int bondState) {
+		DeviceSnapshot prior = entries.get(address);
+		if (prior != null && bondState != prior.getBondState()) {
+			putLocked(prior.withBondState(bondState));
+		}
+	}
+
+	/**
+	 * Returns the snapshot of a device regardless of TTL, or null if unknown
+	 */
+	DeviceSnapshot peek(String address) {
+		return entries.get(address);
+	}
+
+	private void putLocked(DeviceSnapshot snapshot) {
+		entries.put(snapshot.getAddress(), snapshot);
+		index.add(snapshot);
+		dirty = true;
+	}
+
+	/**
+	 * Returns the snapshot of a device if seen within TTL, else null
+	 */
+	public DeviceSnapshot get(String address) {
+		DeviceSnapshot snapshot = entries.get(address);
+		return snapshot != null && isFresh(snapshot) ? snapshot : null;
+	}
+
+	/**
+	 * Returns all devices seen within TTL, most recently seen first
+	 */
+	public List<DeviceSnapshot> getAll() {
+		ArrayList<DeviceSnapshot> fresh = new ArrayList<DeviceSnapshot>(entries.size());
+		for (DeviceSnapshot snapshot: entries.values()) {
+			if (isFresh(snapshot)) {
+				fresh.add(snapshot);
+			}
+		}
+		Collections.sort(fresh, RECENT_FIRST);
+		return fresh;
+	}
+
+	/**
+	 * Returns the devices seen within TTL matching query, most recently seen first.
+	 * Filtered via the index
+	 */
+	public List<DeviceSnapshot> query(DeviceQuery query) {
+		List<DeviceSnapshot> matches = index.query(query);
+		ArrayList<DeviceSnapshot> fresh = new ArrayList<DeviceSnapshot>(matches.size());
+		for (DeviceSnapshot snapshot: matches) {
+			if (isFresh(snapshot)) {
+				fresh.add(snapshot);
+			}
+		}
+		Collections.sort(fresh, RECENT_FIRST);
+		return fresh;
+	}
+
+	/**
+	 * Returns the most recently seen device (within TTL) matching comparator, or null.
+	 * A DeviceQuery is evaluated via the index, other ISnapshotComparators against each 
+	 * snapshot, and other comparators against adapter.getRemoteDevice() (stack cached 
+	 * values, possibly IPC)
+	 */
+	public DeviceSnapshot findMostRecent(IDeviceComparator comparator, BluetoothAdapter adapter) {
+		if (comparator instanceof DeviceQuery) {
+			List<DeviceSnapshot> matches = query((DeviceQuery)comparator);
+			return matches.isEmpty() ? null : matches.get(0);
+		}
+		for (DeviceSnapshot snapshot: getAll()) {
+			boolean match;
+			if (comparator instanceof ISnapshotComparator) {
+				match = ((ISnapshotComparator)comparator).match(snapshot);
+			}
+			else {
+				try {
+					match = comparator.match(adapter.getRemoteDevice(snapshot.getAddress()));
+				}
+				catch (RuntimeException e) {
+					match = false; // e.g. getBluetoothClass() of an unknown device returns null
+				}
+			}
+			if (match) {
+				return snapshot;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		index.clear();
+		dirty = true;
+	}
+
+
+	private boolean isFresh(DeviceSnapshot snapshot) {
+		return snapshot.getLastSeen() != DeviceSnapshot.NEVER_SEEN && snapshot.getAge() <= ttlMs;
+	}
+
+	private synchronized void evictOldest() {
+		while (entries.size() > maxEntries) {
+			DeviceSnapshot oldest = null;
+			for (DeviceSnapshot snapshot: entries.values()) {
+				if (oldest == null || snapshot.getLastSeen() < oldest.getLastSeen()) {
+					oldest = snapshot;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			entries.remove(oldest.getAddress());
+			index.remove(oldest.getAddress());
+		}
+	}
+
+
+	/**
+	 * Loads entries from file, keeping newer in-memory ones. A missing file is not an error
+	 */
+	public synchronized void load(File file) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = 0;
+			if (in.readInt() != FILE_MAGIC || (version = in.readInt()) > FILE_VERSION) {
+				BTLog.e("DeviceCache", "Ignoring unknown cache file format: " + file);
+				return;
+			}
+			int count = in.readInt();
+			byte[] addressBytes = new byte[6];
+			for (int i = 0; i < count; i++) {
+				in.readFully(addressBytes);
+				String name = in.readBoolean() ? in.readUTF() : null;
+				int deviceClass = in.readInt();
+				short rssi = in.readShort();
+				long lastSeen = in.readLong();
+				UUID[] uuids = null;
+				if (version >= 2) {
+					int numUuids = in.readShort();
+					if (numUuids >= 0) {
+						uuids = new UUID[numUuids];
+						for (int j = 0; j < numUuids; j++) {
+							uuids[j] = new UUID(in.readLong(), in.readLong());
+						}
+					}
+				}
+				DeviceSnapshot snapshot = new DeviceSnapshot(addressToString(addressBytes), name, deviceClass, rssi, lastSeen, uuids);
+				if (isFresh(snapshot) && !entries.containsKey(snapshot.getAddress())) {
+					entries.put(snapshot.getAddress(), snapshot);
+					index.add(snapshot);
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		if (entries.size() > maxEntries) {
+			evictOldest();
+		}
+	}
+
+	/**
+	 * Saves all entries seen within TTL, if changed since the last save/load.
+	 * Written to a temp file first, then renamed over file
+	 */
+	public synchronized void save(File file) throws IOException {
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+		List<DeviceSnapshot> fresh = getAll();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		boolean success = false;
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(fresh.size());
+			for (DeviceSnapshot snapshot: fresh) {
+				out.write(addressToBytes(snapshot.getAddress()));
+				out.writeBoolean(snapshot.getName() != null);
+				if (snapshot.getName() != null) {
+					out.writeUTF(snapshot.getName());
+				}
+				out.writeInt(snapshot.getDeviceClass());
+				out.writeShort(snapshot.getRssi());
+				out.writeLong(snapshot.getLastSeen());
+				UUID[] uuids = snapshot.getUuids();
+				out.writeShort(uuids == null ? -1 : uuids.length);
+				if (uuids != null) {
+					for (UUID uuid: uuids) {
+						out.writeLong(uuid.getMostSignificantBits());
+						out.writeLong(uuid.getLeastSignificantBits());
+					}
+				}
+			}
+			success = true;
+		}
+		finally {
+			out.close();
+			if (!success) {
+				dirty = true;
+				tmp.delete();
+			}
+		}
+		if (!tmp.renameTo(file)) {
+			dirty = true;
+			tmp.delete();
+			throw new IOException("Failed renaming " + tmp + " to " + file);
+		}
+	}
+
+
+	/**
+	 * "00:11:22:AA:BB:CC" to 6 bytes
+	 */
+	private static byte[] addressToBytes(String address) {
+		byte[] bytes = new byte[6];
+		for (int i = 0; i < 6; i++) {
+			bytes[i] = (byte)Integer.parseInt(address.substring(i * 3, i * 3 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static String addressToString(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(17);
+		for (int i = 0; i < 6; i++) {
+			if (i > 0) {
+				sb.append(':');
+			}
+			int b = bytes[i] & 0xFF;
+			sb.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+			sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Indexes device snapshots by name, major class and service UUIDs, so a DeviceQuery 
+ * can be evaluated against large device sets without a full scan: only the candidates 
+ * returned by the query's indexed criteria are matched.
+ * Thread safe
+ */
+public class DeviceIndex {
+
+	private final HashMap<String, DeviceSnapshot> snapshots = new HashMap<String, DeviceSnapshot>();
+	private final TreeMap<String, HashSet<String>> byName = new TreeMap<String, HashSet<String>>();
+	private final HashMap<Integer, HashSet<String>> byMajor = new HashMap<Integer, HashSet<String>>();
+	private final HashMap<UUID, HashSet<String>> byService = new HashMap<UUID, HashSet<String>>();
+
+
+	/**
+	 * Adds a snapshot, replacing a prior snapshot of the same device
+	 */
+	public synchronized void add(DeviceSnapshot snapshot) {
+		String address = snapshot.getAddress();
+		DeviceSnapshot prior = snapshots.put(address, snapshot);
+		if (prior != null) {
+			unindex(prior);
+		}
+		if (snapshot.getName() != null) {
+			addTo(byName, snapshot.getName(), address);
+		}
+		addTo(byMajor, snapshot.getMajorDeviceClass(), address);
+		UUID[] uuids = snapshot.getUuids();
+		if (uuids != null) {
+			for (UUID uuid: uuids) {
+				addTo(byService, uuid, address);
+			}
+		}
+	}
+
+	/**
+	 * Removes a device. Returns its snapshot, or null if not indexed
+	 */
+	public synchronized DeviceSnapshot remove(String address) {
+		DeviceSnapshot prior = snapshots.remove(address);
+		if (prior != null) {
+			unindex(prior);
+		}
+		return prior;
+	}
+
+	public synchronized DeviceSnapshot get(String address) {
+		return snapshots.get(address);
+	}
+
+	public synchronized int size() {
+		return snapshots.size();
+	}
+
+	public synchronized void clear() {
+		snapshots.clear();
+		byName.clear();
+		byMajor.clear();
+		byService.clear();
+	}
+
+
+	/**
+	 * Returns the snapshots matching query
+	 */
+	public synchronized List<DeviceSnapshot> query(DeviceQuery query) {
+		ArrayList<DeviceSnapshot> results = new ArrayList<DeviceSnapshot>();
+		Set<String> candidates = query.candidates(this);
+		if (candidates == null) { // full scan
+			for (DeviceSnapshot snapshot: snapshots.values()) {
+				if (query.match(snapshot)) {
+					results.add(snapshot);
+				}
+			}
+			return results;
+		}
+		for (String address: candidates) {
+			DeviceSnapshot snapshot = snapshots.get(address);
+			if (snapshot != null && query.match(snapshot)) {
+				results.add(snapshot);
+			}
+		}
+		return results;
+	}
+
+
+	// candidate lookups, called by DeviceQuery.candidates() while holding the index lock
+
+	Set<String> byName(String name) {
+		return orEmpty(byName.get(name));
+	}
+
+	Set<String> byNamePrefix(String prefix) {
+		HashSet<String> results = new HashSet<String>();
+		for (HashSet<String> addresses: byName.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+			results.addAll(addresses);
+		}
+		return results;
+	}
+
+	Set<String> byMajor(int majorDeviceClass) {
+		return orEmpty(byMajor.get(majorDeviceClass));
+	}
+
+	Set<String> byService(UUID uuid) {
+		return orEmpty(byService.get(uuid));
+	}
+
+
+	private void unindex(DeviceSnapshot snapshot) {
+		String address = snapshot.getAddress();
+		if (snapshot.getName() != null) {
+			removeFrom(byName, snapshot.getName(), address);
+		}
+		removeFrom(byMajor, snapshot.getMajorDeviceClass(), address);
+		UUID[] uuids = snapshot.getUuids();
+		if (uuids != null) {
+			for (UUID uuid: uuids) {
+				removeFrom(byService, uuid, address);
+			}
+		}
+	}
+
+	private static <K> void addTo(Map<K, HashSet<String>> map, K key, String address) {
+		HashSet<String> addresses = map.get(key);
+		if (addresses == null) {
+			addresses = new HashSet<String>();
+			map.put(key, addresses);
+		}
+		addresses.add(address);
+	}
+
+	private static <K> void removeFrom(Map<K, HashSet<String>> map, K key, String address) {
+		HashSet<String> addresses = map.get(key);
+		if (addresses != null) {
+			addresses.remove(address);
+			if (addresses.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+
+	private static Set<String> orEmpty(Set<String> set) {
+		return set == null ? Collections.<String>emptySet() : set;
+	}
+}
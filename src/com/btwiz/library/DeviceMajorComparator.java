@@ -33,7 +33,7 @@ import android.bluetooth.BluetoothDevice;
  * Allows comparing devices based on their major device class plus an optional device name.   
  * See http://developer.android.com/reference/android/bluetooth/BluetoothClass.Device.Major.html 
  */
-public class DeviceMajorComparator implements IDeviceComparator {
+public class DeviceMajorComparator implements ISnapshotComparator {
 
 	/**
 	 * Major device class to be matched against, e.g. AUDIO_VIDEO, COMPUTER, HEALTH   
@@ -66,15 +66,21 @@ public class DeviceMajorComparator implements IDeviceComparator {
 	 */
 	@Override
 	public boolean match(BluetoothDevice device) {
-		int deviceMajor = device.getBluetoothClass().getMajorDeviceClass(); // e.g. AUDIO_VIDEO, COMPUTER..
-		String deviceName = device.getName();
+		return match(DeviceSnapshot.fromDevice(device)); // IPC; library paths match cached snapshots instead
+	}
+
+	/**
+	 * As match(BluetoothDevice), against a cached device snapshot
+	 */
+	@Override
+	public boolean match(DeviceSnapshot snapshot) {
 		if (this.majorDeviceClass > -1) {
-			if (this.majorDeviceClass != deviceMajor) {
+			if (this.majorDeviceClass != snapshot.getMajorDeviceClass()) {
 				return false;
 			}
 		}
 		if (this.name != null) {
-			if (!this.name.equals(deviceName)) {
+			if (!this.name.equals(snapshot.getName())) {
 				return false;
 			}						
 		}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * A compiled, immutable device query: name (exact/prefix/regex), addresses, major or 
+ * full (major & minor) device class, service UUIDs, RSSI, and boolean combinations thereof.
+ *
+ * Evaluated against DeviceSnapshots without any IPC; matching a BluetoothDevice takes 
+ * a single snapshot of it first. A DeviceIndex uses the query's indexable criteria to 
+ * filter large device sets without a full scan.
+ *
+ * Typical usage:
+ *
+ * 			DeviceQuery query = DeviceQuery.and(
+ * 					DeviceQuery.major(AUDIO_VIDEO), 
+ * 					DeviceQuery.or(DeviceQuery.namePrefix("JBL"), DeviceQuery.hasService(A2DP_UUID)));
+ * 			DeviceSnapshot snapshot = BTWiz.getDeviceCache().findMostRecent(query, null);
+ */
+public abstract class DeviceQuery implements ISnapshotComparator {
+
+	/**
+	 * Returns true if the snapshot matches the query
+	 */
+	@Override
+	public abstract boolean match(DeviceSnapshot snapshot);
+
+	/**
+	 * Matches a device by taking a snapshot of it (two IPC calls, regardless of query complexity)
+	 */
+	@Override
+	public boolean match(BluetoothDevice device) {
+		return match(DeviceSnapshot.fromDevice(device));
+	}
+
+	/**
+	 * Returns the addresses of all indexed devices possibly matching this query, 
+	 * or null if the index cannot narrow it down (a full scan is needed)
+	 */
+	abstract Set<String> candidates(DeviceIndex index);
+
+
+	// factories
+
+	public static DeviceQuery any() {
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return true;
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return null;
+			}
+		};
+	}
+
+	public static DeviceQuery nameEquals(final String name) {
+		assertParam(name);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return name.equals(snapshot.getName());
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return index.byName(name);
+			}
+		};
+	}
+
+	public static DeviceQuery namePrefix(final String prefix) {
+		assertParam(prefix);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				String name = snapshot.getName();
+				return name != null && name.startsWith(prefix);
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return index.byNamePrefix(prefix);
+			}
+		};
+	}
+
+	/**
+	 * Matches names against a regular expression, compiled once. Not indexed
+	 */
+	public static DeviceQuery nameMatches(String regex) {
+		assertParam(regex);
+		final Pattern pattern = Pattern.compile(regex);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				String name = snapshot.getName();
+				return name != null && pattern.matcher(name).matches();
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return null;
+			}
+		};
+	}
+
+	public static DeviceQuery address(String... addresses) {
+		assertParam(addresses);
+		return addressIn(Arrays.asList(addresses));
+	}
+
+	public static DeviceQuery addressIn(Collection<String> addresses) {
+		assertParam(addresses);
+		final HashSet<String> set = new HashSet<String>(addresses);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return set.contains(snapshot.getAddress());
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return set;
+			}
+		};
+	}
+
+	/**
+	 * Matches a major device class, e.g. AUDIO_VIDEO, COMPUTER 
+	 */
+	public static DeviceQuery major(final int majorDeviceClass) {
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return snapshot.getMajorDeviceClass() == majorDeviceClass;
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return index.byMajor(majorDeviceClass);
+			}
+		};
+	}
+
+	/**
+	 * Matches a full (major & minor) device class, e.g. BluetoothClass.Device.PHONE_SMART 
+	 */
+	public static DeviceQuery deviceClass(final int deviceClass) {
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return snapshot.getDeviceClass() == deviceClass;
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return index.byMajor(deviceClass & DeviceSnapshot.MAJOR_MASK);
+			}
+		};
+	}
+
+	/**
+	 * Matches devices known to offer a service, see DeviceSnapshot.getUuids()
+	 */
+	public static DeviceQuery hasService(final UUID serviceUuid) {
+		assertParam(serviceUuid);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return snapshot.hasService(serviceUuid);
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return index.byService(serviceUuid);
+			}
+		};
+	}
+
+	/**
+	 * Matches devices last seen with at least minRssi (dBm). Not indexed
+	 */
+	public static DeviceQuery rssiAtLeast(final short minRssi) {
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return snapshot.getRssi() != DeviceSnapshot.NO_RSSI && snapshot.getRssi() >= minRssi;
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Matches if all queries match. Filtered by the smallest indexed candidate set
+	 */
+	public static DeviceQuery and(final DeviceQuery... queries) {
+		assertParam(queries);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				for (DeviceQuery query: queries) {
+					if (!query.match(snapshot)) {
+						return false;
+					}
+				}
+				return true;
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				Set<String> smallest = null;
+				for (DeviceQuery query: queries) {
+					Set<String> candidates = query.candidates(index);
+					if (candidates != null && (smallest == null || candidates.size() < smallest.size())) {
+						smallest = candidates;
+					}
+				}
+				return smallest;
+			}
+		};
+	}
+
+	/**
+	 * Matches if any query matches. Indexed only if all queries are
+	 */
+	public static DeviceQuery or(final DeviceQuery... queries) {
+		assertParam(queries);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				for (DeviceQuery query: queries) {
+					if (query.match(snapshot)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				HashSet<String> union = new HashSet<String>();
+				for (DeviceQuery query: queries) {
+					Set<String> candidates = query.candidates(index);
+					if (candidates == null) {
+						return null;
+					}
+					union.addAll(candidates);
+				}
+				return union;
+			}
+		};
+	}
+
+	public static DeviceQuery not(final DeviceQuery query) {
+		assertParam(query);
+		return new DeviceQuery() {
+			@Override
+			public boolean match(DeviceSnapshot snapshot) {
+				return !query.match(snapshot);
+			}
+			@Override
+			Set<String> candidates(DeviceIndex index) {
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Converts a DeviceMajorComparator to a query
+	 */
+	public static DeviceQuery from(DeviceMajorComparator comparator) {
+		DeviceQuery byMajor = comparator.majorDeviceClass > -1 ? major(comparator.majorDeviceClass) : any();
+		return comparator.name == null ? byMajor : and(byMajor, nameEquals(comparator.name));
+	}
+
+
+	private static void assertParam(Object param) {
+		if (param==null) {
+			throw new RuntimeException("Bad query params!");
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.UUID;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+
+/**
+ * An immutable snapshot of a remote device as last seen, e.g. by discovery.
+ * Unlike BluetoothDevice getters, reading it makes no IPC calls.
+ *
+ * An engine keeps a single snapshot per device in its DeviceCache, built once per 
+ * sighting and refreshed by the name/class/UUID/bond state changed broadcasts, 
+ * see BTWizEngine.getDeviceSnapshot()
+ */
+public final class DeviceSnapshot {
+
+	public static final int NO_DEVICE_CLASS = -1;
+	public static final short NO_RSSI = Short.MIN_VALUE;
+	public static final int NO_BOND_STATE = -1;
+	public static final long NEVER_SEEN = 0; // lastSeen of a device known but not seen by discovery
+
+	static final int MAJOR_MASK = 0x1F00; // see BluetoothClass.Device.Major
+	static final int MINOR_MASK = 0x00FC;
+
+
+	private final String address;
+	private final String name;
+	private final int deviceClass;
+	private final int bondState;
+	private final short rssi;
+	private final long lastSeen;
+	private final UUID[] uuids; // null if unknown
+
+
+	public DeviceSnapshot(String address, String name, int deviceClass, short rssi, long lastSeen) {
+		this(address, name, deviceClass, rssi, lastSeen, null);
+	}
+
+	public DeviceSnapshot(String address, String name, int deviceClass, short rssi, long lastSeen, UUID[] uuids) {
+		this(address, name, deviceClass, NO_BOND_STATE, rssi, lastSeen, uuids);
+	}
+
+	public DeviceSnapshot(String address, String name, int deviceClass, int bondState, short rssi, long lastSeen, UUID[] uuids) {
+		if (address==null) {
+			throw new RuntimeException("Snapshot address cannot be null!");
+		}
+		this.address = address;
+		this.name = name;
+		this.deviceClass = deviceClass;
+		this.bondState = bondState;
+		this.rssi = rssi;
+		this.lastSeen = lastSeen;
+		this.uuids = uuids == null ? null : uuids.clone();
+	}
+
+	/**
+	 * Creates a snapshot from an ACTION_FOUND broadcast, using the intent extras only (no IPC).
+	 * The bond state is unknown
+	 */
+	public static DeviceSnapshot fromFoundIntent(BluetoothDevice device, Intent intent) {
+		BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+		return new DeviceSnapshot(device.getAddress(), 
+				intent.getStringExtra(BluetoothDevice.EXTRA_NAME),
+				btClass == null ? NO_DEVICE_CLASS : btClass.getDeviceClass(),
+				intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, NO_RSSI),
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a snapshot of a device's current name and class (two IPC calls), e.g. for 
+	 * evaluating several criteria against a device. Not a sighting: RSSI and bond state 
+	 * are unknown and lastSeen is NEVER_SEEN
+	 */
+	public static DeviceSnapshot fromDevice(BluetoothDevice device) {
+		BluetoothClass btClass = device.getBluetoothClass();
+		return new DeviceSnapshot(device.getAddress(), device.getName(), 
+				btClass == null ? NO_DEVICE_CLASS : btClass.getDeviceClass(), 
+				NO_RSSI, NEVER_SEEN);
+	}
+
+	/**
+	 * Returns a copy of this snapshot with the given service UUIDs
+	 */
+	public DeviceSnapshot withUuids(UUID[] uuids) {
+		return new DeviceSnapshot(address, name, deviceClass, bondState, rssi, lastSeen, uuids);
+	}
+
+	/**
+	 * Returns a copy of this snapshot with the given name
+	 */
+	public DeviceSnapshot withName(String name) {
+		return new DeviceSnapshot(address, name, deviceClass, bondState, rssi, lastSeen, uuids);
+	}
+
+	/**
+	 * Returns a copy of this snapshot with the given device class
+	 */
+	public DeviceSnapshot withDeviceClass(int deviceClass) {
+		return new DeviceSnapshot(address, name, deviceClass, bondState, rssi, lastSeen, uuids);
+	}
+
+	/**
+	 * Returns a copy of this snapshot with the given bond state
+	 */
+	public DeviceSnapshot withBondState(int bondState) {
+		return new DeviceSnapshot(address, name, deviceClass, bondState, rssi, lastSeen, uuids);
+	}
+
+	/**
+	 * Returns this (newer) sighting, completed with the fields it lacks from an older 
+	 * snapshot of the same device
+	 */
+	DeviceSnapshot mergeWith(DeviceSnapshot older) {
+		return new DeviceSnapshot(address, 
+				name != null ? name : older.name, 
+				deviceClass != NO_DEVICE_CLASS ? deviceClass : older.deviceClass, 
+				bondState != NO_BOND_STATE ? bondState : older.bondState, 
+				rssi, lastSeen, 
+				uuids != null ? uuids : older.uuids);
+	}
+
+
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * The device name, possibly null
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * The device class (major & minor), see BluetoothClass.getDeviceClass(), or NO_DEVICE_CLASS
+	 */
+	public int getDeviceClass() {
+		return deviceClass;
+	}
+
+	/**
+	 * The major device class, e.g. AUDIO_VIDEO, COMPUTER. UNCATEGORIZED if unknown
+	 */
+	public int getMajorDeviceClass() {
+		if (deviceClass == NO_DEVICE_CLASS) {
+			return BluetoothClass.Device.Major.UNCATEGORIZED;
+		}
+		return deviceClass & MAJOR_MASK;
+	}
+
+	/**
+	 * The minor device class bits, see BluetoothClass.Device. To compare against the 
+	 * BluetoothClass.Device constants (which include the major bits) use getDeviceClass()
+	 */
+	public int getMinorDeviceClass() {
+		if (deviceClass == NO_DEVICE_CLASS) {
+			return 0;
+		}
+		return deviceClass & MINOR_MASK;
+	}
+
+	/**
+	 * The bond state, e.g. BluetoothDevice.BOND_BONDED, or NO_BOND_STATE if unknown
+	 */
+	public int getBondState() {
+		return bondState;
+	}
+
+	/**
+	 * Signal strength in dBm when last seen, or NO_RSSI
+	 */
+	public short getRssi() {
+		return rssi;
+	}
+
+	/**
+	 * When last seen, in System.currentTimeMillis() units, or NEVER_SEEN
+	 */
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	/**
+	 * The device's service UUIDs (a copy), or null if unknown, see SdpCache
+	 */
+	public UUID[] getUuids() {
+		return uuids == null ? null : uuids.clone();
+	}
+
+	/**
+	 * Returns true if the service UUIDs are known and include uuid
+	 */
+	public boolean hasService(UUID uuid) {
+		if (uuids == null) {
+			return false;
+		}
+		for (UUID u: uuids) {
+			if (u.equals(uuid)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the age of this snapshot in ms
+	 */
+	public long getAge() {
+		return System.currentTimeMillis() - lastSeen;
+	}
+
+	@Override
+	public String toString() {
+		return address + " (" + name + ", " + Utils.majorToString(getMajorDeviceClass()) + ", rssi " + rssi + ")";
+	}
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * Keeps the DeviceCache snapshots current: refreshes a cached device's name, class, 
+ * service UUIDs and bond state from the corresponding broadcasts, so that library 
+ * paths read the snapshot instead of calling BluetoothDevice getters (IPC).
+ * Also keeps the BondedDeviceIndex current
+ */
+class DeviceUpdateReceiver implements IBroadcastListener {
+
+	private final DeviceCache deviceCache;
+	private final BondedDeviceIndex bondedDevices;
+	private BroadcastRegistration registration; // null while unregistered
+
+
+	DeviceUpdateReceiver(DeviceCache deviceCache, BondedDeviceIndex bondedDevices) {
+		this.deviceCache = deviceCache;
+		this.bondedDevices = bondedDevices;
+	}
+
+
+	synchronized void register(Context context) {
+		if (registration != null) {
+			return;
+		}
+		Context appContext = context.getApplicationContext();
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+		filter.addAction(BluetoothDevice.ACTION_CLASS_CHANGED);
+		filter.addAction(BluetoothDevice.ACTION_UUID);
+		filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+		filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+		registration = BroadcastRegistration.register(appContext != null ? appContext : context, filter, null, this);
+	}
+
+	synchronized void unregister() {
+		if (registration == null) {
+			return;
+		}
+		registration.unregister();
+		registration = null;
+	}
+
+
+	@Override
+	public void onReceive(Intent intent) {
+		String action = intent.getAction();
+		if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+			if (intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR) == BluetoothAdapter.STATE_OFF) {
+				bondedDevices.invalidate(); // bonds may change while off; rebuilt on next use
+			}
+			return;
+		}
+		BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+		if (device == null) {
+			return;
+		}
+		String address = device.getAddress();
+		if (BluetoothDevice.ACTION_NAME_CHANGED.equals(action)) {
+			deviceCache.updateName(address, intent.getStringExtra(BluetoothDevice.EXTRA_NAME));
+		}
+		else if (BluetoothDevice.ACTION_CLASS_CHANGED.equals(action)) {
+			BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+			if (btClass != null) {
+				deviceCache.updateDeviceClass(address, btClass.getDeviceClass());
+			}
+		}
+		else if (BluetoothDevice.ACTION_UUID.equals(action)) {
+			UUID[] uuids = SdpCache.toUuids(intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID));
+			if (uuids != null) {
+				deviceCache.updateUuids(address, uuids);
+			}
+		}
+		else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+			int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, DeviceSnapshot.NO_BOND_STATE);
+			if (bondState != DeviceSnapshot.NO_BOND_STATE) {
+				deviceCache.updateBondState(address, bondState);
+				bondedDevices.onBondStateChanged(device, bondState);
+			}
+			return;
+		}
+		bondedDevices.onSnapshotChanged(deviceCache.peek(address));
+	}
+}
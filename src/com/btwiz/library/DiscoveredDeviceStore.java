@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * A fixed memory store of discovered devices, for gateways scanning continuously: 
+ * keeps the last maxDevices devices seen within the last windowMs, evicting the least 
+ * recently seen. Unlike getAllDiscoveredDevices() it spans discovery sessions.
+ *
+ * A sighting is an O(1) update. Readers get an immutable snapshot, built once per 
+ * change and shared by all readers until the next change (or expiry), so concurrent 
+ * reads neither block discovery nor copy the store each time.
+ * Thread safe
+ *
+ * Accessible via BTWizEngine.getDiscoveredDeviceStore()
+ */
+public class DiscoveredDeviceStore {
+
+	public static final int DEFAULT_MAX_DEVICES = 256;
+	public static final long DEFAULT_WINDOW_MS = 10 * 60 * 1000;
+	public static final long NO_WINDOW = 0;
+
+
+	private final Object lock = new Object();
+
+	// least recently seen first. guarded by lock
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, false);
+	private int maxDevices = DEFAULT_MAX_DEVICES;
+	private long windowMs = DEFAULT_WINDOW_MS;
+
+	private volatile View view = View.EMPTY; // null: changed since last built
+
+
+	/**
+	 * Sets the bounds: at most maxDevices devices, seen within the last windowMs (NO_WINDOW: no time bound)
+	 */
+	public void setLimits(int maxDevices, long windowMs) {
+		if (maxDevices < 1 || windowMs < 0) {
+			throw new RuntimeException("Bad store limits!");
+		}
+		synchronized (lock) {
+			this.maxDevices = maxDevices;
+			this.windowMs = windowMs;
+			evictLocked(System.currentTimeMillis());
+			view = null;
+		}
+	}
+
+
+	/**
+	 * Records a sighting, making the device the most recently seen
+	 */
+	public void record(BluetoothDevice device, DeviceSnapshot snapshot) {
+		if (device==null || snapshot==null) {
+			throw new RuntimeException("Bad store record params!");
+		}
+		synchronized (lock) {
+			String address = snapshot.getAddress();
+			entries.remove(address); // re-inserted last
+			entries.put(address, new Entry(device, snapshot));
+			evictLocked(System.currentTimeMillis());
+			view = null;
+		}
+	}
+
+	public void clear() {
+		synchronized (lock) {
+			entries.clear();
+			view = View.EMPTY;
+		}
+	}
+
+
+	/**
+	 * Returns the devices in the store, most recently seen first. Immutable; 
+	 * shared by readers until the store changes
+	 */
+	public List<BluetoothDevice> getDevices() {
+		return getView().devices;
+	}
+
+	/**
+	 * Returns the snapshots of the devices in the store, most recently seen first. Immutable; 
+	 * shared by readers until the store changes
+	 */
+	public List<DeviceSnapshot> getSnapshots() {
+		return getView().snapshots;
+	}
+
+	public int size() {
+		return getView().snapshots.size();
+	}
+
+
+	private View getView() {
+		View v = view;
+		long now = System.currentTimeMillis();
+		if (v != null && now < v.validUntil) {
+			return v; // fast path: no lock, no copy
+		}
+		synchronized (lock) {
+			evictLocked(now);
+			v = view;
+			if (v == null || now >= v.validUntil) {
+				v = buildViewLocked();
+				view = v;
+			}
+			return v;
+		}
+	}
+
+	/**
+	 * Drops expired and excess entries, least recently seen first. Caller must hold lock
+	 */
+	private void evictLocked(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		int excess = entries.size() - maxDevices;
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (excess > 0) {
+				excess--;
+			}
+			else if (windowMs == NO_WINDOW || now - entry.seenAt < windowMs) {
+				break; // the rest were seen more recently
+			}
+			it.remove();
+			view = null;
+		}
+	}
+
+	/**
+	 * Caller must hold lock
+	 */
+	private View buildViewLocked() {
+		int n = entries.size();
+		ArrayList<BluetoothDevice> devices = new ArrayList<BluetoothDevice>(n);
+		ArrayList<DeviceSnapshot> snapshots = new ArrayList<DeviceSnapshot>(n);
+		for (Entry entry: entries.values()) {
+			devices.add(entry.device);
+			snapshots.add(entry.snapshot);
+		}
+		Collections.reverse(devices);
+		Collections.reverse(snapshots);
+		long validUntil = Long.MAX_VALUE;
+		if (windowMs != NO_WINDOW && n > 0) {
+			validUntil = entries.values().iterator().next().seenAt + windowMs; // oldest entry expires
+		}
+		return new View(Collections.unmodifiableList(devices), Collections.unmodifiableList(snapshots), validUntil);
+	}
+
+
+	/**
+	 * A stored device, with its sighting time in the store's clock
+	 */
+	private static class Entry {
+		final BluetoothDevice device;
+		final DeviceSnapshot snapshot;
+		final long seenAt = System.currentTimeMillis();
+
+		Entry(BluetoothDevice device, DeviceSnapshot snapshot) {
+			this.device = device;
+			this.snapshot = snapshot;
+		}
+	}
+
+	/**
+	 * An immutable view of the store, valid until its oldest entry expires
+	 */
+	private static class View {
+		static final View EMPTY = new View(Collections.<BluetoothDevice>emptyList(), 
+				Collections.<DeviceSnapshot>emptyList(), Long.MAX_VALUE);
+
+		final List<BluetoothDevice> devices;
+		final List<DeviceSnapshot> snapshots;
+		final long validUntil;
+
+		View(List<BluetoothDevice> devices, List<DeviceSnapshot> snapshots, long validUntil) {
+			this.devices = devices;
+			this.snapshots = snapshots;
+			this.validUntil = validUntil;
+		}
+	}
+}
@@ -0,0 +1,584 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import static com.btwiz.library.DiscoveryStatus.FINISHED;
+import static com.btwiz.library.DiscoveryStatus.NOT_STARTED;
+import static com.btwiz.library.DiscoveryStatus.STARTED;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * Runs a single discovery (inquiry) session on behalf of any number of concurrent 
+ * lookups, routing every found device to each of them.
+ *
+ * A lookup started while a session runs joins it instead of restarting the inquiry; 
+ * devices found so far are replayed to it first, before any device found later. 
+ * A lookup's callbacks never run concurrently, and run in order. 
+ * A lookup completes (onFinished, plus onDeviceNotFound() if nothing matched) when its 
+ * listener returns false from onDeviceFound(), or when the session ends. The inquiry is 
+ * ended early once every lookup has completed.
+ *
+ * By default broadcasts are received, and lookup callbacks run, on the main thread. 
+ * setReceiveOnBackgroundThread() moves broadcast handling (snapshots, duplicate check, 
+ * routing) to a background thread; setCallbackExecutor() runs lookup callbacks on an 
+ * executor, in order per lookup. Either keeps the main thread out of the discovery hot path.
+ *
+ * setDiscoverySource() replaces the local adapter, e.g. with a simulated one: sessions 
+ * then run its inquiries instead, routing the devices found the same way.
+ *
+ * Accessible via BTWizEngine.getDiscoveryCoordinator()
+ */
+public class DiscoveryCoordinator {
+
+	private static final Executor CALLING_THREAD = new Executor() {
+		@Override
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	private final BTWizEngine engine;
+	private final Object lock = new Object();
+
+	private Session session;  // current or last session, null if none yet
+	private volatile DiscoveryStatus status = NOT_STARTED;
+	private volatile boolean receiveOnBackgroundThread = false;
+	private volatile Executor callbackExecutor; // null: callbacks run on the broadcast thread
+	private volatile IDiscoverySource source;   // null: the local adapter
+
+
+	DiscoveryCoordinator(BTWizEngine engine) {
+		this.engine = engine;
+	}
+
+
+	/**
+	 * If true, discovery broadcasts are received on a background thread rather than the 
+	 * main thread. Takes effect for the next session
+	 */
+	public void setReceiveOnBackgroundThread(boolean background) {
+		receiveOnBackgroundThread = background;
+	}
+
+	/**
+	 * Sets the executor running lookup callbacks (onDeviceFound, onDeviceNotFound, onFinished), 
+	 * one at a time and in order per lookup. null (the default): run them on the broadcast thread, 
+	 * or on the joining thread for a replay. Takes effect for lookups started afterwards
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		callbackExecutor = executor;
+	}
+
+	/**
+	 * Sets the source of inquiries, in place of the local adapter (null, the default). Inquiries 
+	 * of a source are not arbitrated by the radio scheduler. Takes effect for the next session
+	 */
+	public void setDiscoverySource(IDiscoverySource source) {
+		this.source = source;
+	}
+
+
+	/**
+	 * Starts a discovery session, or joins the running one. foundListener and onFinished 
+	 * may be null. Returns false if discovery could not be started 
+	 */
+	public boolean startAsync(Context context, Runnable onFinished, IDeviceLookupListener foundListener) {
+		Executor executor = callbackExecutor;
+		final Lookup lookup = new Lookup(onFinished, foundListener, 
+				new SerialExecutor(executor == null ? CALLING_THREAD : executor));
+		final Session s;
+		ArrayList<BluetoothDevice> replay = null;
+		synchronized (lock) {
+			if (session != null && !session.ended) {
+				final Session joined = session;
+				final ArrayList<BluetoothDevice> devices = new ArrayList<BluetoothDevice>(session.devices);
+				joined.lookups.add(lookup);
+				// queued ahead of any device found from now on, which is dispatched after lock is released
+				lookup.callbacks.enqueue(new Runnable() {
+					@Override
+					public void run() {
+						for (BluetoothDevice device: devices) {
+							if (!joined.deliver(lookup, device)) {
+								break; // satisfied
+							}
+						}
+						joined.endIfAllCompleted();
+					}
+				});
+				replay = devices;
+			}
+			else {
+				session = new Session(context, source);
+				session.lookups.add(lookup);
+				status = NOT_STARTED;
+			}
+			s = session;
+		}
+		
+		if (replay != null) { // joined a running session
+			BTLog.i("DiscoveryCoordinator", "Joined running discovery; replaying " + replay.size() + " devices");
+			lookup.callbacks.flush();
+			return true;
+		}
+		
+		engine.getRankedDiscoveredDevices().clear();
+		boolean started;
+		if (s.source != null) {
+			started = s.source.startDiscovery(s); //async call!
+		}
+		else {
+			s.register();
+			// joins a run wanted by another engine. else starts one, cancelling a prior scan 
+			// (its FINISHED broadcast is ignored, see Session.sawStarted); deferred while connects run
+			int request;
+			synchronized (s) { // the outcome is known before any FINISHED broadcast is handled
+				request = engine.getRadioScheduler().requestDiscovery(s); //async call!
+				s.joinedRun = request == RadioScheduler.REQUEST_JOINED;
+			}
+			if (s.joinedRun) {
+				BTLog.i("DiscoveryCoordinator", "Joined discovery run of another engine");
+				s.onJoined();
+			}
+			started = request != RadioScheduler.REQUEST_FAILED;
+		}
+		if (!started) {
+			s.abort(lookup);
+		}
+		return started;
+	}
+
+	/**
+	 * Ends the running session (if any), completing all its lookups  
+	 */
+	public void stop() {
+		Session s;
+		synchronized (lock) {
+			s = session;
+		}
+		if (s != null) {
+			cancelInquiry(s);
+			s.end();
+		}
+	}
+
+	/**
+	 * Cancels the inquiry of the running session (if any), through its source or the radio 
+	 * scheduler. Its lookups complete once the inquiry has finished. An inquiry shared with 
+	 * other engines goes on for them, the session ending at once
+	 */
+	public void cancelInquiry() {
+		Session s;
+		synchronized (lock) {
+			s = session;
+			if (s == null || s.ended) {
+				return;
+			}
+		}
+		if (!cancelInquiry(s)) {
+			s.end(); // no finish event to wait for
+		}
+	}
+
+	/**
+	 * Ends the running session without completing its lookups, and forgets discovered devices  
+	 */
+	void reset() {
+		Session s;
+		synchronized (lock) {
+			s = session;
+			session = null;
+			status = NOT_STARTED;
+		}
+		if (s != null) {
+			cancelInquiry(s);
+			s.unregister();
+		}
+	}
+
+	/**
+	 * Withdraws a session from its inquiry. Returns true if a finish event follows
+	 */
+	private boolean cancelInquiry(Session s) {
+		if (s.source != null) {
+			s.source.cancelDiscovery();
+			return true;
+		}
+		return engine.getRadioScheduler().releaseDiscovery(s); // cancelled once no engine wants it
+	}
+
+	/**
+	 * Activated by the radio scheduler when a paused discovery could not be resumed
+	 */
+	void onDiscoveryAborted() {
+		Session s;
+		synchronized (lock) {
+			s = session;
+		}
+		if (s != null) {
+			s.end();
+		}
+	}
+
+
+	public DiscoveryStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the number of lookups waiting on the running session
+	 */
+	public int getNumActiveLookups() {
+		synchronized (lock) {
+			return session == null || session.ended ? 0 : session.lookups.size();
+		}
+	}
+
+	/**
+	 * Returns a copy of all devices discovered by the running or last session (null if none)  
+	 */
+	public ArrayList<BluetoothDevice> getAllDiscoveredDevices() {
+		synchronized (lock) {
+			return session == null ? null : new ArrayList<BluetoothDevice>(session.devices);
+		}
+	}
+
+
+	/**
+	 * A single lookup sharing the session
+	 */
+	private static class Lookup {
+		final Runnable onFinished;
+		final IDeviceLookupListener foundListener;
+		final SerialExecutor callbacks; // one at a time, in order
+		boolean wasFound = false;
+		boolean completed = false;
+
+		Lookup(Runnable onFinished, IDeviceLookupListener foundListener, SerialExecutor callbacks) {
+			this.onFinished = onFinished;
+			this.foundListener = foundListener;
+			this.callbacks = callbacks;
+		}
+
+		/**
+		 * Runs a task involving this lookup's callbacks
+		 */
+		void dispatch(Runnable task) {
+			callbacks.execute(task);
+		}
+	}
+
+
+	/**
+	 * A discovery session: receives discovery broadcasts (or the events of a discovery source), 
+	 * routing found devices to all lookups
+	 */
+	private class Session implements IDiscoverySourceListener, IBroadcastListener {
+		final Context context;
+		final IDiscoverySource source; // null: the local adapter
+		final ArrayList<Lookup> lookups = new ArrayList<Lookup>();      // guarded by lock
+		final ArrayList<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+		final DuplicateFilter duplicateFilter = new DuplicateFilter(); // broadcast (or source) thread only
+		boolean sawStarted = false; // broadcast (or source) thread only
+		boolean joinedRun = false;  // joined another engine's run. guarded by this
+		boolean ended = false;      // guarded by lock
+		volatile long startedAt = 0; // inquiry start time, for the metrics
+		final long span = engine.getTrace().newSpan();
+		final RadioScheduler.PauseFilter pauseFilter = engine.getRadioScheduler().newPauseFilter();
+		private BroadcastRegistration registration; // guarded by this
+
+		Session(Context context, IDiscoverySource source) {
+			this.context = context;
+			this.source = source;
+		}
+
+		void register() {
+			IntentFilter filter = new IntentFilter();
+			filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+			filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+			filter.addAction(BluetoothDevice.ACTION_FOUND);
+			BroadcastRegistration r = BroadcastRegistration.register(context, filter, 
+					receiveOnBackgroundThread ? engine.getExecutors().getBroadcastHandler() : null, this); // else main thread
+			synchronized (this) {
+				registration = r;
+			}
+		}
+
+		void unregister() {
+			BroadcastRegistration r;
+			synchronized (this) {
+				r = registration;
+				registration = null;
+			}
+			if (r != null) {
+				r.unregister();
+			}
+		}
+
+		@Override
+		public void onReceive(Intent intent) {
+			String action = intent.getAction();
+			if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
+				onDiscoveryStarted();
+			}
+			else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+				boolean joined;
+				synchronized (this) {
+					joined = joinedRun;
+				}
+				if (!sawStarted && !joined) {
+					return; // a prior scan, cancelled by this session
+				}
+				if (engine.getRadioScheduler().consumePauseFinish(pauseFilter)) {
+					return; // discovery was paused for a connect and will be resumed
+				}
+				engine.getRadioScheduler().onDiscoveryFinished();
+				end();
+			}
+			else if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				onDeviceFound(device, DeviceSnapshot.fromFoundIntent(device, intent));
+			}
+		}
+
+		@Override
+		public void onDiscoveryStarted() {
+			sawStarted = true;
+			startedAt = System.currentTimeMillis();
+			engine.getTrace().record(BTTrace.Event.DISCOVERY_STARTED, span, null);
+			status = STARTED;
+			engine.getEventBus().publish(ConnectionEvent.Type.DISCOVERY_STARTED, null);
+		}
+
+		/**
+		 * The session joined a run already wanted by another engine, possibly started: 
+		 * its STARTED broadcast may have been missed
+		 */
+		void onJoined() {
+			startedAt = System.currentTimeMillis();
+			status = STARTED;
+			engine.getEventBus().publish(ConnectionEvent.Type.DISCOVERY_STARTED, null);
+		}
+
+		@Override
+		public void onDeviceFound(DeviceSnapshot snapshot) {
+			BluetoothAdapter adapter = engine.getBluetoothAdapterOrNull();
+			onDeviceFound(adapter == null ? null : adapter.getRemoteDevice(snapshot.getAddress()), snapshot);
+		}
+
+		@Override
+		public void onDiscoveryFinished() {
+			end();
+		}
+
+		/**
+		 * device is null for a source's device while the engine has no adapter to make 
+		 * handles with: only its snapshot is recorded, and lookups do not see it
+		 */
+		private void onDeviceFound(final BluetoothDevice device, DeviceSnapshot found) {
+			// duplicates refresh RSSI & time; fields missing from the intent are kept from the cache
+			engine.getTrace().record(BTTrace.Event.DEVICE_FOUND, span, found.getAddress());
+			DeviceSnapshot snapshot = engine.getDeviceCache().record(found); 
+			engine.getRankedDiscoveredDevices().update(snapshot);
+			if (device != null) {
+				engine.getDiscoveredDeviceStore().record(device, snapshot);
+			}
+			if (engine.getProtectAgainstDuplicates()) {
+				if (deviceAlreadyInList(snapshot)) {
+					return;
+				}
+			}
+			ArrayList<Lookup> targets = null;
+			synchronized (lock) {
+				if (ended) {
+					return;
+				}
+				if (device != null) {
+					devices.add(device);
+					targets = new ArrayList<Lookup>(lookups);
+				}
+			}
+			engine.getEventBus().publish(ConnectionEvent.Type.DEVICE_FOUND, snapshot.getAddress());
+			if (targets == null) {
+				return;
+			}
+			for (final Lookup lookup: targets) {
+				lookup.dispatch(new Runnable() {
+					@Override
+					public void run() {
+						deliver(lookup, device);
+						endIfAllCompleted();
+					}
+				});
+			}
+		}
+
+		/**
+		 * Test for existence of a newly discovered device in the 'discovered' list 
+		 * Matched by address or by name & major fields. O(1), no IPC calls
+		 */
+		private boolean deviceAlreadyInList(DeviceSnapshot snapshot) {
+			return !duplicateFilter.add(snapshot.getAddress(), snapshot.getName(), snapshot.getMajorDeviceClass());
+		}
+
+		/**
+		 * Routes a device to a lookup. Returns false once the lookup has completed
+		 */
+		boolean deliver(Lookup lookup, BluetoothDevice device) {
+			IDeviceLookupListener listener;
+			synchronized (lookup) {
+				if (lookup.completed) {
+					return false;
+				}
+				listener = lookup.foundListener;
+				if (listener == null) {
+					return true;
+				}
+				if (listener instanceof IFindAndCompareListener) {
+					// force onDeviceFound() called only for a single device
+					IFindAndCompareListener fcListener = (IFindAndCompareListener)listener;
+					boolean match = fcListener instanceof FindAndCompareListener ? 
+							((FindAndCompareListener)fcListener).match(engine, device) : // cached snapshot  
+							fcListener.match(device);
+					if (!match) { 
+						// go on with discovery
+						return true;
+					}
+					lookup.wasFound = true;
+					listener = fcListener.getLookupListener(); 
+				}
+			}
+			boolean goOn = listener.onDeviceFound(device, true);
+			if (!goOn) {
+				synchronized (lookup) {
+					lookup.wasFound = true;
+				}
+				complete(lookup);
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Completes a lookup (once), activating its callbacks
+		 */
+		private void complete(Lookup lookup) {
+			boolean wasFound;
+			synchronized (lookup) {
+				if (lookup.completed) {
+					return;
+				}
+				lookup.completed = true;
+				wasFound = lookup.wasFound;
+			}
+			synchronized (lock) {
+				lookups.remove(lookup);
+			}
+			// activate onFinished callback
+			if (lookup.onFinished != null) {
+				lookup.onFinished.run();
+			}
+			if (!wasFound && lookup.foundListener != null) {
+				lookup.foundListener.onDeviceNotFound(true);
+			}
+		}
+
+		/**
+		 * Ends the inquiry early if no lookup is waiting
+		 */
+		void endIfAllCompleted() {
+			synchronized (lock) {
+				if (ended || !lookups.isEmpty()) {
+					return;
+				}
+			}
+			BTLog.i("DiscoveryCoordinator", "All lookups completed; ending discovery");
+			cancelInquiry(this);
+			end();
+		}
+
+		/**
+		 * Ends the session (once), completing all remaining lookups
+		 */
+		void end() {
+			ArrayList<Lookup> remaining;
+			synchronized (lock) {
+				if (ended) {
+					return;
+				}
+				ended = true;
+				remaining = new ArrayList<Lookup>(lookups);
+				status = FINISHED;
+			}
+			unregister();
+			if (source == null) {
+				engine.getRadioScheduler().releaseDiscovery(this); // no op if already released or finished
+			}
+			engine.getEventBus().publish(ConnectionEvent.Type.DISCOVERY_FINISHED, null);
+			engine.getTrace().record(BTTrace.Event.DISCOVERY_FINISHED, span, devices.size());
+			recordMetrics();
+			for (Lookup lookup: remaining) {
+				completeLater(lookup); // after its pending deliveries
+			}
+			engine.onDiscoverySessionEnded(context, devices);
+		}
+
+		private void recordMetrics() {
+			long started = startedAt;
+			if (started == 0) {
+				return; // inquiry never started
+			}
+			engine.getMetrics().recordDiscovery(System.currentTimeMillis() - started, devices.size());
+		}
+
+		/**
+		 * Discovery could not be started: ends the session, completing lookups 
+		 * which joined meanwhile but not the starting one
+		 */
+		void abort(Lookup starter) {
+			synchronized (starter) {
+				starter.completed = true;
+			}
+			ArrayList<Lookup> joined;
+			synchronized (lock) {
+				ended = true;
+				lookups.remove(starter);
+				joined = new ArrayList<Lookup>(lookups);
+				status = NOT_STARTED;
+			}
+			unregister();
+			for (Lookup lookup: joined) {
+				completeLater(lookup);
+			}
+		}
+
+		private void completeLater(final Lookup lookup) {
+			lookup.dispatch(new Runnable() {
+				@Override
+				public void run() {
+					complete(lookup);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.HashSet;
+
+/**
+ * Detects duplicate discovery reads in O(1): hash indexes of the addresses and 
+ * (name, major) pairs seen during a discovery run.
+ * Not thread safe; used by the (single threaded) discovery receiver
+ */
+class DuplicateFilter {
+
+	private final HashSet<String> addresses = new HashSet<String>();
+	private final HashSet<String> nameMajorKeys = new HashSet<String>();
+
+
+	/**
+	 * Records a read. Returns false if the address, or the name & major pair, 
+	 * was already seen (i.e. a duplicate). Nameless devices are matched by address only
+	 */
+	boolean add(String address, String name, int major) {
+		boolean newAddress = addresses.add(address);
+		if (name == null) {
+			return newAddress;
+		}
+		boolean newKey = nameMajorKeys.add(major + ":" + name);
+		return newAddress && newKey;
+	}
+
+	void clear() {
+		addresses.clear();
+		nameMajorKeys.clear();
+	}
+}
@@ -49,6 +49,13 @@ public class FindAndCompareListener implements IDeviceLookupListener, IFindAndCo
 		return comparator.match(device);
 	}
 
+	/**
+	 * As match(BluetoothDevice), preferring the device's cached snapshot (no IPC)
+	 */
+	boolean match(BTWizEngine engine, BluetoothDevice device) {
+		return engine.matches(comparator, device);
+	}
+
 	@Override
 	public void onDeviceNotFound(boolean byDiscovery) {
 		lookupListener.onDeviceNotFound(byDiscovery);		
@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.io.IOException;
+
+/**
+ * A listening endpoint handing out connected transports, see BTServer.addService(IBTServerTransport)
+ */
+public interface IBTServerTransport {
+	/**
+	 * Blocks until a remote device connects; returns its connected transport. 
+	 * Must be unblocked, with an IOException, by a concurrent close()
+	 */
+	IBTTransport accept() throws IOException;
+
+	/**
+	 * Stops listening. Thread safe
+	 */
+	void close();
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte stream under a BTSocket: an RFCOMM BluetoothSocket, or a simulated 
+ * link (see com.btwiz.library.sim) for running the library without BT hardware
+ */
+public interface IBTTransport {
+	/**
+	 * Connects to the remote device (blocking). Must be unblocked, with an 
+	 * IOException, by a concurrent close()
+	 */
+	void connect() throws IOException;
+
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Closes the transport. Thread safe
+	 */
+	void close() throws IOException;
+
+	/**
+	 * The remote device address (possibly null)
+	 */
+	String getRemoteAddress();
+}
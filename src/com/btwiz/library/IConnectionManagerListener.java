@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * Listens to ConnectionManager progress. Callbacks may arrive on any thread
+ */
+public interface IConnectionManagerListener {
+	/**
+	 * Activated when a target device was connected
+	 */
+	void onDeviceConnected(String address, BTSocket socket);
+
+	/**
+	 * Activated when a target device failed its final connect attempt
+	 */
+	void onDeviceFailed(String address, Exception lastError, int numAttempts);
+
+	/**
+	 * Activated after each completed connect attempt with the aggregate state of all targets
+	 */
+	void onProgress(int numConnected, int numFailed, int numTotal);
+
+	/**
+	 * Activated once every target was either connected or failed
+	 */
+	void onAllCompleted(int numConnected, int numFailed);
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * Abstraction of a connect operation to a device identified by its address.
+ * The default implementation is BTWizConnector; test code may plug in a simulated connector
+ */
+public interface IDeviceConnector {
+	/**
+	 * Start connecting to the device. Exactly one of the listener methods must be 
+	 * eventually called, on any thread
+	 */
+	void connectAsync(String address, IDeviceConnectionListener connectionListener);
+}
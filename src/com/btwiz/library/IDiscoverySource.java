@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * A source of discovery runs in place of the local adapter, e.g. a simulated one 
+ * (see sim.SimEnvironment). Set via DiscoveryCoordinator.setDiscoverySource()
+ */
+public interface IDiscoverySource {
+	/**
+	 * Starts an inquiry (async), reporting it to listener. 
+	 * Returns false if it could not be started
+	 */
+	boolean startDiscovery(IDiscoverySourceListener listener);
+
+	/**
+	 * Cancels the running inquiry, if any; its listener gets onDiscoveryFinished(). Thread safe
+	 */
+	void cancelDiscovery();
+}
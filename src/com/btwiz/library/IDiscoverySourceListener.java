@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * Receives the progress of an inquiry run by an IDiscoverySource, as the discovery 
+ * broadcasts do for the local adapter. Calls are made one at a time, in order
+ */
+public interface IDiscoverySourceListener {
+	void onDiscoveryStarted();
+
+	/**
+	 * A device responded to the inquiry 
+	 */
+	void onDeviceFound(DeviceSnapshot snapshot);
+
+	void onDiscoveryFinished();
+}
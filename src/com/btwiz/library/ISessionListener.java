@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.io.IOException;
+
+/**
+ * Interface for ReliableSession listeners
+ */
+public interface ISessionListener {
+
+	/**
+	 * Called (in order, exactly once per send) for each data chunk sent by the peer
+	 */
+	void onDataReceived(byte[] data);
+
+	/**
+	 * Called when the underlying socket failed. Unacknowledged data is kept
+	 * and will be replayed once a new socket is attach()ed
+	 */
+	void onSessionInterrupted(IOException e);
+
+	/**
+	 * Called once the peer has acknowledged the resume handshake over a newly attached socket.
+	 * numReplayed is the number of data frames re-sent to the peer
+	 */
+	void onSessionResumed(int numReplayed);
+
+	/**
+	 * Called upon an unrecoverable session error (e.g. peer lost data which is no longer buffered)
+	 */
+	void onSessionError(IOException e);
+}
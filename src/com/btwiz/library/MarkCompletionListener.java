@@ -15,34 +15,58 @@
  *******************************************************************************/
 package com.btwiz.library;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
- * A Runnable implementation class used to flag discovery completion to other threads   
+ * A Runnable implementation class used to flag discovery completion to other threads.
+ * Waiting threads wake at once on completion (no polling). See also CompletionHandle   
  */
 public class MarkCompletionListener implements Runnable {
-	private volatile boolean discoveryCompleted = false;
+	private final CountDownLatch completed = new CountDownLatch(1);
 	
 	/**
 	 * Mark discovery as completed   
 	 */
 	@Override
 	public void run() {
-		discoveryCompleted = true;
+		completed.countDown();
 	}
 	
 	/**
 	 * Returns true once discovery has completed   
 	 */
 	public boolean discoveryHasCompleted() {
-		return discoveryCompleted;
+		return completed.getCount() == 0;
 	}
 
 	/**
 	 * Blocks this thread until discovery is completed   
 	 */
 	public void blockUntilCompletion() {
-		// block till completion
+		boolean interrupted = false;
 		while (!discoveryHasCompleted()) {
-			Utils.sleep(200);
+			try {
+				completed.await();
+			} catch (InterruptedException e) {
+				interrupted = true; // keep waiting, as before
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Blocks this thread until discovery is completed or timeoutMs passed. 
+	 * Returns true if completed   
+	 */
+	public boolean blockUntilCompletion(long timeoutMs) {
+		try {
+			return completed.await(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return discoveryHasCompleted();
 		}
 	}
 	
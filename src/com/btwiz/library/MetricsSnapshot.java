@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable snapshot of BTMetrics, exportable as Prometheus text (exposition 
+ * format 0.0.4) or JSON, to be shipped to a metrics backend.
+ * Histogram buckets are exported as in Prometheus: cumulative, with a final +Inf bucket
+ */
+public class MetricsSnapshot {
+
+	private static final Comparator<Sample> BY_NAME = new Comparator<Sample>() {
+		@Override
+		public int compare(Sample lhs, Sample rhs) {
+			int c = lhs.name.compareTo(rhs.name);
+			if (c != 0) {
+				return c;
+			}
+			String l = lhs.labelValue == null ? "" : lhs.labelValue;
+			String r = rhs.labelValue == null ? "" : rhs.labelValue;
+			return l.compareTo(r);
+		}
+	};
+
+
+	public final long timestamp;
+	private final List<Sample> samples;
+
+
+	MetricsSnapshot(long timestamp, List<Sample> samples) {
+		ArrayList<Sample> sorted = new ArrayList<Sample>(samples);
+		Collections.sort(sorted, BY_NAME);
+		this.timestamp = timestamp;
+		this.samples = Collections.unmodifiableList(sorted);
+	}
+
+	public List<Sample> getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns the value of a counter (unlabeled), or 0 if unknown
+	 */
+	public long getCounter(String name) {
+		for (Sample sample: samples) {
+			if (sample.name.equals(name) && sample.labelName == null && !sample.isHistogram()) {
+				return sample.value;
+			}
+		}
+		return 0;
+	}
+
+
+	/**
+	 * Exports in the Prometheus text format
+	 */
+	public String toPrometheusText() {
+		StringBuilder sb = new StringBuilder();
+		String lastName = null;
+		for (Sample sample: samples) {
+			if (!sample.name.equals(lastName)) {
+				lastName = sample.name;
+				if (sample.help != null) {
+					sb.append("# HELP ").append(sample.name).append(' ').append(sample.help).append('\n');
+				}
+				sb.append("# TYPE ").append(sample.name).append(sample.isHistogram() ? " histogram\n" : " counter\n");
+			}
+			if (!sample.isHistogram()) {
+				sb.append(sample.name).append(labels(sample, null)).append(' ').append(sample.value).append('\n');
+				continue;
+			}
+			long cumulative = 0;
+			for (int i = 0; i < sample.bucketCounts.length; i++) {
+				cumulative += sample.bucketCounts[i];
+				String le = i < sample.bounds.length ? Long.toString(sample.bounds[i]) : "+Inf";
+				sb.append(sample.name).append("_bucket").append(labels(sample, le)).append(' ').append(cumulative).append('\n');
+			}
+			sb.append(sample.name).append("_sum").append(labels(sample, null)).append(' ').append(sample.sum).append('\n');
+			sb.append(sample.name).append("_count").append(labels(sample, null)).append(' ').append(sample.count).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static String labels(Sample sample, String le) {
+		if (sample.labelName == null && le == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder("{");
+		if (sample.labelName != null) {
+			sb.append(sample.labelName).append("=\"").append(escape(sample.labelValue)).append('"');
+		}
+		if (le != null) {
+			if (sample.labelName != null) {
+				sb.append(',');
+			}
+			sb.append("le=\"").append(le).append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+
+	/**
+	 * Exports as a JSON object: {"timestamp":..., "metrics":[...]}
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"timestamp\":").append(timestamp).append(",\"metrics\":[");
+		boolean first = true;
+		for (Sample sample: samples) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append("{\"name\":\"").append(escape(sample.name)).append('"');
+			sb.append(",\"type\":\"").append(sample.isHistogram() ? "histogram" : "counter").append('"');
+			if (sample.labelName != null) {
+				sb.append(",\"labels\":{\"").append(escape(sample.labelName)).append("\":\"")
+						.append(escape(sample.labelValue)).append("\"}");
+			}
+			if (!sample.isHistogram()) {
+				sb.append(",\"value\":").append(sample.value).append('}');
+				continue;
+			}
+			sb.append(",\"count\":").append(sample.count);
+			sb.append(",\"sum\":").append(sample.sum);
+			sb.append(",\"max\":").append(sample.max);
+			sb.append(",\"buckets\":[");
+			for (int i = 0; i < sample.bucketCounts.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				String le = i < sample.bounds.length ? Long.toString(sample.bounds[i]) : "\"+Inf\"";
+				sb.append("{\"le\":").append(le).append(",\"count\":").append(sample.bucketCounts[i]).append('}');
+			}
+			sb.append("]}");
+		}
+		return sb.append("]}").toString();
+	}
+
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			}
+			else if (c == '\n') {
+				sb.append("\\n");
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toPrometheusText();
+	}
+
+
+	/**
+	 * The value of a single metric. For histograms, bucketCounts are per bucket 
+	 * (not cumulative), the last one counting values above all bounds
+	 */
+	public static class Sample {
+		public final String name;
+		public final String help;
+		public final String labelName;  // null if unlabeled
+		public final String labelValue;
+		public final long value;        // counters
+		final long[] bounds;            // histograms; null for counters
+		final long[] bucketCounts;
+		public final long count;
+		public final long sum;
+		public final long max;
+
+		Sample(String name, String help, String labelName, String labelValue, long value) {
+			this(name, help, labelName, labelValue, value, null, null, 0, 0, 0);
+		}
+
+		Sample(String name, String help, String labelName, String labelValue, 
+				long[] bounds, long[] bucketCounts, long count, long sum, long max) {
+			this(name, help, labelName, labelValue, 0, bounds, bucketCounts, count, sum, max);
+		}
+
+		private Sample(String name, String help, String labelName, String labelValue, long value, 
+				long[] bounds, long[] bucketCounts, long count, long sum, long max) {
+			this.name = name;
+			this.help = help;
+			this.labelName = labelName;
+			this.labelValue = labelValue;
+			this.value = value;
+			this.bounds = bounds;
+			this.bucketCounts = bucketCounts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public boolean isHistogram() {
+			return bounds != null;
+		}
+
+		/**
+		 * The histogram bucket upper bounds (a copy)
+		 */
+		public long[] getBounds() {
+			return bounds == null ? null : bounds.clone();
+		}
+
+		/**
+		 * The histogram per-bucket counts (a copy)
+		 */
+		public long[] getBucketCounts() {
+			return bucketCounts == null ? null : bucketCounts.clone();
+		}
+	}
+}
@@ -17,7 +17,6 @@ package com.btwiz.library;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.util.Log;
 
 /**
  * Utility class verifying the correct permissions were set by the containing app
@@ -67,7 +66,7 @@ public class PermissionValidator {
 		int hasPerm = pm.checkPermission(perm, context.getPackageName());
 		boolean granted = (hasPerm == PackageManager.PERMISSION_GRANTED);
 		if (!granted) {
-			Log.e("Permissions", "\n\n\n\nApp must be granted an " + perm + " permission! \n\n\n\n");
+			BTLog.e("Permissions", "\n\n\n\nApp must be granted an " + perm + " permission! \n\n\n\n");
 			Utils.killThisProcess();
 		}
 		return granted;
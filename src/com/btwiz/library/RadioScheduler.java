@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+
+import android.bluetooth.BluetoothAdapter;
+
+/**
+ * Arbitrates the BT radio between discovery and connects.
+ *
+ * Discovery (inquiry) badly hurts connect performance, so the scheduler owns
+ * adapter start/cancel discovery calls:
+ *  - a connect beginning while discovery runs pauses (cancels) the discovery
+ *  - a discovery requested while connects run is deferred
+ *  - once the last connect ends, a paused/deferred discovery is resumed after
+ *    resumeDelayMs, so that connects arriving in a burst are batched together
+ *    in a single window between discovery runs
+ *
+ * All engines share the one local adapter, hence a single process-wide
+ * scheduler is used, see getShared(). Connects of any engine pause discovery
+ * started by any other. Discovery runs are shared too: a request made while a
+ * run is wanted joins it, and the run is cancelled only once all its users
+ * released it.
+ *
+ * ACTION_DISCOVERY_FINISHED broadcasts caused by a pause should be ignored by
+ * receivers, see consumePauseFinish()
+ */
+public class RadioScheduler {
+
+	public static final long DEFAULT_RESUME_DELAY_MS = 1000;
+
+	// requestDiscovery() results
+	public static final int REQUEST_FAILED = 0;
+	public static final int REQUEST_STARTED = 1; // started, or deferred for connects
+	public static final int REQUEST_JOINED = 2;  // joined the run wanted by another user
+
+	private static RadioScheduler shared;
+
+
+	private final BTExecutors executors;
+	private final Object lock = new Object();
+
+	private BluetoothAdapter adapter;
+	private int adapterUsers = 0;
+	private final CopyOnWriteArrayList<Runnable> abortListeners = new CopyOnWriteArrayList<Runnable>();
+	private long resumeDelayMs = DEFAULT_RESUME_DELAY_MS;
+
+	private int activeConnects = 0;
+	private boolean discoveryWanted = false; // requested, not yet finished or cancelled
+	private boolean discoveryPaused = false; // wanted, but held off for connects
+	private final HashSet<Object> discoveryUsers = new HashSet<Object>(); // who wants the current run
+	private long pausesIssued = 0;           // FINISHED broadcasts caused by pausing, ever
+	private ScheduledFuture<?> pendingResume;
+
+	private final Runnable resumeTask = new Runnable() {
+		@Override
+		public void run() {
+			resumeDiscovery();
+		}
+	};
+
+
+	public RadioScheduler(BTExecutors executors) {
+		this.executors = executors;
+	}
+
+	/**
+	 * Returns the process-wide scheduler, shared by all engines
+	 */
+	public static synchronized RadioScheduler getShared() {
+		if (shared == null) {
+			shared = new RadioScheduler(new BTExecutors()); // own timer, never shut down
+		}
+		return shared;
+	}
+
+	/**
+	 * Registers an engine as a user of the adapter. Must be followed by detachAdapter()
+	 */
+	void attachAdapter(BluetoothAdapter adapter) {
+		synchronized (lock) {
+			this.adapter = adapter;
+			adapterUsers++;
+		}
+	}
+
+	/**
+	 * Unregisters an adapter user. State is reset once the last user is gone
+	 */
+	void detachAdapter() {
+		synchronized (lock) {
+			if (adapterUsers > 0) {
+				adapterUsers--;
+			}
+			if (adapterUsers == 0) {
+				adapter = null;
+				resetLocked();
+			}
+		}
+	}
+
+	/**
+	 * Adds a callback activated when a paused or deferred discovery could not be (re)started
+	 */
+	void addOnDiscoveryAborted(Runnable onDiscoveryAborted) {
+		abortListeners.addIfAbsent(onDiscoveryAborted);
+	}
+
+	void removeOnDiscoveryAborted(Runnable onDiscoveryAborted) {
+		abortListeners.remove(onDiscoveryAborted);
+	}
+
+	/**
+	 * Sets the quiet period between the last connect ending and discovery resuming
+	 */
+	public void setResumeDelay(long resumeDelayMs) {
+		if (resumeDelayMs < 0) {
+			throw new RuntimeException("Bad resume delay!");
+		}
+		this.resumeDelayMs = resumeDelayMs;
+	}
+
+
+	/**
+	 * Requests a discovery run on behalf of user (e.g. a discovery session of any engine).
+	 * If discovery is already wanted by another user, user joins it: the inquiry is neither
+	 * cancelled nor restarted. Else a new run is started, cancelling any scan not requested
+	 * through the scheduler; it is deferred while connects are running.
+	 * Returns REQUEST_FAILED if the adapter refused to start discovery. 
+	 * Must be followed by releaseDiscovery(user)
+	 */
+	public int requestDiscovery(Object user) {
+		synchronized (lock) {
+			BluetoothAdapter a = adapter;
+			if (a == null) {
+				return REQUEST_FAILED;
+			}
+			if (discoveryWanted) {
+				discoveryUsers.add(user);
+				return REQUEST_JOINED;
+			}
+			cancelOnAdapter(a); // a prior scan, its FINISHED broadcast is for receivers to ignore
+			discoveryWanted = true;
+			discoveryUsers.add(user);
+			if (activeConnects > 0 || pendingResume != null) {
+				discoveryPaused = true;
+				BTLog.i("RadioScheduler", "Discovery deferred until running connects are done");
+				return REQUEST_STARTED;
+			}
+			discoveryPaused = false;
+			// started under the lock, so that no user joins a run failing to start
+			if (!a.startDiscovery()) { // async call!
+				discoveryWanted = false;
+				discoveryUsers.clear();
+				return REQUEST_FAILED;
+			}
+			return REQUEST_STARTED;
+		}
+	}
+
+	/**
+	 * Withdraws user's interest in the current discovery run. The run is cancelled once
+	 * no user is left. Returns true if the adapter's inquiry was cancelled, in which case
+	 * an ACTION_DISCOVERY_FINISHED broadcast follows
+	 */
+	public boolean releaseDiscovery(Object user) {
+		BluetoothAdapter a;
+		synchronized (lock) {
+			if (!discoveryUsers.remove(user) || !discoveryUsers.isEmpty()) {
+				return false; // not a user, or the run goes on for others
+			}
+			a = adapter;
+			discoveryWanted = false;
+			discoveryPaused = false;
+			cancelPendingResumeLocked();
+		}
+		return cancelOnAdapter(a);
+	}
+
+	/**
+	 * Cancels a running, paused or deferred discovery, for all its users
+	 */
+	public void cancelDiscovery() {
+		BluetoothAdapter a;
+		synchronized (lock) {
+			a = adapter;
+			discoveryWanted = false;
+			discoveryPaused = false;
+			discoveryUsers.clear();
+			cancelPendingResumeLocked();
+		}
+		cancelOnAdapter(a);
+	}
+
+	/**
+	 * Marks the current discovery run as completed
+	 */
+	public void onDiscoveryFinished() {
+		synchronized (lock) {
+			discoveryWanted = false;
+			discoveryPaused = false;
+			discoveryUsers.clear(); // every user's receiver gets the broadcast
+		}
+	}
+
+	/**
+	 * Returns a new filter for pause-caused FINISHED broadcasts, one per receiver.
+	 * Every receiver gets each broadcast, hence each keeps its own count
+	 */
+	public PauseFilter newPauseFilter() {
+		synchronized (lock) {
+			return new PauseFilter(pausesIssued);
+		}
+	}
+
+	/**
+	 * To be called by a receiver for each ACTION_DISCOVERY_FINISHED broadcast. Returns true if
+	 * the broadcast was caused by pausing discovery for a connect, and should be ignored
+	 */
+	public boolean consumePauseFinish(PauseFilter filter) {
+		synchronized (lock) {
+			if (filter.consumed < pausesIssued) {
+				filter.consumed++;
+				return true;
+			}
+			return discoveryPaused;
+		}
+	}
+
+	/**
+	 * Returns true while a requested discovery is held off for connects
+	 */
+	public boolean isDiscoveryPaused() {
+		synchronized (lock) {
+			return discoveryPaused;
+		}
+	}
+
+
+	/**
+	 * Marks a connect as started, pausing discovery if running.
+	 * Must be followed by endConnect()
+	 */
+	public void beginConnect() {
+		BluetoothAdapter a = null;
+		synchronized (lock) {
+			activeConnects++;
+			cancelPendingResumeLocked();
+			if (discoveryWanted && !discoveryPaused && adapter != null) {
+				discoveryPaused = true;
+				pausesIssued++; // before cancelling: its FINISHED broadcast may be handled at once
+				a = adapter;
+			}
+		}
+		if (a == null) {
+			return;
+		}
+		if (cancelOnAdapter(a)) {
+			BTLog.i("RadioScheduler", "Discovery paused for connect");
+		}
+		else {
+			synchronized (lock) {
+				pausesIssued--; // no FINISHED broadcast to expect
+			}
+		}
+	}
+
+	/**
+	 * Marks a connect as done. Once no connect is running a paused discovery is resumed
+	 */
+	public void endConnect() {
+		synchronized (lock) {
+			if (activeConnects > 0) {
+				activeConnects--;
+			}
+			if (activeConnects == 0 && discoveryWanted && discoveryPaused && pendingResume == null) {
+				pendingResume = executors.schedule(resumeTask, resumeDelayMs);
+			}
+		}
+	}
+
+	/**
+	 * Returns true while at least one connect is running
+	 */
+	public boolean isConnecting() {
+		synchronized (lock) {
+			return activeConnects > 0;
+		}
+	}
+
+
+	private void resumeDiscovery() {
+		BluetoothAdapter a;
+		synchronized (lock) {
+			pendingResume = null;
+			if (activeConnects > 0 || !discoveryWanted || !discoveryPaused || adapter == null) {
+				return;
+			}
+			discoveryPaused = false;
+			a = adapter;
+		}
+		boolean started = a.startDiscovery();
+		if (started) {
+			BTLog.i("RadioScheduler", "Discovery resumed");
+			return;
+		}
+		BTLog.e("RadioScheduler", "Failed to resume discovery");
+		synchronized (lock) {
+			discoveryWanted = false;
+			discoveryUsers.clear();
+		}
+		for (Runnable aborted : abortListeners) {
+			aborted.run();
+		}
+	}
+
+	private void cancelPendingResumeLocked() {
+		if (pendingResume != null) {
+			pendingResume.cancel(false);
+			pendingResume = null;
+		}
+	}
+
+	private void resetLocked() {
+		cancelPendingResumeLocked();
+		activeConnects = 0;
+		discoveryWanted = false;
+		discoveryPaused = false;
+		discoveryUsers.clear();
+	}
+
+	private static boolean cancelOnAdapter(BluetoothAdapter a) {
+		if (a == null) {
+			return false;
+		}
+		try {
+			if (a.isDiscovering()) {
+				return a.cancelDiscovery();
+			}
+		}
+		catch (Exception e) {
+			// no op
+		}
+		return false;
+	}
+
+
+	/**
+	 * Per receiver count of pause-caused FINISHED broadcasts already consumed
+	 */
+	public static class PauseFilter {
+		private long consumed; // guarded by the scheduler lock
+
+		private PauseFilter(long consumed) {
+			this.consumed = consumed;
+		}
+	}
+}
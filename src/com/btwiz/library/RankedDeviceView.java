@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A live view of the devices seen by a discovery run, kept sorted as sightings 
+ * arrive (strongest signal first by default). Each sighting is an O(log n) update 
+ * of the device's position; reading the view never re-sorts.
+ * Thread safe: may be read while discovery updates it
+ */
+public class RankedDeviceView {
+
+	/**
+	 * Strongest RSSI first, unknown RSSI last. Ties broken by address
+	 */
+	public static final Comparator<DeviceSnapshot> STRONGEST_FIRST = new Comparator<DeviceSnapshot>() {
+		@Override
+		public int compare(DeviceSnapshot lhs, DeviceSnapshot rhs) {
+			if (lhs.getRssi() != rhs.getRssi()) {
+				return lhs.getRssi() > rhs.getRssi() ? -1 : 1;
+			}
+			return lhs.getAddress().compareTo(rhs.getAddress());
+		}
+	};
+
+
+	private final ConcurrentSkipListSet<DeviceSnapshot> ranked;
+	private final ConcurrentHashMap<String, DeviceSnapshot> byAddress = new ConcurrentHashMap<String, DeviceSnapshot>();
+
+
+	public RankedDeviceView() {
+		this(STRONGEST_FIRST);
+	}
+
+	/**
+	 * order must be consistent with equals per device, i.e. break ties by address
+	 */
+	public RankedDeviceView(Comparator<DeviceSnapshot> order) {
+		if (order==null) {
+			throw new RuntimeException("Order cannot be null!");
+		}
+		ranked = new ConcurrentSkipListSet<DeviceSnapshot>(order);
+	}
+
+
+	/**
+	 * Records a sighting, re-positioning the device if seen before
+	 */
+	public synchronized void update(DeviceSnapshot snapshot) {
+		DeviceSnapshot prior = byAddress.put(snapshot.getAddress(), snapshot);
+		if (prior != null) {
+			ranked.remove(prior);
+		}
+		ranked.add(snapshot);
+	}
+
+	/**
+	 * Returns the latest sighting of a device, or null
+	 */
+	public DeviceSnapshot get(String address) {
+		return byAddress.get(address);
+	}
+
+	/**
+	 * Returns the devices in rank order (a copy)
+	 */
+	public List<DeviceSnapshot> getRanked() {
+		return new ArrayList<DeviceSnapshot>(ranked);
+	}
+
+	/**
+	 * Returns the top ranked device, or null if none
+	 */
+	public DeviceSnapshot getFirst() {
+		try {
+			return ranked.first();
+		}
+		catch (NoSuchElementException e) {
+			return null; // empty
+		}
+	}
+
+	/**
+	 * Returns the top ranked device passing comparator, or null.
+	 * E.g. the closest device of a given kind
+	 */
+	public DeviceSnapshot getFirst(ISnapshotComparator comparator) {
+		for (DeviceSnapshot snapshot: ranked) {
+			if (comparator.match(snapshot)) {
+				return snapshot;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return byAddress.size();
+	}
+
+	public synchronized void clear() {
+		ranked.clear();
+		byAddress.clear();
+	}
+}
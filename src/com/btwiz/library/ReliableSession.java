@@ -0,0 +1,597 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * An optional reliable-session layer over BTSocket.
+ *
+ * Every chunk of data sent is framed with a sequence number and kept in a bounded
+ * replay buffer until the peer acknowledges it (acks are cumulative and piggybacked
+ * on every frame). When the link drops, the session keeps its state; once a new socket
+ * to the same device is attach()ed both sides exchange a resume handshake carrying
+ * their last received sequence number and only the data the peer did not get is re-sent.
+ *
+ * Both peers must use a ReliableSession. Typical usage:
+ *
+ * 			ReliableSession session = new ReliableSession(sessionListener);
+ * 			session.attach(btSocket); // upon each (re)connect
+ * 			session.send(buffer);
+ * 			....
+ * 			session.close();
+ *
+ * Note: listener callbacks run on the session reader thread and should not block
+ */
+public class ReliableSession {
+
+	public static final int DEFAULT_REPLAY_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Larger send()s are split into several frames
+	 */
+	public static final int MAX_PAYLOAD_SIZE = 16 * 1024;
+
+	private static final byte FRAME_DATA = 1;
+	private static final byte FRAME_ACK = 2;
+	private static final byte FRAME_RESUME = 3;
+
+	private static final int HEADER_SIZE = 21; // type(1) + seq(8) + ack(8) + length(4)
+
+	private static final int ACK_EVERY = 16; // max frames received before forcing an ack
+
+	private static final ThreadFactory SENDER_THREADS = new BTExecutors.NamedThreadFactory("BTWiz-session-sender");
+	private static final ThreadFactory READER_THREADS = new BTExecutors.NamedThreadFactory("BTWiz-session-reader");
+	private static final ThreadFactory REPLAY_THREADS = new BTExecutors.NamedThreadFactory("BTWiz-session-replay");
+
+
+	private final ISessionListener listener;
+	private final int maxReplayBytes;
+	private final long localSessionId;
+
+	private final Object lock = new Object(); // guards session state, never held during IO
+	private final ReentrantLock writeLock = new ReentrantLock(); // serializes stream writes
+	private final AtomicBoolean ackPending = new AtomicBoolean(false);
+
+	private final LinkedList<Frame> unacked = new LinkedList<Frame>();
+	private int unackedBytes;
+	private long nextSendSeq = 1;
+	private long ackedSeq = 0;
+	private long lastReceivedSeq = 0;
+	private int receivedSinceAck = 0;
+	private long remoteSessionId = 0;
+
+	private BTSocket socket;
+	private OutputStream outStream;
+	private boolean resumed; // true once the peer's resume was processed over the current socket
+	private String peerAddress;
+	private boolean closed;
+
+	private ExecutorService sendThread;
+
+
+	public ReliableSession(ISessionListener listener) {
+		this(listener, DEFAULT_REPLAY_BUFFER_SIZE);
+	}
+
+	/**
+	 * maxReplayBytes bounds the amount of unacknowledged data kept for replay.
+	 * send() blocks while the replay buffer is full
+	 */
+	public ReliableSession(ISessionListener listener, int maxReplayBytes) {
+		if (listener==null || maxReplayBytes <= 0) {
+			throw new RuntimeException("Bad ReliableSession params!");
+		}
+		this.listener = listener;
+		this.maxReplayBytes = maxReplayBytes;
+		long id = 0;
+		while (id == 0) {
+			id = new Random().nextLong();
+		}
+		this.localSessionId = id;
+	}
+
+
+	/**
+	 * Binds the session to a newly connected socket, replacing (and closing) the former one.
+	 * The socket must be connected to the same device the session was first attached to.
+	 * Pending data is replayed once the peer answers the resume handshake
+	 */
+	public void attach(BTSocket newSocket) throws IOException {
+		if (newSocket==null) {
+			throw new RuntimeException("Attached socket cannot be null!");
+		}
+		InputStream in = newSocket.getInputStream();
+		OutputStream out = newSocket.getOutputStream();
+		if (in == null || out == null) {
+			throw new IOException("Socket streams are not open");
+		}
+		String address = addressOf(newSocket);
+
+		BTSocket former;
+		writeLock.lock();
+		try {
+			synchronized (lock) {
+				if (closed) {
+					throw new IOException("Session is closed");
+				}
+				if (peerAddress != null && address != null && !peerAddress.equals(address)) {
+					throw new RuntimeException("Session is bound to device " + peerAddress);
+				}
+				if (peerAddress == null) {
+					peerAddress = address;
+				}
+				former = socket;
+				socket = newSocket;
+				outStream = out;
+				resumed = false;
+			}
+			if (former != null && former != newSocket) {
+				former.close();
+			}
+			writeFrame(newSocket, out, FRAME_RESUME, localSessionId, null);
+		}
+		finally {
+			writeLock.unlock();
+		}
+		flushPendingAck();
+		startReader(newSocket, in);
+	}
+
+
+	/**
+	 * Equivalent to send(buffer, 0, buffer.length)
+	 */
+	public void send(byte[] buffer) throws IOException {
+		send(buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Sends count bytes from buffer starting at offset (might block).
+	 * Once this method returns the data is owned by the session: if the link is
+	 * down it will be delivered after the next attach().
+	 * Blocks while the replay buffer is full. Throws only if the session was closed
+	 */
+	public void send(byte[] buffer, int offset, int count) throws IOException {
+		int end = offset + count;
+		for (int pos = offset; pos < end; pos += MAX_PAYLOAD_SIZE) {
+			int len = Math.min(MAX_PAYLOAD_SIZE, end - pos);
+			byte[] payload = new byte[len];
+			System.arraycopy(buffer, pos, payload, 0, len);
+			sendFrame(payload);
+		}
+	}
+
+	/**
+	 * Asynchronously send a buffer. Activate writeListener at error/complete
+	 */
+	public void sendAsync(final byte[] buffer, final IWriteListener writeListener) {
+		ExecutorService executor;
+		synchronized (lock) {
+			if (closed) {
+				executor = null;
+			}
+			else {
+				if (sendThread == null) {
+					sendThread = Executors.newSingleThreadExecutor(SENDER_THREADS);
+				}
+				executor = sendThread;
+			}
+		}
+		if (executor == null) {
+			if (writeListener != null) {
+				writeListener.onError(new IOException("Session is closed"));
+			}
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						send(buffer);
+						if (writeListener != null) {
+							writeListener.onSuccess();
+						}
+					}
+					catch (IOException e) {
+						BTLog.e("ReliableSession", "send error: " + e);
+						if (writeListener != null) {
+							writeListener.onError(e);
+						}
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) { // closed meanwhile
+			if (writeListener != null) {
+				writeListener.onError(new IOException("Session is closed"));
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the session and its socket. Buffered data is discarded
+	 */
+	public void close() {
+		BTSocket former;
+		synchronized (lock) {
+			closed = true;
+			former = socket;
+			socket = null;
+			outStream = null;
+			unacked.clear();
+			unackedBytes = 0;
+			lock.notifyAll();
+			if (sendThread != null) {
+				sendThread.shutdown();
+				sendThread = null;
+			}
+		}
+		if (former != null) {
+			former.close();
+		}
+	}
+
+	/**
+	 * Returns true if the session is currently bound to a live socket
+	 */
+	public boolean isAttached() {
+		synchronized (lock) {
+			return socket != null;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes sent but not yet acknowledged by the peer
+	 */
+	public int getUnackedBytes() {
+		synchronized (lock) {
+			return unackedBytes;
+		}
+	}
+
+
+	private void sendFrame(byte[] payload) throws IOException {
+		synchronized (lock) {
+			// reserve replay buffer space. an oversized frame is admitted into an empty buffer
+			while (!closed && unackedBytes > 0 && unackedBytes + payload.length > maxReplayBytes) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for replay buffer");
+				}
+			}
+			if (closed) {
+				throw new IOException("Session is closed");
+			}
+			unackedBytes += payload.length;
+		}
+
+		writeLock.lock(); // sequence numbers are assigned under writeLock to keep wire order
+		try {
+			Frame frame;
+			BTSocket sock;
+			OutputStream out;
+			synchronized (lock) {
+				frame = new Frame(nextSendSeq++, payload);
+				unacked.addLast(frame);
+				sock = resumed ? socket : null; // else: will be sent by replay
+				out = outStream;
+			}
+			if (sock != null) {
+				writeFrame(sock, out, FRAME_DATA, frame.seq, frame.payload);
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+		flushPendingAck();
+	}
+
+
+	/**
+	 * Writes a single frame. Caller must hold writeLock.
+	 * Returns false (and detaches the socket) upon IO error
+	 */
+	private boolean writeFrame(BTSocket sock, OutputStream out, byte type, long seq, byte[] payload) {
+		int len = payload == null ? 0 : payload.length;
+		long ack;
+		synchronized (lock) {
+			ack = lastReceivedSeq;
+			receivedSinceAck = 0;
+		}
+		byte[] frame = new byte[HEADER_SIZE + len];
+		frame[0] = type;
+		putLong(frame, 1, seq);
+		putLong(frame, 9, ack);
+		putInt(frame, 17, len);
+		if (len > 0) {
+			System.arraycopy(payload, 0, frame, HEADER_SIZE, len);
+		}
+		try {
+			out.write(frame);
+			out.flush();
+			return true;
+		}
+		catch (IOException e) {
+			onSocketError(sock, e);
+			return false;
+		}
+	}
+
+	private void requestAck() {
+		ackPending.set(true);
+		flushPendingAck();
+	}
+
+	/**
+	 * Sends a pending ack unless another thread is writing, in which case that thread
+	 * flushes it once done. Never blocks, so the reader thread can not stall on a full link
+	 */
+	private void flushPendingAck() {
+		while (ackPending.get() && writeLock.tryLock()) {
+			try {
+				if (ackPending.getAndSet(false)) {
+					BTSocket sock;
+					OutputStream out;
+					synchronized (lock) {
+						sock = socket;
+						out = outStream;
+					}
+					if (sock != null) {
+						writeFrame(sock, out, FRAME_ACK, 0, null);
+					}
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+
+	private void startReader(final BTSocket sock, final InputStream in) {
+		READER_THREADS.newThread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop(sock, new DataInputStream(in));
+			}
+		}).start();
+	}
+
+	private void readLoop(BTSocket sock, DataInputStream in) {
+		try {
+			for (;;) {
+				byte type = in.readByte();
+				long seq = in.readLong();
+				long ack = in.readLong();
+				int len = in.readInt();
+				if (len < 0 || len > MAX_PAYLOAD_SIZE) {
+					throw new IOException("Bad frame length: " + len);
+				}
+				byte[] payload = new byte[len];
+				in.readFully(payload);
+				if (!isCurrent(sock)) {
+					return; // socket was replaced
+				}
+
+				switch (type) {
+				case FRAME_DATA:
+					onAck(ack);
+					onData(seq, payload, in.available() == 0);
+					break;
+				case FRAME_ACK:
+					onAck(ack);
+					break;
+				case FRAME_RESUME:
+					onResume(sock, seq, ack);
+					break;
+				default:
+					throw new IOException("Unknown frame type: " + type);
+				}
+			}
+		}
+		catch (IOException e) {
+			onSocketError(sock, e);
+		}
+	}
+
+	private void onAck(long ack) throws IOException {
+		synchronized (lock) {
+			if (ack >= nextSendSeq) {
+				throw new IOException("Peer acked unsent frame " + ack);
+			}
+			pruneAcked(ack);
+		}
+	}
+
+	private void onData(long seq, byte[] payload, boolean inputDrained) throws IOException {
+		boolean duplicate;
+		synchronized (lock) {
+			duplicate = seq <= lastReceivedSeq; // a replayed frame we already got
+			if (!duplicate) {
+				if (seq != lastReceivedSeq + 1) {
+					throw new IOException("Frame gap: expected " + (lastReceivedSeq + 1) + " got " + seq);
+				}
+				lastReceivedSeq = seq;
+				receivedSinceAck++;
+			}
+		}
+		if (!duplicate) {
+			listener.onDataReceived(payload);
+		}
+		requestAckLater(inputDrained);
+	}
+
+	private void requestAckLater(boolean inputDrained) {
+		boolean ackNow;
+		synchronized (lock) {
+			ackNow = inputDrained || receivedSinceAck >= ACK_EVERY;
+		}
+		if (ackNow) {
+			requestAck();
+		}
+	}
+
+	private void onResume(final BTSocket sock, long peerSessionId, long peerAck) throws IOException {
+		IOException fatal = null;
+		synchronized (lock) {
+			if (remoteSessionId != 0 && remoteSessionId != peerSessionId && lastReceivedSeq > 0) {
+				fatal = new IOException("Peer session was restarted");
+			}
+			else if (peerAck < ackedSeq || peerAck >= nextSendSeq) {
+				fatal = new IOException("Peer resume point " + peerAck + " is no longer available");
+			}
+			else {
+				remoteSessionId = peerSessionId;
+				pruneAcked(peerAck);
+			}
+		}
+		if (fatal != null) {
+			BTLog.e("ReliableSession", "Resume failed: " + fatal);
+			close();
+			listener.onSessionError(fatal);
+			return;
+		}
+
+		// replay on a dedicated thread: the reader must keep draining the link meanwhile
+		REPLAY_THREADS.newThread(new Runnable() {
+			@Override
+			public void run() {
+				replay(sock);
+			}
+		}).start();
+	}
+
+	private void replay(BTSocket sock) {
+		int numReplayed = 0;
+		writeLock.lock();
+		try {
+			List<Frame> pending;
+			OutputStream out;
+			synchronized (lock) {
+				if (socket != sock) {
+					return;
+				}
+				out = outStream;
+				pending = new ArrayList<Frame>(unacked);
+			}
+			for (Frame frame: pending) {
+				if (!writeFrame(sock, out, FRAME_DATA, frame.seq, frame.payload)) {
+					return; // link dropped again
+				}
+				numReplayed++;
+			}
+			synchronized (lock) {
+				if (socket != sock) {
+					return;
+				}
+				resumed = true;
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+		flushPendingAck();
+		listener.onSessionResumed(numReplayed);
+	}
+
+	/**
+	 * Caller must hold lock
+	 */
+	private void pruneAcked(long ack) {
+		if (ack <= ackedSeq) {
+			return;
+		}
+		ackedSeq = ack;
+		while (!unacked.isEmpty() && unacked.getFirst().seq <= ack) {
+			unackedBytes -= unacked.removeFirst().payload.length;
+		}
+		lock.notifyAll(); // wake senders waiting for replay buffer space
+	}
+
+	private boolean isCurrent(BTSocket sock) {
+		synchronized (lock) {
+			return socket == sock;
+		}
+	}
+
+	private void onSocketError(BTSocket sock, IOException e) {
+		synchronized (lock) {
+			if (socket != sock) {
+				return; // already handled, or replaced by a newer socket
+			}
+			socket = null;
+			outStream = null;
+			resumed = false;
+		}
+		BTLog.e("ReliableSession", "Session interrupted: " + e);
+		sock.close();
+		listener.onSessionInterrupted(e);
+	}
+
+	private static String addressOf(BTSocket sock) {
+		try {
+			return sock.getRemoteDevice().getAddress();
+		}
+		catch (Exception e) {
+			return null; // socket already closed
+		}
+	}
+
+	private static void putLong(byte[] buf, int pos, long val) {
+		for (int i = 7; i >= 0; i--) {
+			buf[pos + i] = (byte)val;
+			val >>>= 8;
+		}
+	}
+
+	private static void putInt(byte[] buf, int pos, int val) {
+		for (int i = 3; i >= 0; i--) {
+			buf[pos + i] = (byte)val;
+			val >>>= 8;
+		}
+	}
+
+
+	private static class Frame {
+		final long seq;
+		final byte[] payload;
+
+		Frame(long seq, byte[] payload) {
+			this.seq = seq;
+			this.payload = payload;
+		}
+	}
+}
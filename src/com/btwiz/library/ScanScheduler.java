@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.HashSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+
+/**
+ * Runs discovery periodically, for apps needing continuous presence detection.
+ *
+ * Each scan runs for at most scanDurationMs (or a full inquiry, ~12s) and the next 
+ * one starts intervalMs after the previous one began. The interval adapts: 
+ *  - halved (down to minIntervalMs) while scans keep finding new devices
+ *  - doubled (up to maxIntervalMs) when a scan finds nothing new
+ *  - doubled as well while data sockets are open, so that open links lose less 
+ *    throughput to inquiry
+ * A scan due while connects are running is skipped and retried after minIntervalMs.
+ *
+ * Scans go through the engine's DiscoveryCoordinator, so lookups started meanwhile 
+ * join the running scan. Note that a scan cut short by scanDurationMs also ends the 
+ * lookups waiting on it.
+ *
+ * Typical usage:
+ *
+ * 			ScanScheduler scanner = BTWiz.getScanScheduler();
+ * 			scanner.setDutyCycle(5000, 30000);
+ * 			scanner.start(context);
+ * 			....
+ * 			BTLog.d(TAG, "Scan cost vs. yield: " + scanner.getStats());
+ * 			scanner.stop();
+ */
+public class ScanScheduler {
+
+	public static final long FULL_INQUIRY = 0;
+	public static final long DEFAULT_INTERVAL_MS = 30000;
+	public static final long DEFAULT_MIN_INTERVAL_MS = 15000;
+	public static final long DEFAULT_MAX_INTERVAL_MS = 5 * 60 * 1000;
+
+
+	private final BTWizEngine engine;
+	private final Object lock = new Object();
+
+	private long scanDurationMs = FULL_INQUIRY;
+	private long baseIntervalMs = DEFAULT_INTERVAL_MS;
+	private long minIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+	private long maxIntervalMs = DEFAULT_MAX_INTERVAL_MS;
+
+	private Context context;
+	private boolean running = false;
+	private int generation = 0;          // invalidates callbacks of a stopped run
+	private long intervalMs;
+	private ScheduledFuture<?> nextScan;
+	private ScheduledFuture<?> scanCutoff;
+	private HashSet<String> seenByPreviousScan = new HashSet<String>();
+	private HashSet<String> seenByCurrentScan = new HashSet<String>();
+	private int currentScanNew = 0;
+	private long scanSeq = 0;            // identifies the running scan
+	private boolean scanning = false;
+
+	// stats
+	private long startedAt = 0;
+	private long numScans = 0;
+	private long numSkipped = 0;
+	private long radioBusyMs = 0;
+	private long numSightings = 0;
+	private long numNewDevices = 0;
+	private int lastScanNewDevices = 0;
+
+
+	ScanScheduler(BTWizEngine engine) {
+		this.engine = engine;
+		this.intervalMs = baseIntervalMs;
+	}
+
+
+	/**
+	 * Sets the max duration of a single scan (FULL_INQUIRY: let it run to its end) and 
+	 * the initial interval between scan starts
+	 */
+	public void setDutyCycle(long scanDurationMs, long intervalMs) {
+		if (scanDurationMs < 0 || intervalMs <= 0 || scanDurationMs > intervalMs) {
+			throw new RuntimeException("Bad duty cycle params!");
+		}
+		synchronized (lock) {
+			this.scanDurationMs = scanDurationMs;
+			this.baseIntervalMs = intervalMs;
+			this.intervalMs = clampLocked(intervalMs);
+		}
+	}
+
+	/**
+	 * Sets the range within which the interval adapts
+	 */
+	public void setIntervalBounds(long minIntervalMs, long maxIntervalMs) {
+		if (minIntervalMs <= 0 || maxIntervalMs < minIntervalMs) {
+			throw new RuntimeException("Bad interval bounds!");
+		}
+		synchronized (lock) {
+			this.minIntervalMs = minIntervalMs;
+			this.maxIntervalMs = maxIntervalMs;
+			this.intervalMs = clampLocked(intervalMs);
+		}
+	}
+
+
+	/**
+	 * Starts scanning periodically. The first scan starts immediately
+	 */
+	public void start(Context context) {
+		if (context==null) {
+			throw new RuntimeException("Bad ScanScheduler params!");
+		}
+		synchronized (lock) {
+			if (running) {
+				return;
+			}
+			running = true;
+			generation++;
+			this.context = context;
+			intervalMs = clampLocked(baseIntervalMs);
+			startedAt = System.currentTimeMillis();
+			numScans = numSkipped = radioBusyMs = numSightings = numNewDevices = 0;
+			lastScanNewDevices = 0;
+			seenByPreviousScan = new HashSet<String>();
+			scheduleLocked(0);
+		}
+	}
+
+	/**
+	 * Stops scanning. A running scan is left to complete
+	 */
+	public void stop() {
+		synchronized (lock) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			generation++;
+			cancelLocked();
+			context = null;
+		}
+	}
+
+	public boolean isRunning() {
+		synchronized (lock) {
+			return running;
+		}
+	}
+
+	/**
+	 * Returns the current (adapted) interval between scan starts
+	 */
+	public long getCurrentInterval() {
+		synchronized (lock) {
+			return intervalMs;
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the scan statistics since start()
+	 */
+	public ScanStats getStats() {
+		synchronized (lock) {
+			long elapsed = startedAt == 0 ? 0 : System.currentTimeMillis() - startedAt;
+			return new ScanStats(numScans, numSkipped, radioBusyMs, elapsed, numSightings, 
+					numNewDevices, lastScanNewDevices, intervalMs);
+		}
+	}
+
+
+	private void runScan(final int scanGeneration) {
+		Context ctx;
+		synchronized (lock) {
+			if (!running || scanGeneration != generation) {
+				return;
+			}
+			nextScan = null;
+			if (engine.getRadioScheduler().isConnecting()) {
+				// connects own the radio; try again soon
+				numSkipped++;
+				scheduleLocked(minIntervalMs);
+				return;
+			}
+			ctx = context;
+			seenByCurrentScan = new HashSet<String>();
+			currentScanNew = 0;
+			scanning = true;
+			scanSeq++;
+		}
+
+		final long scanStart = System.currentTimeMillis();
+		IDeviceLookupListener counter = new IDeviceLookupListener() {
+			@Override
+			public boolean onDeviceFound(BluetoothDevice device, boolean byDiscovery) {
+				onSighting(scanGeneration, device.getAddress());
+				return true; // keep scanning
+			}
+			@Override
+			public void onDeviceNotFound(boolean byDiscovery) {
+				// no op
+			}
+		};
+		Runnable onFinished = new Runnable() {
+			@Override
+			public void run() {
+				onScanFinished(scanGeneration, System.currentTimeMillis() - scanStart);
+			}
+		};
+
+		boolean started;
+		try {
+			started = engine.startDiscoveryAsync(ctx, onFinished, counter); // joins a running discovery
+		}
+		catch (RuntimeException e) {
+			BTLog.e("ScanScheduler", "Scan start error: " + e);
+			started = false;
+		}
+		synchronized (lock) {
+			if (!running || scanGeneration != generation) {
+				return;
+			}
+			if (!started) {
+				scanning = false;
+				numSkipped++;
+				intervalMs = clampLocked(intervalMs * 2);
+				scheduleLocked(intervalMs);
+				return;
+			}
+			if (scanning && scanDurationMs != FULL_INQUIRY) { // not already finished
+				final long seq = scanSeq;
+				scanCutoff = scheduleTask(new Runnable() {
+					@Override
+					public void run() {
+						cutScan(seq);
+					}
+				}, scanDurationMs);
+			}
+		}
+	}
+
+	private void cutScan(long seq) {
+		synchronized (lock) {
+			if (!scanning || seq != scanSeq) {
+				return;
+			}
+		}
+		engine.getDiscoveryCoordinator().cancelInquiry(); // through the session's source, lookups complete on FINISHED
+	}
+
+	private void onSighting(int scanGeneration, String address) {
+		synchronized (lock) {
+			if (scanGeneration != generation || address == null) {
+				return;
+			}
+			numSightings++;
+			if (seenByCurrentScan.add(address) && !seenByPreviousScan.contains(address)) {
+				currentScanNew++;
+			}
+		}
+	}
+
+	private void onScanFinished(int scanGeneration, long busyMs) {
+		ScanStats stats;
+		synchronized (lock) {
+			if (scanGeneration != generation) {
+				return;
+			}
+			scanning = false;
+			if (scanCutoff != null) {
+				scanCutoff.cancel(false);
+				scanCutoff = null;
+			}
+			numScans++;
+			radioBusyMs += busyMs;
+			numNewDevices += currentScanNew;
+			lastScanNewDevices = currentScanNew;
+			seenByPreviousScan = seenByCurrentScan;
+
+			// adapt: speed up while new devices keep appearing, back off otherwise
+			long next = currentScanNew > 0 ? intervalMs / 2 : intervalMs * 2;
+			if (engine.getSocketRegistry().size() > 0) {
+				next *= 2; // data links are busy
+			}
+			intervalMs = clampLocked(next);
+			if (running) {
+				scheduleLocked(Math.max(0, intervalMs - busyMs)); // interval counts from scan start
+			}
+			stats = getStats();
+		}
+		BTLog.i("ScanScheduler", "Scan done in " + busyMs + "ms: " + stats);
+	}
+
+
+	/**
+	 * Caller must hold lock
+	 */
+	private void scheduleLocked(long delayMs) {
+		final int scanGeneration = generation;
+		nextScan = scheduleTask(new Runnable() {
+			@Override
+			public void run() {
+				runScan(scanGeneration);
+			}
+		}, delayMs);
+	}
+
+	private ScheduledFuture<?> scheduleTask(Runnable task, long delayMs) {
+		try {
+			return engine.getExecutors().schedule(task, delayMs);
+		}
+		catch (RejectedExecutionException e) {
+			BTLog.e("ScanScheduler", "Scan scheduling rejected: " + e);
+			running = false; // executors shut down
+			return null;
+		}
+	}
+
+	/**
+	 * Caller must hold lock
+	 */
+	private void cancelLocked() {
+		if (nextScan != null) {
+			nextScan.cancel(false);
+			nextScan = null;
+		}
+		if (scanCutoff != null) {
+			scanCutoff.cancel(false);
+			scanCutoff = null;
+		}
+	}
+
+	private long clampLocked(long interval) {
+		return Math.max(minIntervalMs, Math.min(maxIntervalMs, interval));
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * An immutable snapshot of ScanScheduler statistics: scan cost (radio busy time) 
+ * versus discovery yield. A new device is one not seen by the previous scan
+ */
+public class ScanStats {
+	public final long numScans;
+	public final long numSkipped;
+	public final long radioBusyMs;
+	public final long elapsedMs;
+	public final long numSightings;
+	public final long numNewDevices;
+	public final int lastScanNewDevices;
+	public final long currentIntervalMs;
+
+	public ScanStats(long numScans, long numSkipped, long radioBusyMs, long elapsedMs, 
+			long numSightings, long numNewDevices, int lastScanNewDevices, long currentIntervalMs) {
+		this.numScans = numScans;
+		this.numSkipped = numSkipped;
+		this.radioBusyMs = radioBusyMs;
+		this.elapsedMs = elapsedMs;
+		this.numSightings = numSightings;
+		this.numNewDevices = numNewDevices;
+		this.lastScanNewDevices = lastScanNewDevices;
+		this.currentIntervalMs = currentIntervalMs;
+	}
+
+	/**
+	 * Returns the fraction of time the radio spent scanning (0..1)
+	 */
+	public double getDutyCycle() {
+		return elapsedMs == 0 ? 0 : Math.min(1.0, (double)radioBusyMs / elapsedMs);
+	}
+
+	/**
+	 * Returns the number of new devices found per second of scanning
+	 */
+	public double getNewDevicesPerScanSecond() {
+		return radioBusyMs == 0 ? 0 : numNewDevices * 1000.0 / radioBusyMs;
+	}
+
+	@Override
+	public String toString() {
+		return "scans=" + numScans + " skipped=" + numSkipped + " radioBusyMs=" + radioBusyMs + 
+				" dutyCycle=" + String.format("%.3f", getDutyCycle()) + " sightings=" + numSightings + 
+				" newDevices=" + numNewDevices + " lastScanNew=" + lastScanNewDevices + 
+				" newPerScanSecond=" + String.format("%.3f", getNewDevicesPerScanSecond()) + 
+				" intervalMs=" + currentIntervalMs;
+	}
+}
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build.VERSION_CODES;
+import android.os.Parcelable;
+import android.os.ParcelUuid;
+
+/**
+ * Caches the SDP service UUIDs of remote devices by address, with a TTL.
+ *
+ * Prefetches are SDP queries (fetchUuidsWithSdp) run one at a time, and held off 
+ * while the radio is busy connecting or discovering (SDP then is slow and hurts both).
+ * Optionally, the engine prefetches discovered devices right after discovery finishes.
+ *
+ * Connects pick a service UUID via selectServiceUuid() without any blocking query.
+ */
+public class SdpCache {
+
+	public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+	public static final long SDP_QUERY_TIMEOUT_MS = 6000;
+
+	private final BTWizEngine engine;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile long ttlMs = DEFAULT_TTL_MS;
+	private volatile boolean prefetchDiscovered = false;
+
+	private final Object lock = new Object();
+	private final LinkedHashMap<String, BluetoothDevice> pending = new LinkedHashMap<String, BluetoothDevice>();
+	private String inFlight;           // address of the running SDP query, if any
+	private ScheduledFuture<?> inFlightTimeout;
+	private BroadcastRegistration uuidReceiver; // non null while registered
+
+
+	SdpCache(BTWizEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Sets how long fetched UUIDs are considered valid
+	 */
+	public void setTtl(long ttlMs) {
+		if (ttlMs <= 0) {
+			throw new RuntimeException("Bad TTL!");
+		}
+		this.ttlMs = ttlMs;
+	}
+
+
+	/**
+	 * Toggle prefetching all devices found by discovery, once it finishes. 
+	 * Off by default: each SDP query pages the remote device 
+	 */
+	public void setPrefetchDiscovered(boolean prefetch) {
+		this.prefetchDiscovered = prefetch;
+	}
+
+	boolean getPrefetchDiscovered() {
+		return prefetchDiscovered;
+	}
+
+
+	/**
+	 * Returns the (non expired) cached UUIDs of a device, or null
+	 */
+	public UUID[] getUuids(String address) {
+		Entry entry = entries.get(address);
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() - entry.fetchedAt > ttlMs) {
+			entries.remove(address, entry);
+			return null;
+		}
+		return entry.uuids;
+	}
+
+	/**
+	 * Stores the UUIDs of a device
+	 */
+	public void put(String address, UUID[] uuids) {
+		if (address==null || uuids==null || uuids.length==0) {
+			return;
+		}
+		entries.put(address, new Entry(uuids));
+		engine.getDeviceCache().updateUuids(address, uuids);
+	}
+
+	/**
+	 * Drops all cached UUIDs
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+
+	/**
+	 * Picks the service UUID to connect a device with (non blocking): the app UUID if 
+	 * the device offers it, else SPP if offered, else the first one offered. Falls back to 
+	 * the stack's own cached UUIDs on a cache miss, queuing a prefetch of fresh ones for next time. 
+	 * The query is only queued: it is run by the runNext() following the connect's end, 
+	 * so that it does not page the device concurrently with the connect. 
+	 * Returns null if no UUID is known 
+	 */
+	public UUID selectServiceUuid(Context context, BluetoothDevice device) {
+		UUID[] uuids = getUuids(device.getAddress());
+		if (uuids == null) {
+			uuids = BTWiz.getSupportedUuids(context, device); // stack cache, possibly stale
+			enqueue(context, device); // the radio is not yet marked busy, hence no runNext()
+		}
+		if (uuids == null || uuids.length == 0) {
+			return null;
+		}
+		UUID appUuid = engine.getAppUUID();
+		for (UUID uuid: uuids) {
+			if (uuid.equals(appUuid)) {
+				return uuid;
+			}
+		}
+		for (UUID uuid: uuids) {
+			if (uuid.equals(BTWiz.DEFAULT_SPP_UUID)) {
+				return uuid;
+			}
+		}
+		return uuids[0];
+	}
+
+
+	/**
+	 * Queues an SDP query for a device unless its cached UUIDs are still valid. 
+	 * Queries run one at a time, once the radio is idle
+	 */
+	public void prefetch(Context context, BluetoothDevice device) {
+		if (enqueue(context, device)) {
+			runNext();
+		}
+	}
+
+	/**
+	 * Queues an SDP query without running it. Returns false if not queued
+	 */
+	private boolean enqueue(Context context, BluetoothDevice device) {
+		if (device==null || getUuids(device.getAddress()) != null) {
+			return false;
+		}
+		synchronized (lock) {
+			if (device.getAddress().equals(inFlight)) {
+				return false;
+			}
+			pending.put(device.getAddress(), device);
+			registerReceiverLocked(context);
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the next queued SDP query if none is running and the radio is idle.
+	 * Activated again by the engine once discovery finishes
+	 */
+	void runNext() {
+		BluetoothDevice next = null;
+		synchronized (lock) {
+			if (inFlight != null || pending.isEmpty() || isRadioBusy()) {
+				return;
+			}
+			String address = pending.keySet().iterator().next();
+			next = pending.remove(address);
+			inFlight = address;
+			final String queried = address;
+			inFlightTimeout = engine.getExecutors().schedule(new Runnable() {
+				@Override
+				public void run() {
+					onQueryDone(queried, null); // no ACTION_UUID within timeout
+				}
+			}, SDP_QUERY_TIMEOUT_MS);
+		}
+		if (!fetchUuidsWithSdp(next)) {
+			BTLog.e("SdpCache", "fetchUuidsWithSdp failed for " + next.getAddress());
+			onQueryDone(next.getAddress(), null);
+		}
+	}
+
+	private boolean isRadioBusy() {
+		RadioScheduler radio = engine.getRadioScheduler();
+		if (radio.isConnecting()) {
+			return true;
+		}
+		BluetoothAdapter adapter = engine.getBluetoothAdapterOrNull();
+		return adapter == null || adapter.isDiscovering();
+	}
+
+	/**
+	 * A query ended, with results or without (null uuids)
+	 */
+	private void onQueryDone(String address, UUID[] uuids) {
+		put(address, uuids); // ignores null
+		synchronized (lock) {
+			if (!address.equals(inFlight)) {
+				return; // a late or unsolicited result
+			}
+			inFlight = null;
+			if (inFlightTimeout != null) {
+				inFlightTimeout.cancel(false);
+				inFlightTimeout = null;
+			}
+		}
+		runNext();
+	}
+
+
+	private void registerReceiverLocked(Context context) {
+		if (uuidReceiver != null) {
+			return;
+		}
+		Context appContext = context.getApplicationContext();
+		uuidReceiver = BroadcastRegistration.register(appContext != null ? appContext : context, 
+				new IntentFilter(BluetoothDevice.ACTION_UUID), null, new IBroadcastListener() {
+			@Override
+			public void onReceive(Intent intent) {
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				if (device == null) {
+					return;
+				}
+				onQueryDone(device.getAddress(), toUuids(intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID)));
+			}
+		});
+	}
+
+	/**
+	 * Unregisters the UUID receiver and drops queued queries. Cached UUIDs are kept
+	 */
+	void close() {
+		synchronized (lock) {
+			pending.clear();
+			inFlight = null;
+			if (inFlightTimeout != null) {
+				inFlightTimeout.cancel(false);
+				inFlightTimeout = null;
+			}
+			if (uuidReceiver != null) {
+				uuidReceiver.unregister();
+				uuidReceiver = null;
+			}
+		}
+	}
+
+
+	static UUID[] toUuids(Parcelable[] parcels) {
+		if (parcels == null || parcels.length == 0) {
+			return null;
+		}
+		UUID[] uuids = new UUID[parcels.length];
+		for (int i = 0; i < parcels.length; i++) {
+			uuids[i] = ((ParcelUuid)parcels[i]).getUuid();
+		}
+		return uuids;
+	}
+
+	private static boolean fetchUuidsWithSdp(BluetoothDevice device) {
+		if (Utils.getApiVersion() >= VERSION_CODES.ICE_CREAM_SANDWICH_MR1) { // apiVer 15
+			return device.fetchUuidsWithSdp();
+		}
+		// a hidden api prior to 15; use reflection
+		try {
+			Method method = BluetoothDevice.class.getMethod("fetchUuidsWithSdp");
+			return (Boolean)method.invoke(device);
+		}
+		catch (Exception e) {
+			BTLog.e("SdpCache", "Activation of fetchUuidsWithSdp() via reflection failed: " + e);
+			return false;
+		}
+	}
+
+
+	/**
+	 * Cached UUIDs of a single device
+	 */
+	private static class Entry {
+		final UUID[] uuids;
+		final long fetchedAt = System.currentTimeMillis();
+
+		Entry(UUID[] uuids) {
+			this.uuids = uuids;
+		}
+	}
+}
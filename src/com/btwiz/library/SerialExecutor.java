@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Runs tasks one at a time and in order on top of any executor, possibly multi threaded.
+ * Tasks are drained by a single task at a time, as ConnectionEventBus subscribers are
+ */
+class SerialExecutor implements Executor {
+
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		queue.offer(task);
+		scheduleDrain();
+	}
+
+	/**
+	 * Queues a task without running it: it runs, in order, once execute() or flush() is called
+	 */
+	void enqueue(Runnable task) {
+		queue.offer(task);
+	}
+
+	/**
+	 * Runs the tasks queued by enqueue()
+	 */
+	void flush() {
+		if (!queue.isEmpty()) {
+			scheduleDrain();
+		}
+	}
+
+	private void scheduleDrain() {
+		if (draining.compareAndSet(false, true)) {
+			try {
+				executor.execute(drainTask);
+			}
+			catch (RejectedExecutionException e) {
+				draining.set(false);
+				queue.clear();
+				BTLog.e("SerialExecutor", "Executor rejected tasks: " + e);
+			}
+		}
+	}
+
+	private void drain() {
+		Runnable task;
+		while ((task = queue.poll()) != null) {
+			try {
+				task.run();
+			}
+			catch (RuntimeException e) {
+				BTLog.e("SerialExecutor", "Task error: " + e);
+			}
+		}
+		draining.set(false);
+		if (!queue.isEmpty()) {
+			scheduleDrain(); // a task arrived after the last poll
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * An immutable snapshot of BTServer statistics. 
+ * Accept latency is the time from accept() returning until the connection is handed 
+ * to the accept listener (admission queueing included)
+ */
+public class ServerStats {
+	public final long numAccepted;
+	public final long numRejected;
+	public final int numActive;
+	public final int numQueued;
+	public final long avgAcceptLatencyMs;
+	public final long maxAcceptLatencyMs;
+
+	public ServerStats(long numAccepted, long numRejected, int numActive, int numQueued, 
+			long avgAcceptLatencyMs, long maxAcceptLatencyMs) {
+		this.numAccepted = numAccepted;
+		this.numRejected = numRejected;
+		this.numActive = numActive;
+		this.numQueued = numQueued;
+		this.avgAcceptLatencyMs = avgAcceptLatencyMs;
+		this.maxAcceptLatencyMs = maxAcceptLatencyMs;
+	}
+
+	@Override
+	public String toString() {
+		return "accepted=" + numAccepted + " rejected=" + numRejected + " active=" + numActive + 
+				" queued=" + numQueued + " avgAcceptLatencyMs=" + avgAcceptLatencyMs + 
+				" maxAcceptLatencyMs=" + maxAcceptLatencyMs;
+	}
+}
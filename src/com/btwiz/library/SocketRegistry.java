@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The open sockets of an engine, keyed by connection id and indexed by remote address.
+ *
+ * Lock free: registration, lookup and iteration never block each other. A registered
+ * socket removes itself when closed, so long running apps reconnecting many times
+ * do not accumulate closed sockets.
+ * Iteration is weakly consistent: sockets registered during iteration may or may not be seen
+ */
+public class SocketRegistry {
+
+	private final ConcurrentHashMap<Long, BTSocket> byId = new ConcurrentHashMap<Long, BTSocket>();
+	private final ConcurrentHashMap<String, Set<BTSocket>> byAddress = new ConcurrentHashMap<String, Set<BTSocket>>();
+
+
+	/**
+	 * Registers a socket until it is closed
+	 */
+	void register(final BTSocket socket) {
+		if (socket==null) {
+			throw new RuntimeException("Registered socket cannot be null!");
+		}
+		byId.put(socket.getConnectionId(), socket);
+		String address = socket.getRemoteAddress();
+		if (address != null) {
+			addToAddressIndex(address, socket);
+		}
+		socket.addCloseHook(new Runnable() { // activated at once if already closed
+			@Override
+			public void run() {
+				unregister(socket);
+			}
+		});
+	}
+
+	private void unregister(BTSocket socket) {
+		byId.remove(socket.getConnectionId());
+		String address = socket.getRemoteAddress();
+		if (address != null) {
+			removeFromAddressIndex(address, socket);
+		}
+	}
+
+	/**
+	 * Address index sets are never modified in place: each update replaces the set 
+	 * with a copy, conditioned on the set read, so concurrent adds and removes retry 
+	 * rather than lose each other's update
+	 */
+	private void addToAddressIndex(String address, BTSocket socket) {
+		for (;;) {
+			Set<BTSocket> sockets = byAddress.get(address);
+			if (sockets == null) {
+				if (byAddress.putIfAbsent(address, Collections.singleton(socket)) == null) {
+					return;
+				}
+				continue;
+			}
+			Set<BTSocket> updated = new HashSet<BTSocket>(sockets);
+			updated.add(socket);
+			if (byAddress.replace(address, sockets, Collections.unmodifiableSet(updated))) {
+				return;
+			}
+		}
+	}
+
+	private void removeFromAddressIndex(String address, BTSocket socket) {
+		for (;;) {
+			Set<BTSocket> sockets = byAddress.get(address);
+			if (sockets == null || !sockets.contains(socket)) {
+				return;
+			}
+			if (sockets.size() == 1) {
+				if (byAddress.remove(address, sockets)) {
+					return;
+				}
+				continue;
+			}
+			Set<BTSocket> updated = new HashSet<BTSocket>(sockets);
+			updated.remove(socket);
+			if (byAddress.replace(address, sockets, Collections.unmodifiableSet(updated))) {
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the open socket with the given connection id, or null
+	 */
+	public BTSocket get(long connectionId) {
+		return byId.get(connectionId);
+	}
+
+	/**
+	 * Returns the open sockets connected to the given remote address (possibly empty)
+	 */
+	public List<BTSocket> getByAddress(String address) {
+		if (address==null) {
+			throw new RuntimeException("Address cannot be null!");
+		}
+		Set<BTSocket> sockets = byAddress.get(address);
+		if (sockets == null) {
+			return new ArrayList<BTSocket>();
+		}
+		return new ArrayList<BTSocket>(sockets);
+	}
+
+	/**
+	 * Returns a snapshot of all open sockets
+	 */
+	public List<BTSocket> getAll() {
+		return new ArrayList<BTSocket>(byId.values());
+	}
+
+	/**
+	 * Returns the number of open sockets
+	 */
+	public int size() {
+		return byId.size();
+	}
+
+	/**
+	 * Closes all open sockets. Each closed socket removes itself from the registry
+	 */
+	public void closeAll() {
+		for (BTSocket socket: byId.values()) {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library;
+
+/**
+ * An immutable trace record, see BTTrace
+ */
+public final class TraceRecord {
+
+	private final long seq;
+	private final long time;
+	private final String thread;
+	private final BTTrace.Event event;
+	private final long span;
+	private final long connectionId;
+	private final Object arg;
+
+
+	TraceRecord(long seq, long time, String thread, BTTrace.Event event, long span, long connectionId, Object arg) {
+		this.seq = seq;
+		this.time = time;
+		this.thread = thread;
+		this.event = event;
+		this.span = span;
+		this.connectionId = connectionId;
+		this.arg = arg;
+	}
+
+	/**
+	 * Recording order, across threads
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Recording time, in System.currentTimeMillis() units
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Name of the recording thread
+	 */
+	public String getThread() {
+		return thread;
+	}
+
+	public BTTrace.Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * The span id, or BTTrace.NO_SPAN
+	 */
+	public long getSpan() {
+		return span;
+	}
+
+	/**
+	 * The BTSocket connection id, or ConnectionEvent.NO_CONNECTION_ID
+	 */
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * The event's argument (possibly null), see BTTrace.Event
+	 */
+	public Object getArg() {
+		return arg;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(seq).append(' ').append(time).append(" [").append(thread).append("] ").append(event);
+		if (span != BTTrace.NO_SPAN) {
+			sb.append(" span=").append(span);
+		}
+		if (connectionId != ConnectionEvent.NO_CONNECTION_ID) {
+			sb.append(" conn=").append(connectionId);
+		}
+		if (arg != null) {
+			sb.append(' ').append(arg);
+		}
+		return sb.toString();
+	}
+}
@@ -33,14 +33,29 @@ import android.os.Looper;
  */
 public class Utils {
 
+	// ART reports itself as Dalvik too
+	private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
 	private Utils() {
 	} // non instantiable
 
+	/**
+	 * Returns false off Android, e.g. for simulated runs on a plain JVM. 
+	 * No android.* class may be touched then
+	 */
+	public static boolean isAndroid() {
+		return ANDROID;
+	}
+
 	/**
 	 * Throws a RuntimeException if this thread is the UI thread
 	 */
 	public static void assertNotUIThread() {
-		if (Looper.getMainLooper().equals(Looper.myLooper())) {
+		if (!ANDROID) {
+			return; // no UI thread
+		}
+		Looper mainLooper = Looper.getMainLooper();
+		if (mainLooper != null && mainLooper.equals(Looper.myLooper())) {
 			throw new RuntimeException(
 					"This command should not execute on UI thread!");
 		}
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+import com.btwiz.library.IBTTransport;
+
+/**
+ * The behavior of the remote devices of a SimEnvironment, e.g. an echo server
+ */
+public interface ISimDeviceHandler {
+	/**
+	 * Called on a dedicated thread once a link to device is established (by either side). 
+	 * link is the device's end; it may block on it until done, then should close it
+	 */
+	void onConnected(SimDevice device, IBTTransport link);
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+/**
+ * Parameters of a SimEnvironment. Must not be changed once the environment is created
+ */
+public class SimConfig {
+
+	public static final long UNLIMITED_THROUGHPUT = 0;
+	public static final long NO_DISCONNECTS = 0;
+
+	public static final int DEFAULT_NUM_DEVICES = 100;
+	public static final long DEFAULT_INQUIRY_DURATION_MS = 1000;
+	public static final double DEFAULT_DISCOVERY_RATE = 0.9;
+	public static final long DEFAULT_PAGE_LATENCY_MS = 200;
+	public static final long DEFAULT_PAGE_JITTER_MS = 100;
+	public static final int DEFAULT_MAX_CONCURRENT_PAGES = 3;
+	public static final double DEFAULT_CONNECT_SUCCESS_RATE = 0.9;
+	public static final long DEFAULT_THROUGHPUT = 100 * 1024; // bytes per second, per direction
+	public static final int DEFAULT_LINK_BUFFER_SIZE = 4096;
+
+
+	int numDevices = DEFAULT_NUM_DEVICES;
+	long inquiryDurationMs = DEFAULT_INQUIRY_DURATION_MS;
+	double discoveryRate = DEFAULT_DISCOVERY_RATE;
+	long pageLatencyMs = DEFAULT_PAGE_LATENCY_MS;
+	long pageJitterMs = DEFAULT_PAGE_JITTER_MS;
+	int maxConcurrentPages = DEFAULT_MAX_CONCURRENT_PAGES;
+	double connectSuccessRate = DEFAULT_CONNECT_SUCCESS_RATE;
+	long throughputBytesPerSec = DEFAULT_THROUGHPUT;
+	long meanLinkLifetimeMs = NO_DISCONNECTS;
+	int linkBufferSize = DEFAULT_LINK_BUFFER_SIZE;
+	long seed = 0;
+
+
+	/**
+	 * Sets the number of virtual devices in range
+	 */
+	public void setNumDevices(int numDevices) {
+		if (numDevices < 0 || numDevices > 0xFFFF) {
+			throw new RuntimeException("Bad number of sim devices!");
+		}
+		this.numDevices = numDevices;
+	}
+
+	/**
+	 * Sets the inquiry duration and the probability of each device to respond to an inquiry. 
+	 * Responses are spread randomly over the inquiry
+	 */
+	public void setDiscovery(long inquiryDurationMs, double discoveryRate) {
+		if (inquiryDurationMs < 1 || discoveryRate < 0 || discoveryRate > 1) {
+			throw new RuntimeException("Bad sim discovery params!");
+		}
+		this.inquiryDurationMs = inquiryDurationMs;
+		this.discoveryRate = discoveryRate;
+	}
+
+	/**
+	 * Sets the page (connect) latency, uniformly distributed in 
+	 * [pageLatencyMs, pageLatencyMs + pageJitterMs], and the number of concurrent pages the 
+	 * simulated controller handles; beyond it connects fail right away
+	 */
+	public void setPaging(long pageLatencyMs, long pageJitterMs, int maxConcurrentPages) {
+		if (pageLatencyMs < 0 || pageJitterMs < 0 || maxConcurrentPages < 1) {
+			throw new RuntimeException("Bad sim paging params!");
+		}
+		this.pageLatencyMs = pageLatencyMs;
+		this.pageJitterMs = pageJitterMs;
+		this.maxConcurrentPages = maxConcurrentPages;
+	}
+
+	/**
+	 * Sets the probability of a page to succeed
+	 */
+	public void setConnectSuccessRate(double connectSuccessRate) {
+		if (connectSuccessRate < 0 || connectSuccessRate > 1) {
+			throw new RuntimeException("Bad sim success rate!");
+		}
+		this.connectSuccessRate = connectSuccessRate;
+	}
+
+	/**
+	 * Sets the per link, per direction throughput (UNLIMITED_THROUGHPUT for none) and buffer size
+	 */
+	public void setThroughput(long throughputBytesPerSec, int linkBufferSize) {
+		if (throughputBytesPerSec < 0 || linkBufferSize < 1) {
+			throw new RuntimeException("Bad sim throughput params!");
+		}
+		this.throughputBytesPerSec = throughputBytesPerSec;
+		this.linkBufferSize = linkBufferSize;
+	}
+
+	/**
+	 * Sets the mean lifetime of a link before a random disconnect (exponentially distributed), 
+	 * or NO_DISCONNECTS
+	 */
+	public void setMeanLinkLifetime(long meanLinkLifetimeMs) {
+		if (meanLinkLifetimeMs < 0) {
+			throw new RuntimeException("Bad sim link lifetime!");
+		}
+		this.meanLinkLifetimeMs = meanLinkLifetimeMs;
+	}
+
+	/**
+	 * Sets the seed of all random choices: device attributes, discovery responses, 
+	 * page outcomes and latencies, link lifetimes
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public int getNumDevices() {
+		return numDevices;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+}
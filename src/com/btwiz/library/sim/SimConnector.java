@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+import java.io.IOException;
+
+import com.btwiz.library.BTSocket;
+import com.btwiz.library.BTWizEngine;
+import com.btwiz.library.IConnectListener;
+import com.btwiz.library.IDeviceConnectionListener;
+import com.btwiz.library.IDeviceConnector;
+
+/**
+ * Connects BTSockets over simulated links, e.g. for ConnectionManager load tests. 
+ * Connects run through BTSocket.connectAsync(), i.e. subject to the engine's connects 
+ * cap and connect timeout, and are traced and published as real ones
+ */
+public class SimConnector implements IDeviceConnector {
+
+	private final BTWizEngine engine;
+	private final SimEnvironment environment;
+
+
+	public SimConnector(BTWizEngine engine, SimEnvironment environment) {
+		if (engine==null || environment==null) {
+			throw new RuntimeException("Bad SimConnector params!");
+		}
+		this.engine = engine;
+		this.environment = environment;
+	}
+
+	@Override
+	public void connectAsync(String address, final IDeviceConnectionListener connectionListener) {
+		if (environment.getDevice(address) == null) {
+			connectionListener.onConnectionError(new IOException("Unknown device " + address), "connect");
+			return;
+		}
+		final BTSocket socket = new BTSocket(engine, environment.createTransport(address), 
+				engine.getAutoOpenSocketStreams());
+		socket.connectAsync(null, new IConnectListener() {
+			@Override
+			public void onSuccess() {
+				connectionListener.onConnectSuccess(socket);
+			}
+			@Override
+			public void onError(IOException e) {
+				socket.close();
+				connectionListener.onConnectionError(e, "connect");
+			}
+		});
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+import java.util.Random;
+
+/**
+ * A virtual remote device of a SimEnvironment
+ */
+public final class SimDevice {
+
+	// major device classes, as in android.bluetooth.BluetoothClass.Device.Major
+	private static final int[] MAJORS = { 0x0100, 0x0200, 0x0400, 0x0500, 0x0900 };
+
+	private final int index;
+	private final String address;
+	private final String name;
+	private final int deviceClass;
+	private final short rssi;
+	final Random random; // page outcomes and link lifetimes of this device, in attempt order
+
+
+	SimDevice(int index, long seed) {
+		this.index = index;
+		this.random = new Random(seed * 31 + index);
+		this.address = String.format("5E:1A:00:00:%02X:%02X", index >> 8, index & 0xFF);
+		this.name = "sim-" + index;
+		this.deviceClass = MAJORS[random.nextInt(MAJORS.length)];
+		this.rssi = (short)(-40 - random.nextInt(56)); // -40 .. -95 dBm
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getDeviceClass() {
+		return deviceClass;
+	}
+
+	/**
+	 * Nominal signal strength; each discovery response varies around it
+	 */
+	public short getRssi() {
+		return rssi;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + address + ")";
+	}
+}
@@ -0,0 +1,583 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.btwiz.library.DeviceSnapshot;
+import com.btwiz.library.IBTServerTransport;
+import com.btwiz.library.IBTTransport;
+import com.btwiz.library.IDiscoverySource;
+import com.btwiz.library.IDiscoverySourceListener;
+
+/**
+ * A simulated BT adapter and the virtual devices in its range, for load and scale 
+ * testing the library without BT hardware. Uses no Android API, so runs on a plain JVM.
+ *
+ * Plugs into the library at:
+ *  - discovery: as an IDiscoverySource, set via DiscoveryCoordinator.setDiscoverySource(); 
+ *    the engine's discovery sessions (lookups, ScanScheduler, caches, metrics) then run 
+ *    simulated inquiries. Without a local adapter (engine not initialized, or a plain JVM) 
+ *    found devices have no BluetoothDevice handle, and are seen via snapshots only
+ *  - connect: createTransport() returns a transport paging the device on connect(), 
+ *    for new BTSocket(engine, transport, ...); SimConnector does so for ConnectionManager
+ *  - accept: listen() returns a server transport for BTServer.addService(); 
+ *    simulateIncomingConnection() connects a device to it
+ *
+ * Random choices are drawn from per-device and per-inquiry generators seeded by 
+ * SimConfig.setSeed(), so a scenario's outcomes (devices found, page results and 
+ * latencies, link lifetimes) repeat from run to run given the same attempt order 
+ * per device. Page limit failures depend on timing, as with a real controller.
+ *
+ * Typical usage:
+ *
+ * 			SimConfig config = new SimConfig();
+ * 			config.setNumDevices(500);
+ * 			config.setConnectSuccessRate(0.8);
+ * 			SimEnvironment sim = new SimEnvironment(config);
+ * 			engine.getDiscoveryCoordinator().setDiscoverySource(sim);
+ * 			ConnectionManager manager = new ConnectionManager(new SimConnector(engine, sim), listener);
+ * 			....
+ * 			sim.shutdown();
+ */
+public class SimEnvironment implements IDiscoverySource {
+
+	public static final String LOCAL_ADDRESS = "5E:1A:FF:FF:FF:FF"; // the simulated adapter
+
+	/**
+	 * Device behavior echoing back all bytes received
+	 */
+	public static final ISimDeviceHandler ECHO_HANDLER = new ISimDeviceHandler() {
+		@Override
+		public void onConnected(SimDevice device, IBTTransport link) {
+			byte[] buffer = new byte[1024];
+			try {
+				InputStream in = link.getInputStream();
+				OutputStream out = link.getOutputStream();
+				for (;;) {
+					int n = in.read(buffer, 0, buffer.length);
+					out.write(buffer, 0, n);
+				}
+			} catch (IOException e) {
+				// link closed
+			}
+			try {
+				link.close();
+			} catch (IOException e) {
+				// no op
+			}
+		}
+	};
+
+
+	private final SimConfig config;
+	private final LinkedHashMap<String, SimDevice> devices = new LinkedHashMap<String, SimDevice>();
+	private final ScheduledExecutorService timer;
+	private final ScheduledExecutorService inquiryThread; // inquiry events, one at a time
+	private final ExecutorService deviceThreads;
+	private volatile ISimDeviceHandler deviceHandler = ECHO_HANDLER;
+
+	private final Object lock = new Object();
+	private ServerTransport server = null; // guarded by lock
+	private Inquiry inquiry = null; // guarded by lock
+	private boolean shutdown = false;
+	private long numInquiries = 0;
+	// stats, guarded by lock
+	private int activePages = 0;
+	private int maxObservedPages = 0;
+	private long numPages = 0;
+	private long numPageLimitFailures = 0;
+	private long numPageFailures = 0;
+	private int activeLinks = 0;
+	private long numLinks = 0;
+	private long numDisconnects = 0;
+
+
+	public SimEnvironment(SimConfig config) {
+		if (config==null) {
+			throw new RuntimeException("Bad SimEnvironment params!");
+		}
+		this.config = config;
+		for (int i = 0; i < config.numDevices; i++) {
+			SimDevice device = new SimDevice(i, config.seed);
+			devices.put(device.getAddress(), device);
+		}
+		timer = Executors.newScheduledThreadPool(2, new SimThreadFactory("BTWiz-sim"));
+		inquiryThread = Executors.newSingleThreadScheduledExecutor(new SimThreadFactory("BTWiz-sim-inquiry"));
+		deviceThreads = Executors.newCachedThreadPool(new SimThreadFactory("BTWiz-sim-device"));
+	}
+
+
+	/**
+	 * Sets the behavior of the remote devices (default: ECHO_HANDLER)
+	 */
+	public void setDeviceHandler(ISimDeviceHandler deviceHandler) {
+		if (deviceHandler==null) {
+			throw new RuntimeException("Device handler cannot be null!");
+		}
+		this.deviceHandler = deviceHandler;
+	}
+
+	public List<SimDevice> getDevices() {
+		return Collections.unmodifiableList(new ArrayList<SimDevice>(devices.values()));
+	}
+
+	/**
+	 * Returns the device of the given address, or null
+	 */
+	public SimDevice getDevice(String address) {
+		return devices.get(address);
+	}
+
+
+	/**
+	 * Runs a simulated inquiry, reporting the devices responding to listener. 
+	 * Returns false if an inquiry is already running
+	 */
+	@Override
+	public boolean startDiscovery(final IDiscoverySourceListener listener) {
+		if (listener==null) {
+			throw new RuntimeException("Listener cannot be null!");
+		}
+		final Inquiry current = new Inquiry(listener);
+		long seed;
+		synchronized (lock) {
+			if (inquiry != null || shutdown) {
+				return false;
+			}
+			inquiry = current;
+			seed = config.seed * 31 + numInquiries++ + 0x5EED;
+		}
+		inquiryThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onDiscoveryStarted();
+			}
+		});
+
+		Random random = new Random(seed);
+		for (final SimDevice device: devices.values()) {
+			if (random.nextDouble() >= config.discoveryRate) {
+				continue;
+			}
+			long delay = (long)(random.nextDouble() * config.inquiryDurationMs);
+			final short rssi = (short)(device.getRssi() + random.nextInt(7) - 3);
+			current.add(inquiryThread.schedule(new Runnable() {
+				@Override
+				public void run() {
+					listener.onDeviceFound(new DeviceSnapshot(device.getAddress(), device.getName(), 
+							device.getDeviceClass(), rssi, System.currentTimeMillis()));
+				}
+			}, delay, TimeUnit.MILLISECONDS));
+		}
+		current.add(inquiryThread.schedule(new Runnable() {
+			@Override
+			public void run() {
+				finish(current);
+			}
+		}, config.inquiryDurationMs, TimeUnit.MILLISECONDS));
+		return true;
+	}
+
+	/**
+	 * Cancels the running inquiry, if any
+	 */
+	@Override
+	public void cancelDiscovery() {
+		final Inquiry current;
+		synchronized (lock) {
+			current = inquiry;
+			if (current == null) {
+				return;
+			}
+			inquiry = null;
+		}
+		current.cancel();
+		inquiryThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				current.listener.onDiscoveryFinished(); // after found events already running
+			}
+		});
+	}
+
+	private void finish(Inquiry current) {
+		synchronized (lock) {
+			if (inquiry != current) {
+				return; // cancelled
+			}
+			inquiry = null;
+		}
+		current.listener.onDiscoveryFinished();
+	}
+
+	public boolean isDiscovering() {
+		synchronized (lock) {
+			return inquiry != null;
+		}
+	}
+
+
+	/**
+	 * Returns an unconnected transport to the given device; its connect() pages the 
+	 * device. To be wrapped by new BTSocket(engine, transport, autoOpenStreams)
+	 */
+	public IBTTransport createTransport(String address) {
+		SimDevice device = address == null ? null : devices.get(address);
+		if (device == null) {
+			throw new RuntimeException("Unknown sim device: " + address);
+		}
+		return new SimTransport(this, device);
+	}
+
+	/**
+	 * Pages device for client (blocking), returning the established link
+	 */
+	SimLink page(SimTransport client, SimDevice device) throws IOException {
+		synchronized (lock) {
+			if (shutdown) {
+				throw new IOException("Simulation shut down");
+			}
+			if (activePages >= config.maxConcurrentPages) {
+				numPageLimitFailures++;
+				throw new IOException("Page limit reached");
+			}
+			activePages++;
+			numPages++;
+			maxObservedPages = Math.max(maxObservedPages, activePages);
+		}
+		boolean success;
+		long latency;
+		long lifetime;
+		synchronized (device) {
+			success = device.random.nextDouble() < config.connectSuccessRate;
+			latency = config.pageLatencyMs + (long)(device.random.nextDouble() * config.pageJitterMs);
+			lifetime = nextLifetime(device.random);
+		}
+		boolean completed;
+		try {
+			completed = client.awaitPage(latency);
+		}
+		finally {
+			synchronized (lock) {
+				activePages--;
+				if (!success) {
+					numPageFailures++;
+				}
+			}
+		}
+		if (!completed) {
+			throw new IOException("Socket closed");
+		}
+		if (!success) {
+			throw new IOException("Page timeout");
+		}
+		SimLink link = newLink(lifetime);
+		startDevice(device, new SimTransport(this, device, link, true));
+		return link;
+	}
+
+
+	/**
+	 * Returns the server transport of the simulated adapter, for BTServer.addService(). 
+	 * Incoming connections are queued on it until accepted, see simulateIncomingConnection()
+	 */
+	public IBTServerTransport listen() {
+		synchronized (lock) {
+			if (server == null) {
+				server = new ServerTransport();
+			}
+			return server;
+		}
+	}
+
+	/**
+	 * Connects the given device to the listening server transport. 
+	 * Returns false if no server transport is listening
+	 */
+	public boolean simulateIncomingConnection(String address) {
+		SimDevice device = address == null ? null : devices.get(address);
+		if (device == null) {
+			throw new RuntimeException("Unknown sim device: " + address);
+		}
+		ServerTransport s;
+		Random random = device.random;
+		long lifetime;
+		synchronized (device) {
+			lifetime = nextLifetime(random);
+		}
+		synchronized (lock) {
+			s = server;
+			if (s == null || shutdown) {
+				return false;
+			}
+		}
+		SimLink link = newLink(lifetime);
+		if (!s.enqueue(new SimTransport(this, device, link, false))) {
+			link.close("Connection refused", false);
+			return false;
+		}
+		startDevice(device, new SimTransport(this, device, link, true));
+		return true;
+	}
+
+
+	private long nextLifetime(Random random) {
+		if (config.meanLinkLifetimeMs == SimConfig.NO_DISCONNECTS) {
+			return SimConfig.NO_DISCONNECTS;
+		}
+		return 1 + (long)(-config.meanLinkLifetimeMs * Math.log(1 - random.nextDouble())); // exponential
+	}
+
+	private SimLink newLink(long lifetimeMs) {
+		final SimLink link = new SimLink(this, config);
+		synchronized (lock) {
+			activeLinks++;
+			numLinks++;
+		}
+		if (lifetimeMs != SimConfig.NO_DISCONNECTS) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					link.close("Connection reset by peer", true); // random link loss
+				}
+			}, lifetimeMs, TimeUnit.MILLISECONDS);
+		}
+		return link;
+	}
+
+	private void startDevice(final SimDevice device, final SimTransport deviceEnd) {
+		final ISimDeviceHandler handler = deviceHandler;
+		deviceThreads.execute(new Runnable() {
+			@Override
+			public void run() {
+				handler.onConnected(device, deviceEnd);
+			}
+		});
+	}
+
+	void onLinkClosed(boolean disconnect) {
+		synchronized (lock) {
+			activeLinks--;
+			if (disconnect) {
+				numDisconnects++;
+			}
+		}
+	}
+
+
+	public int getActivePages() {
+		synchronized (lock) {
+			return activePages;
+		}
+	}
+
+	public int getMaxObservedPages() {
+		synchronized (lock) {
+			return maxObservedPages;
+		}
+	}
+
+	public long getNumPages() {
+		synchronized (lock) {
+			return numPages;
+		}
+	}
+
+	/**
+	 * Connects failing right away since maxConcurrentPages pages were running
+	 */
+	public long getNumPageLimitFailures() {
+		synchronized (lock) {
+			return numPageLimitFailures;
+		}
+	}
+
+	/**
+	 * Pages failing per the connect success rate
+	 */
+	public long getNumPageFailures() {
+		synchronized (lock) {
+			return numPageFailures;
+		}
+	}
+
+	public int getActiveLinks() {
+		synchronized (lock) {
+			return activeLinks;
+		}
+	}
+
+	public long getNumLinks() {
+		synchronized (lock) {
+			return numLinks;
+		}
+	}
+
+	/**
+	 * Links lost to random disconnects
+	 */
+	public long getNumDisconnects() {
+		synchronized (lock) {
+			return numDisconnects;
+		}
+	}
+
+
+	/**
+	 * Stops the simulation: a running inquiry is cancelled, later pages fail 
+	 * and the server transport is closed. Established links are left open
+	 */
+	public void shutdown() {
+		cancelDiscovery();
+		ServerTransport s;
+		synchronized (lock) {
+			shutdown = true;
+			s = server;
+			server = null;
+		}
+		if (s != null) {
+			s.close();
+		}
+		timer.shutdownNow();
+		inquiryThread.shutdown(); // delivers the final onDiscoveryFinished()
+		deviceThreads.shutdownNow();
+	}
+
+
+	/**
+	 * A running inquiry, and its scheduled events
+	 */
+	private static class Inquiry {
+		final IDiscoverySourceListener listener;
+		final ArrayList<ScheduledFuture<?>> events = new ArrayList<ScheduledFuture<?>>();
+		boolean cancelled = false;
+
+		Inquiry(IDiscoverySourceListener listener) {
+			this.listener = listener;
+		}
+
+		synchronized void add(ScheduledFuture<?> event) {
+			if (cancelled) {
+				event.cancel(false); // cancelled while being started
+				return;
+			}
+			events.add(event);
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			for (ScheduledFuture<?> event: events) {
+				event.cancel(false);
+			}
+		}
+	}
+
+
+	/**
+	 * The listening endpoint of the simulated adapter
+	 */
+	private class ServerTransport implements IBTServerTransport {
+		private final LinkedList<SimTransport> incoming = new LinkedList<SimTransport>();
+		private boolean closed = false;
+
+		synchronized boolean enqueue(SimTransport accepted) {
+			if (closed) {
+				return false;
+			}
+			incoming.addLast(accepted);
+			notifyAll();
+			return true;
+		}
+
+		@Override
+		public synchronized IBTTransport accept() throws IOException {
+			while (incoming.isEmpty() && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted");
+				}
+			}
+			if (closed) {
+				throw new IOException("Server socket closed");
+			}
+			return incoming.removeFirst();
+		}
+
+		@Override
+		public void close() {
+			ArrayList<SimTransport> dropped;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				dropped = new ArrayList<SimTransport>(incoming);
+				incoming.clear();
+				notifyAll();
+			}
+			synchronized (lock) {
+				if (server == this) {
+					server = null;
+				}
+			}
+			for (SimTransport transport: dropped) {
+				transport.close();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "SimServer(" + LOCAL_ADDRESS + ")";
+		}
+	}
+
+	/**
+	 * Daemon threads, so a forgotten shutdown() does not keep a test JVM alive
+	 */
+	private static class SimThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		SimThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
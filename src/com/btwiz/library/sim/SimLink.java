@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+/**
+ * An established simulated link: a pipe per direction between the local and the device end
+ */
+class SimLink {
+
+	final SimPipe toDevice;
+	final SimPipe toLocal;
+	private final SimEnvironment environment;
+	private boolean closed = false;
+
+
+	SimLink(SimEnvironment environment, SimConfig config) {
+		this.environment = environment;
+		this.toDevice = new SimPipe(config.linkBufferSize, config.throughputBytesPerSec);
+		this.toLocal = new SimPipe(config.linkBufferSize, config.throughputBytesPerSec);
+	}
+
+	/**
+	 * Closes both directions (once): pending reads fail on both ends 
+	 */
+	void close(String reason, boolean disconnect) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		toDevice.close(reason);
+		toLocal.close(reason);
+		environment.onLinkClosed(disconnect);
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One direction of a simulated link: a bounded byte buffer whose writer is 
+ * throttled to the link throughput. Unlike PipedInputStream, not tied to threads
+ */
+class SimPipe {
+
+	private static final int MAX_CHUNK = 1024; // throttling granularity
+
+	private final byte[] buffer;
+	private final long bytesPerSec;
+	private int head = 0;  // next byte to read
+	private int count = 0;
+	private String closeReason = null; // non null once closed
+
+	private final Object throttleLock = new Object();
+	private long nextWriteNanos = 0;
+
+
+	SimPipe(int bufferSize, long bytesPerSec) {
+		this.buffer = new byte[bufferSize];
+		this.bytesPerSec = bytesPerSec;
+	}
+
+	/**
+	 * Blocks until data is available. Buffered data remains readable after close
+	 */
+	synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (count == 0 && closeReason == null) {
+			waitInterruptibly();
+		}
+		if (count == 0) {
+			throw new IOException(closeReason);
+		}
+		int n = Math.min(len, count);
+		for (int i = 0; i < n; i++) {
+			b[off + i] = buffer[(head + i) % buffer.length];
+		}
+		head = (head + n) % buffer.length;
+		count -= n;
+		notifyAll(); // writers waiting for space
+		return n;
+	}
+
+	void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int chunk = Math.min(len, MAX_CHUNK);
+			throttle(chunk);
+			int written = writeSome(b, off, chunk);
+			off += written;
+			len -= written;
+		}
+	}
+
+	private synchronized int writeSome(byte[] b, int off, int len) throws IOException {
+		while (count == buffer.length && closeReason == null) {
+			waitInterruptibly();
+		}
+		if (closeReason != null) {
+			throw new IOException(closeReason);
+		}
+		int n = Math.min(len, buffer.length - count);
+		int tail = (head + count) % buffer.length;
+		for (int i = 0; i < n; i++) {
+			buffer[(tail + i) % buffer.length] = b[off + i];
+		}
+		count += n;
+		notifyAll(); // waiting readers
+		return n;
+	}
+
+	/**
+	 * Sleeps as needed to keep the write rate at bytesPerSec
+	 */
+	private void throttle(int numBytes) throws IOException {
+		if (bytesPerSec == SimConfig.UNLIMITED_THROUGHPUT) {
+			return;
+		}
+		long sendAt;
+		synchronized (throttleLock) {
+			long now = System.nanoTime();
+			sendAt = Math.max(nextWriteNanos, now);
+			nextWriteNanos = sendAt + numBytes * 1000000000L / bytesPerSec;
+		}
+		long waitNanos = sendAt - System.nanoTime();
+		if (waitNanos > 0) {
+			try {
+				Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+	}
+
+	private void waitInterruptibly() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+	}
+
+	/**
+	 * Closes the pipe; blocked and later reads (once drained) and writes fail with reason
+	 */
+	synchronized void close(String reason) {
+		if (closeReason == null) {
+			closeReason = reason;
+			notifyAll();
+		}
+	}
+
+	synchronized boolean isClosed() {
+		return closeReason != null;
+	}
+
+
+	InputStream newInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				SimPipe.this.read(one, 0, 1);
+				return one[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return SimPipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (SimPipe.this) {
+					return count;
+				}
+			}
+		};
+	}
+
+	OutputStream newOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int oneByte) throws IOException {
+				SimPipe.this.write(new byte[] { (byte)oneByte }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				SimPipe.this.write(b, off, len);
+			}
+		};
+	}
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.library.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.btwiz.library.IBTTransport;
+
+/**
+ * An end of a simulated link. A client end is connected by connect(), which pages 
+ * the device; ends of accepted links and device ends are created connected
+ */
+class SimTransport implements IBTTransport {
+
+	private final SimEnvironment environment;
+	private final SimDevice device;       // the remote device; null for a device end
+	private final String remoteAddress;
+	private SimLink link;                  // guarded by this
+	private SimPipe in;
+	private SimPipe out;
+	private boolean closed = false;
+
+
+	/**
+	 * A client end, to be connected
+	 */
+	SimTransport(SimEnvironment environment, SimDevice device) {
+		this.environment = environment;
+		this.device = device;
+		this.remoteAddress = device.getAddress();
+	}
+
+	/**
+	 * A connected end. isDeviceEnd: the device's end, whose remote is the local adapter
+	 */
+	SimTransport(SimEnvironment environment, SimDevice device, SimLink link, boolean isDeviceEnd) {
+		this.environment = environment;
+		this.device = isDeviceEnd ? null : device;
+		this.remoteAddress = isDeviceEnd ? SimEnvironment.LOCAL_ADDRESS : device.getAddress();
+		attach(link, isDeviceEnd);
+	}
+
+	private synchronized void attach(SimLink link, boolean isDeviceEnd) {
+		this.link = link;
+		this.in = isDeviceEnd ? link.toDevice : link.toLocal;
+		this.out = isDeviceEnd ? link.toLocal : link.toDevice;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		synchronized (this) {
+			if (link != null) {
+				return; // already connected
+			}
+			if (device == null || closed) {
+				throw new IOException("Socket closed");
+			}
+		}
+		SimLink established = environment.page(this, device); // blocking
+		synchronized (this) {
+			if (!closed) {
+				attach(established, false);
+				return;
+			}
+		}
+		established.close("Socket closed", false); // closed while paging
+		throw new IOException("Socket closed");
+	}
+
+	/**
+	 * Waits up to delayMs, returning false if closed meanwhile
+	 */
+	synchronized boolean awaitPage(long delayMs) {
+		long end = System.currentTimeMillis() + delayMs;
+		long remaining = delayMs;
+		while (!closed && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			remaining = end - System.currentTimeMillis();
+		}
+		return !closed;
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (in == null) {
+			throw new IOException("Not connected");
+		}
+		return in.newInputStream();
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			throw new IOException("Not connected");
+		}
+		return out.newOutputStream();
+	}
+
+	@Override
+	public void close() {
+		SimLink l;
+		synchronized (this) {
+			closed = true;
+			l = link;
+			notifyAll(); // aborts a running page
+		}
+		if (l != null) {
+			l.close("Link closed", false);
+		}
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	@Override
+	public String toString() {
+		return "SimTransport(" + remoteAddress + ")";
+	}
+}
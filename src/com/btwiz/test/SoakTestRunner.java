@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * Copyright 2014 Gilad Haimov  gilad@mobileEdge.co.il
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.btwiz.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.btwiz.library.BTSocket;
+import com.btwiz.library.BTWizEngine;
+import com.btwiz.library.DeviceSnapshot;
+import com.btwiz.library.IDeviceConnectionListener;
+import com.btwiz.library.sim.SimConfig;
+import com.btwiz.library.sim.SimConnector;
+import com.btwiz.library.sim.SimEnvironment;
+
+/**
+ * A soak/load test: drives repeated discover, connect, stream and disconnect cycles 
+ * against a simulated environment (see SimEnvironment), for hours if needed, and 
+ * periodically reports throughput, latency percentiles, thread count, heap growth 
+ * and leaked sockets.
+ *
+ * Measurements are taken between cycles, when all connections of the previous 
+ * cycle are closed: a non zero socket or link count, or threads and heap growing 
+ * from report to report, indicate a leak. Baselines are taken after the first 
+ * cycle, so lazily created library threads are not counted as leaks.
+ *
+ * Runs on a device (see Tester.runSoakTest()) or on a plain JVM via main()
+ */
+public class SoakTestRunner {
+
+	public static final long DEFAULT_DURATION_MS = 60 * 60 * 1000;
+	public static final long DEFAULT_REPORT_INTERVAL_MS = 60 * 1000;
+	public static final int DEFAULT_DEVICES_PER_CYCLE = 8;
+	public static final int DEFAULT_BYTES_PER_CONNECTION = 64 * 1024;
+	public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+	/**
+	 * Receives the periodic reports
+	 */
+	public interface IReportListener {
+		void onReport(Report report);
+	}
+
+
+	private final SimConfig config;
+	private final IReportListener listener;
+
+	private long durationMs = DEFAULT_DURATION_MS;
+	private long reportIntervalMs = DEFAULT_REPORT_INTERVAL_MS;
+	private int devicesPerCycle = DEFAULT_DEVICES_PER_CYCLE;
+	private int bytesPerConnection = DEFAULT_BYTES_PER_CONNECTION;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile boolean running = false;
+
+	// totals
+	private final AtomicLong numConnects = new AtomicLong();
+	private final AtomicLong numConnectFailures = new AtomicLong();
+	private final AtomicLong numStreamErrors = new AtomicLong();
+	private final AtomicLong numBytes = new AtomicLong();
+	// per report interval
+	private final LatencySampler connectLatency = new LatencySampler();
+	private final LatencySampler roundTripLatency = new LatencySampler();
+
+
+	public SoakTestRunner(SimConfig config, IReportListener listener) {
+		if (config==null || listener==null) {
+			throw new RuntimeException("Bad SoakTestRunner params!");
+		}
+		this.config = config;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the total run time and the report interval
+	 */
+	public void setDuration(long durationMs, long reportIntervalMs) {
+		if (durationMs < 1 || reportIntervalMs < 1) {
+			throw new RuntimeException("Bad soak duration params!");
+		}
+		this.durationMs = durationMs;
+		this.reportIntervalMs = reportIntervalMs;
+	}
+
+	/**
+	 * Sets the number of devices connected per cycle and the bytes echoed over each connection, 
+	 * written in chunkSize chunks (each timed as a round trip)
+	 */
+	public void setCycle(int devicesPerCycle, int bytesPerConnection, int chunkSize) {
+		if (devicesPerCycle < 1 || bytesPerConnection < 0 || chunkSize < 1) {
+			throw new RuntimeException("Bad soak cycle params!");
+		}
+		this.devicesPerCycle = devicesPerCycle;
+		this.bytesPerConnection = bytesPerConnection;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Ends the run after the current cycle
+	 */
+	public void stop() {
+		running = false;
+	}
+
+
+	/**
+	 * Runs the soak test (blocking) on a fresh engine and simulated environment, 
+	 * returning the final report, taken after both are shut down
+	 */
+	public Report run() throws InterruptedException {
+		running = true;
+		BTWizEngine engine = new BTWizEngine();
+		SimEnvironment sim = new SimEnvironment(config);
+		engine.getDiscoveryCoordinator().setDiscoverySource(sim);
+		SimConnector connector = new SimConnector(engine, sim);
+		ExecutorService streamers = Executors.newFixedThreadPool(devicesPerCycle);
+
+		long startTime = System.currentTimeMillis();
+		long endTime = startTime + durationMs;
+		long lastReportTime = startTime;
+		long lastReportBytes = 0;
+		long cycle = 0;
+		int baselineThreads = 0;
+		long baselineHeap = 0;
+		try {
+			while (running && System.currentTimeMillis() < endTime) {
+				runCycle(engine, sim, connector, streamers, cycle++);
+				if (cycle == 1) {
+					baselineThreads = countThreads();
+					baselineHeap = usedHeap();
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastReportTime >= reportIntervalMs) {
+					long bytes = numBytes.get();
+					listener.onReport(newReport(now - startTime, cycle, bytes - lastReportBytes, now - lastReportTime, 
+							engine, sim, baselineThreads, baselineHeap, false));
+					lastReportTime = now;
+					lastReportBytes = bytes;
+				}
+			}
+		}
+		finally {
+			running = false;
+			streamers.shutdownNow();
+			sim.shutdown();
+			engine.cleanup(null);
+		}
+		long now = System.currentTimeMillis();
+		streamers.awaitTermination(5000, TimeUnit.MILLISECONDS);
+		Report last = newReport(now - startTime, cycle, numBytes.get() - lastReportBytes, now - lastReportTime, 
+				engine, sim, baselineThreads, baselineHeap, true);
+		listener.onReport(last);
+		return last;
+	}
+
+	/**
+	 * Discovers, connects devicesPerCycle devices, streams over them and closes them
+	 */
+	private void runCycle(BTWizEngine engine, SimEnvironment sim, SimConnector connector, 
+			final ExecutorService streamers, long cycle) throws InterruptedException {
+		final CountDownLatch discovered = new CountDownLatch(1);
+		if (!engine.getDiscoveryCoordinator().startAsync(null, new Runnable() {
+			@Override
+			public void run() {
+				discovered.countDown();
+			}
+		}, null)) {
+			return; // shut down
+		}
+		discovered.await();
+		List<DeviceSnapshot> ranked = engine.getRankedDiscoveredDevices().getRanked();
+		if (ranked.isEmpty()) {
+			return;
+		}
+
+		final CountDownLatch done = new CountDownLatch(devicesPerCycle);
+		for (int i = 0; i < devicesPerCycle; i++) {
+			String address = ranked.get((int)((cycle * devicesPerCycle + i) % ranked.size())).getAddress();
+			final long connectStart = System.nanoTime();
+			connector.connectAsync(address, new IDeviceConnectionListener() {
+				@Override
+				public void onConnectSuccess(final BTSocket clientSocket) {
+					numConnects.incrementAndGet();
+					connectLatency.add(System.nanoTime() - connectStart);
+					streamers.execute(new Runnable() {
+						@Override
+						public void run() {
+							stream(clientSocket);
+							done.countDown();
+						}
+					});
+				}
+				@Override
+				public void onConnectionError(Exception exception, String where) {
+					numConnectFailures.incrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+	}
+
+	/**
+	 * Echoes bytesPerConnection bytes over socket, timing each chunk's round trip, then closes it
+	 */
+	private void stream(BTSocket socket) {
+		byte[] out = new byte[chunkSize];
+		byte[] in = new byte[chunkSize];
+		try {
+			for (int sent = 0; sent < bytesPerConnection && running; sent += chunkSize) {
+				int n = Math.min(chunkSize, bytesPerConnection - sent);
+				long start = System.nanoTime();
+				socket.write(out, 0, n);
+				for (int received = 0; received < n; ) {
+					int r = socket.read(in, received, n - received);
+					if (r == -1) {
+						throw new IOException("End of stream");
+					}
+					received += r;
+				}
+				roundTripLatency.add(System.nanoTime() - start);
+				numBytes.addAndGet(n);
+			}
+		}
+		catch (IOException e) {
+			numStreamErrors.incrementAndGet(); // e.g. a simulated random disconnect
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+
+	private Report newReport(long elapsedMs, long cycles, long intervalBytes, long intervalMs, 
+			BTWizEngine engine, SimEnvironment sim, int baselineThreads, long baselineHeap, boolean isFinal) {
+		long[] connects = connectLatency.drainPercentiles();
+		long[] roundTrips = roundTripLatency.drainPercentiles();
+		int threads = countThreads();
+		long heap = usedHeap();
+		return new Report(isFinal, elapsedMs, cycles, numConnects.get(), numConnectFailures.get(), 
+				numStreamErrors.get(), numBytes.get(), 
+				intervalMs == 0 ? 0 : intervalBytes * 1000 / intervalMs, 
+				connects, roundTrips, threads, threads - baselineThreads, heap, heap - baselineHeap, 
+				engine.getSocketRegistry().size(), sim.getActiveLinks());
+	}
+
+	private static int countThreads() {
+		return Thread.getAllStackTraces().size();
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc(); // a hint; heap growth is meaningful as a trend over reports
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+
+	/**
+	 * A soak test report. Latencies are p50, p90, p99 and max, in microseconds, over the 
+	 * report interval; throughput is the echoed payload over the interval
+	 */
+	public static class Report {
+		public final boolean isFinal;
+		public final long elapsedMs;
+		public final long cycles;
+		public final long connects;
+		public final long connectFailures;
+		public final long streamErrors;
+		public final long bytes;
+		public final long throughputBytesPerSec;
+		private final long[] connectLatencyUs;
+		private final long[] roundTripLatencyUs;
+		public final int threads;
+		public final int threadGrowth;
+		public final long heapBytes;
+		public final long heapGrowthBytes;
+		public final int openSockets;  // leaked: no connection is open between cycles
+		public final int activeLinks;
+
+		Report(boolean isFinal, long elapsedMs, long cycles, long connects, long connectFailures, long streamErrors, 
+				long bytes, long throughputBytesPerSec, long[] connectLatencyUs, long[] roundTripLatencyUs, 
+				int threads, int threadGrowth, long heapBytes, long heapGrowthBytes, int openSockets, int activeLinks) {
+			this.isFinal = isFinal;
+			this.elapsedMs = elapsedMs;
+			this.cycles = cycles;
+			this.connects = connects;
+			this.connectFailures = connectFailures;
+			this.streamErrors = streamErrors;
+			this.bytes = bytes;
+			this.throughputBytesPerSec = throughputBytesPerSec;
+			this.connectLatencyUs = connectLatencyUs;
+			this.roundTripLatencyUs = roundTripLatencyUs;
+			this.threads = threads;
+			this.threadGrowth = threadGrowth;
+			this.heapBytes = heapBytes;
+			this.heapGrowthBytes = heapGrowthBytes;
+			this.openSockets = openSockets;
+			this.activeLinks = activeLinks;
+		}
+
+		/**
+		 * p50, p90, p99 and max connect latency (us)
+		 */
+		public long[] getConnectLatency() {
+			return connectLatencyUs.clone();
+		}
+
+		/**
+		 * p50, p90, p99 and max chunk round trip latency (us)
+		 */
+		public long[] getRoundTripLatency() {
+			return roundTripLatencyUs.clone();
+		}
+
+		@Override
+		public String toString() {
+			return (isFinal ? "FINAL " : "") + "t=" + elapsedMs / 1000 + "s cycles=" + cycles + 
+					" connects=" + connects + " connectFailures=" + connectFailures + " streamErrors=" + streamErrors + 
+					" bytes=" + bytes + " throughput=" + throughputBytesPerSec + "B/s" + 
+					" connectUs(p50/p90/p99/max)=" + join(connectLatencyUs) + 
+					" rttUs(p50/p90/p99/max)=" + join(roundTripLatencyUs) + 
+					" threads=" + threads + " (" + signed(threadGrowth) + ")" + 
+					" heap=" + heapBytes / 1024 + "KB (" + signed(heapGrowthBytes / 1024) + "KB)" + 
+					" openSockets=" + openSockets + " activeLinks=" + activeLinks;
+		}
+
+		private static String join(long[] values) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < values.length; i++) {
+				sb.append(i == 0 ? "" : "/").append(values[i]);
+			}
+			return sb.toString();
+		}
+
+		private static String signed(long value) {
+			return value >= 0 ? "+" + value : Long.toString(value);
+		}
+	}
+
+
+	/**
+	 * Latency samples of a report interval; beyond MAX_SAMPLES a uniform random 
+	 * subset is kept (reservoir sampling), so memory stays fixed over long runs
+	 */
+	private static class LatencySampler {
+		private static final int MAX_SAMPLES = 8192;
+		private final long[] samples = new long[MAX_SAMPLES];
+		private final Random random = new Random(0);
+		private long count = 0;
+		private long max = 0;
+
+		synchronized void add(long nanos) {
+			long us = nanos / 1000;
+			if (count < MAX_SAMPLES) {
+				samples[(int)count] = us;
+			}
+			else {
+				long slot = (long)(random.nextDouble() * (count + 1));
+				if (slot < MAX_SAMPLES) {
+					samples[(int)slot] = us;
+				}
+			}
+			count++;
+			max = Math.max(max, us);
+		}
+
+		/**
+		 * Returns p50, p90, p99 and max, and starts a new interval
+		 */
+		synchronized long[] drainPercentiles() {
+			int n = (int)Math.min(count, MAX_SAMPLES);
+			long[] sorted = Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			long[] result = new long[] { percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), max };
+			count = 0;
+			max = 0;
+			return result;
+		}
+
+		private static long percentile(long[] sorted, int p) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int index = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+			return sorted[Math.max(0, index)];
+		}
+	}
+
+
+	/**
+	 * Runs on a plain JVM: args are the duration and report interval in seconds (default 3600, 60)
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SimConfig config = new SimConfig();
+		config.setNumDevices(200);
+		config.setPaging(100, 100, 3);
+		config.setConnectSuccessRate(0.9);
+		config.setMeanLinkLifetime(30 * 1000);
+		SoakTestRunner runner = new SoakTestRunner(config, new IReportListener() {
+			@Override
+			public void onReport(Report report) {
+				System.out.println(report);
+			}
+		});
+		long durationSec = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_DURATION_MS / 1000;
+		long intervalSec = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_REPORT_INTERVAL_MS / 1000;
+		runner.setDuration(durationSec * 1000, intervalSec * 1000);
+		Report report = runner.run();
+		System.exit(report.openSockets == 0 && report.activeLinks == 0 ? 0 : 1);
+	}
+}
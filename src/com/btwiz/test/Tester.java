@@ -16,21 +16,45 @@
 package com.btwiz.test;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.btwiz.library.BTMetrics;
+import com.btwiz.library.BTServer;
+import com.btwiz.library.BTTrace;
 import com.btwiz.library.BTSocket;
 import com.btwiz.library.BTWiz;
+import com.btwiz.library.BTWizConnector;
+import com.btwiz.library.BTWizEngine;
+import com.btwiz.library.CompletionHandle;
+import com.btwiz.library.ConnectionEvent;
+import com.btwiz.library.ConnectionManager;
 import com.btwiz.library.DeviceMajorComparator;
 import com.btwiz.library.DeviceNotSupportBluetooth;
+import com.btwiz.library.DeviceQuery;
+import com.btwiz.library.DeviceSnapshot;
 import com.btwiz.library.GetAllDevicesListener;
 import com.btwiz.library.IAcceptListener;
+import com.btwiz.library.ICompletionListener;
+import com.btwiz.library.IConnectionEventListener;
+import com.btwiz.library.IConnectionManagerListener;
 import com.btwiz.library.IDeviceConnectionListener;
 import com.btwiz.library.IDeviceLookupListener;
 import com.btwiz.library.MarkCompletionListener;
+import com.btwiz.library.MetricsSnapshot;
+import com.btwiz.library.ScanScheduler;
+import com.btwiz.library.ScanStats;
 import com.btwiz.library.SecureMode;
 import com.btwiz.library.Utils;
+import com.btwiz.library.sim.SimConfig;
+import com.btwiz.library.sim.SimConnector;
+import com.btwiz.library.sim.SimDevice;
+import com.btwiz.library.sim.SimEnvironment;
 
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.util.Log;
@@ -142,6 +166,254 @@ public class Tester {
 	}
 
 		
+	/**
+	 * Test connecting to a device seen minutes ago without re-running discovery: 
+	 * a bonded or recently seen (cached) matching device is connected directly, 
+	 * discovery runs only if the direct connect fails  
+	 */
+	public static void reconnectToRecentDevice(final Context context, final int major, final String name) { 		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		
+		BTWiz.getDeviceCache().setTtl(10 * 60 * 1000); // serve devices seen in the last 10 minutes
+		BTWiz.setConnectTimeouts(8000, 30000);
+		BTWiz.lookupAndConnectAsync(context, new DeviceMajorComparator(major, name), new IDeviceConnectionListener() {			
+			@Override
+			public void onConnectionError(Exception exception, String where) {
+				// TODO handle connection error
+				Log.e("Tester", "Connection error: " + exception + " at " + where);  
+			}			
+			@Override
+			public void onConnectSuccess(BTSocket clientSocket) {
+				Log.d("Tester", "Connected to " + clientSocket.getRemoteAddress()); 
+			}
+		});
+		
+		// TODO call BTWiz.cleanup() at end of BT processing (persists the device cache) 
+	}
+	
+	
+	/**
+	 * Test a composite device query: an audio device named "JBL..." or one offering 
+	 * the given service, looked up among bonded and recently seen devices first  
+	 */
+	public static void lookupByQuery(final Context context, UUID serviceUuid) { 		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		
+		DeviceQuery query = DeviceQuery.and(
+				DeviceQuery.major(BluetoothClass.Device.Major.AUDIO_VIDEO),
+				DeviceQuery.or(DeviceQuery.namePrefix("JBL"), DeviceQuery.hasService(serviceUuid)));
+		
+		// compiled once; evaluated against the cached snapshots via the cache index 
+		for (DeviceSnapshot snapshot: BTWiz.getDeviceCache().query(query)) {
+			Log.d("Tester", "Cached match: " + snapshot); 
+		}
+		
+		BTWiz.lookupDeviceAsync(context, query, new IDeviceLookupListener() {
+			@Override
+			public boolean onDeviceFound(BluetoothDevice device, boolean byDiscovery) {
+				Log.d("Tester", "Found: " + device.getAddress() + (byDiscovery ? " by discovery" : ""));				
+				return false; // and terminate discovery
+			}
+			@Override
+			public void onDeviceNotFound(boolean byDiscovery) {
+				Log.d("Tester", "No matching device"); 				
+			}
+		}, true);
+	}
+	
+	
+	/**
+	 * Test several concurrent lookups: all lookups needing discovery share a single 
+	 * inquiry, which ends as soon as every one of them has found its device  
+	 */
+	public static void lookupManyConcurrently(final Context context, DeviceQuery... queries) { 		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		
+		for (int i = 0; i < queries.length; i++) {
+			final int index = i;
+			BTWiz.lookupDeviceAsync(context, queries[i], new IDeviceLookupListener() {
+				@Override
+				public boolean onDeviceFound(BluetoothDevice device, boolean byDiscovery) {
+					Log.d("Tester", "Found " + device.getAddress() + " for query #" + index + 
+							", lookups still waiting: " + BTWiz.getDiscoveryCoordinator().getNumActiveLookups());				
+					return false; // this lookup is done; discovery goes on for the others
+				}
+				@Override
+				public void onDeviceNotFound(boolean byDiscovery) {
+					Log.d("Tester", "No device for query #" + index); 				
+				}
+			}, true); // joins the running discovery, if any
+		}
+	}
+	
+	
+	/**
+	 * Test continuous presence detection: scan periodically for a minute, letting the 
+	 * scheduler adapt the scan rate, then report scan cost versus yield  
+	 */
+	public static void monitorPresence(final Context context) { 		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		
+		// fixed memory presence list: up to 100 devices seen in the last 5 minutes
+		BTWiz.getDiscoveredDeviceStore().setLimits(100, 5 * 60 * 1000);
+		
+		final ScanScheduler scanner = BTWiz.getScanScheduler();
+		scanner.setDutyCycle(6000, 20000);                // scan for up to 6s every 20s
+		scanner.setIntervalBounds(10000, 2 * 60 * 1000);  // adapting between 10s and 2min
+		scanner.start(context);
+		
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(60 * 1000);
+				} catch (InterruptedException e) {
+					// no op
+				}
+				scanner.stop();
+				ScanStats stats = scanner.getStats();
+				Log.d("Tester", "Presence scans: " + stats.numScans + ", radio duty cycle: " + stats.getDutyCycle() + 
+						", new devices per scan second: " + stats.getNewDevicesPerScanSecond()); 
+				for (DeviceSnapshot snapshot: BTWiz.getDiscoveredDeviceStore().getSnapshots()) {
+					Log.d("Tester", "Present: " + snapshot); 
+				}
+			};
+		}.start();	 	
+	}
+	
+	
+	/**
+	 * Test completion handles: look up a device, then chain a connect to it, waking the  
+	 * waiting thread as soon as the connect completes (no polling)
+	 */
+	public static void lookupAndConnectWithHandles(final Context context, int major) { 		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		
+		final CompletionHandle<BTSocket> connected = new CompletionHandle<BTSocket>();
+		BTWiz.lookupDeviceAsync(context, new DeviceMajorComparator(major), true).whenComplete(
+				new ICompletionListener<BluetoothDevice>() {
+			@Override
+			public void onComplete(CompletionHandle<BluetoothDevice> lookup) {
+				BluetoothDevice device = lookup.getResult();
+				if (device == null) {
+					connected.fail(new Exception("No matching device"));
+					return;
+				}
+				BTWiz.connectAsClientAsync(context, device).whenComplete(new ICompletionListener<BTSocket>() {
+					@Override
+					public void onComplete(CompletionHandle<BTSocket> connect) {
+						if (connect.isSuccess()) {
+							connected.complete(connect.getResult());
+						} else {
+							connected.fail(connect.getError());
+						}
+					}
+				});
+			}
+		});
+		
+		new Thread() {
+			public void run() {
+				if (!connected.await(30 * 1000)) {
+					Log.e("Tester", "Lookup & connect timed out"); 
+					return;
+				}
+				if (connected.isSuccess()) {
+					Log.d("Tester", "Connected to " + connected.getResult().getRemoteAddress()); 
+				} else {
+					Log.e("Tester", "Lookup & connect failed: " + connected.getError()); 
+				}
+			};
+		}.start();	 	
+	}
+	
+	
+	/**
+	 * Test metrics: connect to a device, then export the library's metrics, including 
+	 * the time spent at each connect failover stage
+	 */
+	public static void connectAndExportMetrics(final Context context, BluetoothDevice device) { 		
+		final BTMetrics metrics = BTWiz.getMetrics();
+		metrics.reset();
+		BTWiz.connectAsClientAsync(context, device).whenComplete(new ICompletionListener<BTSocket>() {
+			@Override
+			public void onComplete(CompletionHandle<BTSocket> connect) {
+				MetricsSnapshot snapshot = metrics.snapshot();
+				Log.d("Tester", "Connects: " + snapshot.getCounter("btwiz_connects_total") + 
+						", SPP fallbacks: " + snapshot.getCounter("btwiz_connect_spp_fallbacks_total") + 
+						", reflection fallbacks: " + snapshot.getCounter("btwiz_connect_reflection_fallbacks_total")); 
+				Log.d("Tester", snapshot.toPrometheusText()); 
+				Log.d("Tester", snapshot.toJson()); 
+				if (connect.isSuccess()) {
+					connect.getResult().close();
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Test tracing: connect to a device with full (DEBUG) tracing, dumping the 
+	 * trace of all failover stages if the connect fails
+	 */
+	public static void connectWithTracing(final Context context, BluetoothDevice device) { 		
+		final BTTrace trace = BTWiz.getTrace();
+		trace.setLevel(BTTrace.DEBUG);
+		trace.clear();
+		BTWiz.connectAsClientAsync(context, device).whenComplete(new ICompletionListener<BTSocket>() {
+			@Override
+			public void onComplete(CompletionHandle<BTSocket> connect) {
+				if (connect.isSuccess()) {
+					Log.d("Tester", "Connected to " + connect.getResult().getRemoteAddress()); 
+				} else {
+					Log.e("Tester", "Connect failed: " + connect.getError()); 
+					trace.logDump();
+				}
+				trace.setLevel(BTTrace.DEFAULT_LEVEL);
+			}
+		});
+	}
+	
+	
 	/**
 	 * Run discovery and returns a list of all discovered devices
 	 */
@@ -192,6 +464,86 @@ public class Tester {
 	}
 	
 
+	/**
+	 * Test discovery kept off the UI thread: a dedicated engine receives discovery broadcasts, 
+	 * and runs the lookup callbacks, on background threads 
+	 */
+	public static void discoverNearbyDevicesOffMainThread(final Context context) {		
+		final BTWizEngine engine = new BTWizEngine(); // the default engine's settings are left as is
+		try {
+			if (!engine.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		
+		// listeners must not touch views directly
+		engine.getDiscoveryCoordinator().setReceiveOnBackgroundThread(true);
+		final ExecutorService callbacks = Executors.newSingleThreadExecutor();
+		engine.getDiscoveryCoordinator().setCallbackExecutor(callbacks);
+		
+		final GetAllDevicesListener deviceDiscoveredListener = new GetAllDevicesListener(); 
+		boolean started = engine.startDiscoveryAsync(context, new Runnable() {
+			@Override
+			public void run() {
+				Log.d("Tester", "Discovered " + deviceDiscoveredListener.getAll().size() + " devices off the main thread"); 
+				engine.cleanup(context); // cleanup BT resources
+				callbacks.shutdown();
+			}
+		}, deviceDiscoveredListener);
+		if (!started) {
+			// TODO handle discovery error
+		}
+	}
+	
+
+	/**
+	 * Test discovering nearby devices and connecting to the closest (strongest signal) 
+	 * device of a given major class 
+	 */
+	public static void connectToClosestDevice(final Context context, final int major) {		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		
+		boolean started = BTWiz.startDiscoveryAsync(context, new Runnable() {
+			@Override
+			public void run() {
+				// the view is kept sorted while discovery runs; no need to wait for its end in real apps 
+				DeviceSnapshot closest = BTWiz.getRankedDiscoveredDevices().getFirst(new DeviceMajorComparator(major));
+				if (closest == null) {
+					Log.d("Tester", "No device of major " + Utils.majorToString(major) + " nearby"); 
+					return;
+				}
+				Log.d("Tester", "Closest device: " + closest); 
+				BluetoothDevice device = BTWiz.getBluetoothAdapter().getRemoteDevice(closest.getAddress());
+				BTWiz.connectAsClientAsync(context, device, new IDeviceConnectionListener() {			
+					@Override
+					public void onConnectionError(Exception exception, String where) {
+						Log.e("Tester", "Connection error: " + exception + " at " + where);  
+					}			
+					@Override
+					public void onConnectSuccess(BTSocket clientSocket) {
+						Log.d("Tester", "Connected to closest device"); 
+					}
+				});
+			}
+		});
+		if (!started) {
+			// TODO handle discovery error
+		}
+	}
+
+
 	/**
 	 * Test becoming a BT server and accept()ing new connections
 	 * If secureMode equals SECURE: listenUsingRfcommWithServiceRecord will be internally activated
@@ -239,4 +591,316 @@ public class Tester {
 		// TODO call BTWiz.cleanup() at end of BT processing 
 	}
 
+
+	/**
+	 * Test a BTServer listening on two services at once, with at most 5 open 
+	 * connections and up to 2 more queued until a connection is closed 
+	 */
+	public static void listenOnManyServices(final Context context, UUID serviceUuid1, UUID serviceUuid2) {		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return;
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return;
+		}
+
+		IAcceptListener acceptListener = new IAcceptListener() {			
+			@Override
+			public void onNewConnectionAccepted(BTSocket newConnection) {
+				// runs on a server worker thread: may block without delaying other accepts
+				Log.d("Tester", "New connection: " + newConnection.getRemoteDevice().getAddress());
+				// TODO work with new connection; close() it when done to free its slot
+			} 
+			@Override
+			public void onError(Exception e, String where) {
+				// TODO handle error
+				Log.e("Tester", "Server error " + e + " at " + where);
+			}
+		};
+		
+		final BTServer server = new BTServer("MyServerName", acceptListener);
+		server.addService(serviceUuid1, SecureMode.SECURE);
+		server.addService(serviceUuid2, SecureMode.INSECURE);
+		server.setMaxConnections(5, BTServer.AdmissionPolicy.QUEUE, 2);
+		server.start();
+		
+		Log.d("Tester", "Multi service server activated"); 
+
+		// Note: server.getStats() reports accept counts and latency. 
+		// to terminate call server.stop()
+		
+		// TODO call BTWiz.cleanup() at end of BT processing 
+	}
+
+
+	/**
+	 * Test discovering nearby devices while prefetching their SDP service UUIDs once 
+	 * discovery is done, so later connects pick a service UUID without a blocking query  
+	 */
+	public static void discoverAndPrefetchServices(final Context context) {		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return; 
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return; 
+		}
+		BTWiz.getSdpCache().setPrefetchDiscovered(true);
+		boolean started = BTWiz.startDiscoveryAsync(context);
+		if (!started) {
+			// TODO handle discovery error
+		}
+		// later: BTWiz.connectAsClientAsync(context, device, listener) uses the cached UUIDs, 
+		// also available via BTWiz.getSdpCache().getUuids(address)
+	}
+
+
+	/**
+	 * Test observing the lifecycle of all connections and discoveries in one place.
+	 * The listener runs on its own thread and never stalls IO threads 
+	 */
+	public static void observeConnectionEvents() {		
+		BTWiz.getEventBus().subscribe(new IConnectionEventListener() {
+			@Override
+			public void onEvent(ConnectionEvent event) {
+				Log.d("Tester", "BT event: " + event);
+				if (event.getType() == ConnectionEvent.Type.DISCONNECTED) {
+					// TODO e.g. reconnect event.getAddress()
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Test two isolated engines in one process: a server component listening 
+	 * while a second component runs discovery, each with its own state and threads   
+	 */
+	public static void runIsolatedEngines(final Context context, UUID serviceUuid) {		
+		final BTWizEngine serverEngine = new BTWizEngine();
+		final BTWizEngine discoveryEngine = new BTWizEngine();
+		try {
+			if (!serverEngine.isEnabled(context) || !discoveryEngine.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return;
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return;
+		}
+
+		BTServer server = new BTServer(serverEngine, "MyServerName", new IAcceptListener() {			
+			@Override
+			public void onNewConnectionAccepted(BTSocket newConnection) {
+				Log.d("Tester", "Server engine connection: " + newConnection.getRemoteDevice().getAddress());
+			} 
+			@Override
+			public void onError(Exception e, String where) {
+				Log.e("Tester", "Server engine error " + e + " at " + where);
+			}
+		});
+		server.addService(serviceUuid, SecureMode.SECURE);
+		server.start();
+
+		final GetAllDevicesListener deviceDiscoveredListener = new GetAllDevicesListener(); 
+		boolean started = discoveryEngine.startDiscoveryAsync(context, new Runnable() {
+			@Override
+			public void run() {
+				Log.d("Tester", "Discovery engine found " + deviceDiscoveredListener.getAll().size() + " devices");
+				// closes only this engine's sockets & servers. a discovery run shared with 
+				// another engine goes on for it
+				discoveryEngine.cleanup(context);
+			}
+		}, deviceDiscoveredListener);
+		if (!started) {
+			// TODO handle discovery error
+		}
+
+		// TODO call serverEngine.cleanup() at end of server processing 
+	}
+
+	
+	/**
+	 * Test connecting many devices at once via ConnectionManager, 
+	 * at most 3 concurrent connects, the first address having a higher priority  
+	 */
+	public static void connectToManyDevices(final Context context, String[] addresses) {		
+		try {
+			if (!BTWiz.isEnabled(context)) {
+				// TODO call startActivity with BTWiz.enableBTIntent() allowing user to enable BT
+				return;
+			}
+		} catch (DeviceNotSupportBluetooth e) {
+			// TODO disable BT functionality in your app
+			return;
+		}
+
+		final int MAX_CONCURRENT = 3;
+		BTWiz.setConnectLimits(MAX_CONCURRENT, addresses.length); // library wide cap must not be lower
+		
+		ConnectionManager manager = new ConnectionManager(new BTWizConnector(context), newLoggingManagerListener());
+		manager.setMaxConcurrent(MAX_CONCURRENT);
+		for (int i = 0; i < addresses.length; i++) {
+			manager.addTarget(addresses[i], i == 0 ? 1 : ConnectionManager.DEFAULT_PRIORITY);
+		}
+		manager.start();
+		
+		// TODO call BTWiz.cleanup() at end of BT processing 
+	}
+
+	
+	/**
+	 * Test ConnectionManager against a simulated environment able to page only 3 devices at a time.
+	 * Connecting 20 devices with a concurrency limit of 3 should cause no page-limit failures
+	 * (Does not require BT hardware) 
+	 */
+	public static void connectToManySimulatedDevices() {
+		final int NUM_DEVICES = 20;
+		final int MAX_PAGES = 3;
+		SimConfig config = new SimConfig();
+		config.setNumDevices(NUM_DEVICES);
+		config.setPaging(50, 0, MAX_PAGES);
+		config.setConnectSuccessRate(0.8);
+		config.setSeed(1234);
+		final SimEnvironment sim = new SimEnvironment(config);
+		final IConnectionManagerListener logger = newLoggingManagerListener();
+		
+		IConnectionManagerListener managerListener = new IConnectionManagerListener() {
+			@Override
+			public void onDeviceConnected(String address, BTSocket socket) {
+				logger.onDeviceConnected(address, socket);
+				socket.close(); // only the paging is of interest
+			}
+			@Override
+			public void onDeviceFailed(String address, Exception lastError, int numAttempts) {
+				logger.onDeviceFailed(address, lastError, numAttempts);
+			}
+			@Override
+			public void onProgress(int numConnected, int numFailed, int numTotal) {
+				logger.onProgress(numConnected, numFailed, numTotal);
+			}
+			@Override
+			public void onAllCompleted(int numConnected, int numFailed) {
+				logger.onAllCompleted(numConnected, numFailed);
+				Log.d("Tester", "Max concurrent pages: " + sim.getMaxObservedPages() + 
+						", page limit failures: " + sim.getNumPageLimitFailures()); 
+				sim.shutdown();
+			}
+		};
+		
+		ConnectionManager manager = new ConnectionManager(new SimConnector(new BTWizEngine(), sim), managerListener);
+		manager.setMaxConcurrent(MAX_PAGES);
+		manager.setRetryPolicy(3, 20);
+		List<SimDevice> devices = sim.getDevices();
+		for (int i = 0; i < devices.size(); i++) {
+			manager.addTarget(devices.get(i).getAddress(), i % 4);
+		}
+		manager.start();
+	}
+
+	
+	/**
+	 * Test the library at scale against a simulated environment: discover 500 virtual devices, 
+	 * connect 40 of them through a ConnectionManager, and accept 10 incoming connections, 
+	 * with 80% page success and random link loss (Does not require BT hardware) 
+	 */
+	public static void runSimulatedScaleScenario() {
+		final BTWizEngine engine = new BTWizEngine();
+		SimConfig config = new SimConfig();
+		config.setNumDevices(500);
+		config.setConnectSuccessRate(0.8);
+		config.setMeanLinkLifetime(60 * 1000);
+		config.setSeed(1234);
+		final SimEnvironment sim = new SimEnvironment(config);
+		engine.getDiscoveryCoordinator().setDiscoverySource(sim); // discovery sessions run simulated inquiries
+		
+		BTServer server = new BTServer(engine, "SimServer", new IAcceptListener() {
+			@Override
+			public void onNewConnectionAccepted(BTSocket newConnection) {
+				Log.d("Tester", "Accepted " + newConnection.getRemoteAddress()); 
+			}
+			@Override
+			public void onError(Exception e, String where) {
+				Log.e("Tester", "Accept error at " + where + ": " + e); 
+			}
+		});
+		server.addService(sim.listen());
+		server.start();
+		
+		final ConnectionManager manager = new ConnectionManager(new SimConnector(engine, sim), newLoggingManagerListener());
+		manager.setMaxConcurrent(3);
+		engine.getDiscoveryCoordinator().startAsync(null, new Runnable() {
+			@Override
+			public void run() {
+				List<DeviceSnapshot> ranked = engine.getRankedDiscoveredDevices().getRanked();
+				Log.d("Tester", "Discovered " + ranked.size() + " simulated devices"); 
+				for (int i = 0; i < 40 && i < ranked.size(); i++) {
+					manager.addTarget(ranked.get(i).getAddress()); // strongest first
+				}
+				manager.start();
+				for (int i = 0; i < 10 && 40 + i < ranked.size(); i++) {
+					sim.simulateIncomingConnection(ranked.get(40 + i).getAddress());
+				}
+			}
+		}, null);
+		// TODO sim.shutdown(), server.stop() and engine.cleanup(context) once done; 
+		// see engine.getMetrics().snapshot() for the results
+	}
+	
+	
+	/**
+	 * Test for leaks over a long run: one hour of discover/connect/stream/disconnect cycles 
+	 * against a simulated environment, logging a report every minute (Does not require BT hardware) 
+	 */
+	public static void runSoakTest() {
+		SimConfig config = new SimConfig();
+		config.setMeanLinkLifetime(30 * 1000); // exercise random disconnects
+		final SoakTestRunner runner = new SoakTestRunner(config, new SoakTestRunner.IReportListener() {
+			@Override
+			public void onReport(SoakTestRunner.Report report) {
+				Log.d("Tester", "Soak: " + report); 
+				if (report.openSockets > 0 || report.activeLinks > 0) {
+					Log.e("Tester", "Soak: leaked connections!"); 
+				}
+			}
+		});
+		new Thread() {
+			public void run() {
+				try {
+					runner.run();
+				} catch (InterruptedException e) {
+					// no op
+				}
+			};
+		}.start();	 	
+	}
+	
+	
+	private static IConnectionManagerListener newLoggingManagerListener() {
+		return new IConnectionManagerListener() {
+			@Override
+			public void onDeviceConnected(String address, BTSocket socket) {
+				// TODO work with new connection
+				Log.d("Tester", "Connected to " + address);
+			}
+			@Override
+			public void onDeviceFailed(String address, Exception lastError, int numAttempts) {
+				Log.e("Tester", "Failed to connect " + address + " after " + numAttempts + " attempts: " + lastError);
+			}
+			@Override
+			public void onProgress(int numConnected, int numFailed, int numTotal) {
+				Log.d("Tester", "Progress: " + numConnected + " connected, " + numFailed + " failed, of " + numTotal);
+			}
+			@Override
+			public void onAllCompleted(int numConnected, int numFailed) {
+				Log.d("Tester", "All done: " + numConnected + " connected, " + numFailed + " failed");
+			}
+		};
+	}
+
 }